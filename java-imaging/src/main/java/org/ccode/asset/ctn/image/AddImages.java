@@ -3,6 +3,7 @@ package org.ccode.asset.ctn.image;
 import org.ccode.asset.ctn.image.extensions.Array2D;
 import org.ccode.asset.ctn.image.extensions.Fits;
 import org.ccode.asset.ctn.image.extensions.FitsDocument;
+import org.ccode.asset.ctn.image.extensions.FrameLoader;
 import org.ccode.asset.ctn.logging.Logger;
 import org.ccode.asset.ctn.logging.LoggerBuilder;
 
@@ -11,11 +12,21 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class AddImages {
     private static final Logger _logger = LoggerBuilder.defaultLogger(AddImages.class.getName());
 
+    //Marks the end of the frames in the pipeline queue
+    private static final float[][] END_OF_FRAMES = new float[0][];
+
     /**
      * Adds and averages an array of images
      *
@@ -40,87 +51,184 @@ public class AddImages {
         return resultImage;
     }
 
-    public static boolean execute(Fits[] images, String outputFolder) throws FileNotFoundException, IllegalArgumentException {
-        //Check that destination is a valid Folder
-        if (!Files.isDirectory(Paths.get(outputFolder))) {
-            throw new FileNotFoundException(String.format("Invalid folder path: %s.", outputFolder));
-        }
-        //Check that there's at least one file
-        if (images.length == 0) return true;
-
-        //Check that images are the same size
-        if (FitsDocument.hasConsistentImageSize(images)) {
-            throw new IllegalArgumentException("Images are different sizes.");
+    /**
+     * Averages frames with a pipeline: reader threads decode the frames and hand them over a bounded queue to worker
+     * threads, which add them into one partial sum each. Decoding overlaps the additions and about
+     * readers + 3 * workers frames are held in memory (in flight, queued and partial sums), whatever the number of
+     * frames.
+     *
+     * @param images  The frames to average. They must have the same size.
+     * @param readers The number of threads decoding frames.
+     * @param workers The number of threads adding frames.
+     * @return The mean of all frames.
+     * @throws IOException If a frame cannot be read or the pipeline is interrupted.
+     * @throws IllegalArgumentException If there are no images.
+     */
+    public static float[][] addImagesPipelined(Fits[] images, int readers, int workers) throws IOException {
+        try (FrameLoader loader = new FrameLoader(readers, false)) {
+            return addImagesPipelined(images, loader, readers, workers);
         }
+    }
 
-        //Initialize necessary variables
-        final int SUBSET_SIZE = 50; //Batch size to work with
-
-        List<float[][]> floatImages = new ArrayList<>();
-        List<float[][]> addedSubsetImages = new ArrayList<>();
-        List<Thread> threads = new ArrayList<>();
+    /**
+     * Averages frames with a pipeline: the loader decodes the frames {@link FrameLoader#DEFAULT_READ_AHEAD} ahead and
+     * hands them over a bounded queue to worker threads, which add them into one partial sum each. About
+     * FrameLoader.DEFAULT_READ_AHEAD + 1 + 3 * workers frames are held in memory, whatever the number of frames.
+     *
+     * @param images  The frames to average. They must have the same size.
+     * @param loader  The loader decoding frames.
+     * @param workers The number of threads adding frames.
+     * @return The mean of all frames.
+     * @throws IOException If a frame cannot be read or the pipeline is interrupted.
+     * @throws IllegalArgumentException If there are no images.
+     */
+    public static float[][] addImagesPipelined(Fits[] images, FrameLoader loader, int workers) throws IOException {
+        return addImagesPipelined(images, loader, FrameLoader.DEFAULT_READ_AHEAD, workers);
+    }
 
-        //Populate arrayList
-        for (Fits image : images) {
-            floatImages.add(FitsDocument.extractFloatData(image));
+    /**
+     * @param readAhead The number of frames the loader decodes ahead of the one being queued.
+     */
+    private static float[][] addImagesPipelined(Fits[] images, FrameLoader loader, int readAhead, int workers)
+            throws IOException {
+        if (images.length == 0) {
+            throw new IllegalArgumentException("There are no images to add.");
         }
+        BlockingQueue<float[][]> queue = new ArrayBlockingQueue<>(workers);
+        ExecutorService workPool = Executors.newFixedThreadPool(workers);
+
+        try {
+            //Each worker keeps its own sum until the end of the stream
+            List<Future<float[][]>> partialSums = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                partialSums.add(workPool.submit(() -> {
+                    float[][] sum = null;
+                    Throwable error = null;
+                    for (float[][] frame = queue.take(); frame != END_OF_FRAMES; frame = queue.take()) {
+                        //After an error keep draining the queue, so that the reading side never blocks forever
+                        if (error != null) continue;
+                        try {
+                            if (sum == null) {
+                                sum = frame;
+                            } else if (frame.length != sum.length || frame[0].length != sum[0].length) {
+                                throw new IllegalArgumentException("Images are different sizes.");
+                            } else {
+                                Array2D.add(sum, frame);
+                            }
+                        } catch (RuntimeException | Error e) {
+                            //Errors too, e.g. running out of memory, or the workers would stop taking frames
+                            error = e;
+                            sum = null;
+                        }
+                    }
+
+                    if (error instanceof Error) throw (Error) error;
+                    if (error != null) throw (RuntimeException) error;
+                    return sum;
+                }));
+            }
 
-        //Create thread to add each subset
-        for (int startIndex = 0; startIndex < floatImages.size(); startIndex += SUBSET_SIZE) {
-            //Find the end index of the subset
-            int endIndex = startIndex + SUBSET_SIZE;
-            if (endIndex >= floatImages.size()) {
-                endIndex = floatImages.size();
+            //Feed the decoded frames to the workers, then tell every worker that the stream ended
+            Exception failure = null;
+            try (FrameLoader.Prefetch<float[][]> frames = loader.prefetch(Arrays.asList(images), FitsDocument::extractFloatData, readAhead)) {
+                while (frames.hasNext()) {
+                    float[][] frame = frames.next();
+                    if (frame == null) {
+                        throw new IOException("Could not decode a frame.");
+                    }
+                    queue.put(frame);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } finally {
+                for (int i = 0; i < workers; i++)
+                    queue.put(END_OF_FRAMES);
             }
 
-            //Create final variables for use inside the thread
-            //final int threadNum = startIndex / SUBSET_SIZE;
-            final int startIndexCopy = startIndex;
-            final int endIndexCopy = endIndex;
-            // _logger.info(String.format("(start, end): (%d,%d)\n", startIndexCopy, endIndexCopy));
+            //Merge the partial sums
+            float[][] resultImage = null;
+            for (Future<float[][]> partialSum : partialSums) {
+                float[][] sum = partialSum.get();
+                if (sum == null) continue;
+                if (resultImage == null) {
+                    resultImage = sum;
+                } else {
+                    Array2D.add(resultImage, sum);
+                }
+            }
 
-            //Create thread to add subset of images
-            Thread thread = new Thread(() -> {
-                float[][] addedSubset = addImages(floatImages.subList(startIndexCopy, endIndexCopy)); //Add images
+            if (failure != null) {
+                throw new IOException("Could not read all frames.", failure);
+            }
 
-                //Critical section
-                synchronized (addedSubsetImages) {
-                    addedSubsetImages.add(addedSubset);
-                } //Store result
+            //Divide by number of images to normalize values
+            Array2D.multiply(resultImage, 1f / images.length);
+            return resultImage;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while adding frames.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not add frames.", e.getCause());
+        } finally {
+            workPool.shutdownNow();
+        }
+    }
 
-            });
-            threads.add(thread);
-            thread.start();
+    public static boolean execute(Fits[] images, String outputFolder) throws FileNotFoundException, IllegalArgumentException {
+        try (FrameLoader loader = new FrameLoader()) {
+            return execute(images, outputFolder, loader);
         }
+    }
 
+    /**
+     * Averages the images and writes the result to the Combined folder
+     *
+     * @param images
+     * @param outputFolder
+     * @param loader       The loader decoding the images.
+     * @return If the process was successful.
+     * @throws FileNotFoundException    If the outputFolder is not a valid directory.
+     * @throws IllegalArgumentException If the images are different sizes.
+     */
+    public static boolean execute(Fits[] images, String outputFolder, FrameLoader loader) throws FileNotFoundException, IllegalArgumentException {
+        //Check that destination is a valid Folder
+        if (!Files.isDirectory(Paths.get(outputFolder))) {
+            throw new FileNotFoundException(String.format("Invalid folder path: %s.", outputFolder));
+        }
+        //Check that there's at least one file
+        if (images.length == 0) return true;
 
-        // Wait for all threads to finish
-        for (Thread thread : threads) {
-            try {
-                thread.join();
-            } //Wait for the thread
-            catch (InterruptedException e) {
-                _logger.logException(e);
-            }
+        //Check that images are the same size
+        if (FitsDocument.hasConsistentImageSize(images)) {
+            throw new IllegalArgumentException("Images are different sizes.");
         }
 
-        //Add the results from the subtasks
-        float[][] addedImage = addImages(addedSubsetImages);
+        //Decode and add the frames in a pipeline, only a few frames are in memory at any time
+        float[][] addedImage;
+        try {
+            addedImage = addImagesPipelined(images, loader, Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            _logger.logException(e);
+            return false;
+        }
 
         //Save image
         String fileName = images[0].getFileName();
-        FitsDocument.writeFits(String.format("%s/Combined/%s", outputFolder, fileName), addedImage);
+        //As floats, so that the mean of many frames keeps its precision
+        FitsDocument.writeFits(String.format("%s/Combined/%s", outputFolder, fileName), addedImage, null, -32);
 
         return true;
     }
 
     public static boolean execute(String sourceFolder, String outputFolder) throws IllegalArgumentException, IOException {
-        //Get Fits files in the folder
-        Fits[] fitImages = FitsDocument.getFitsFilesFromFolder(sourceFolder);
-        if (fitImages == null) return false;
+        try (FrameLoader loader = new FrameLoader()) {
+            //Get Fits files in the folder
+            Fits[] fitImages = FitsDocument.getFitsFilesFromFolder(sourceFolder, loader);
+            if (fitImages == null) return false;
 
-        //Call execute function
-        return execute(fitImages, outputFolder);
+            //Call execute function
+            return execute(fitImages, outputFolder, loader);
+        }
     }
 
     public static void main(String[] args) {
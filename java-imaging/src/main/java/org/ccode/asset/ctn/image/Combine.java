@@ -1,181 +1,464 @@
 package org.ccode.asset.ctn.image;
 
 import nom.tam.fits.FitsException;
+import org.ccode.asset.ctn.image.extensions.Array2D;
+import org.ccode.asset.ctn.image.extensions.ArrayKernels;
 import org.ccode.asset.ctn.image.extensions.Fits;
 import org.ccode.asset.ctn.image.extensions.FitsDocument;
+import org.ccode.asset.ctn.image.extensions.FitsWriter;
+import org.ccode.asset.ctn.image.extensions.FloatImage;
+import org.ccode.asset.ctn.image.extensions.FrameLoader;
+import org.ccode.asset.ctn.image.extensions.MappedFitsReader;
+import org.ccode.asset.ctn.image.extensions.Selection;
 import org.ccode.asset.ctn.image.util.Constants;
+import org.ccode.asset.ctn.image.util.RowBands;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.ccode.asset.ctn.image.MakeDarkView.loadAndSum;
-import static org.ccode.asset.ctn.image.extensions.Fits.collectObjects;
-import static org.ccode.asset.ctn.image.extensions.Fits.collectSciObjs;
+import static org.ccode.asset.ctn.image.extensions.Fits.collectAllObjects;
 
 public class Combine {
-    //average
-    public static float[][] combineFloatArraysAverage(float[][][] images){
-        int numberOfImages = images.length;
-        int ilen = images[0].length;
-        int jlen = images[0][0].length;
-        float[][] avgArray = new float[ilen][jlen];
-        for (float[] floats : avgArray) {
-            Arrays.fill(floats, 0);
-        }
+    //Bytes of input bands kept in memory by the streaming combines
+    public static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
 
-//        for (float[] arr : avgArray){
-//            for (float x : arr){
-//                System.out.print(x);
-//            }
-//            System.out.println();
-//        }
-        //System.out.println(avgArray);
+    /*
+     * Every operation takes an optional ForkJoinPool that the rows are split over (see RowBands).
+     * The overloads without a pool run on the calling thread; both give identical results.
+     */
 
-        for (float[][] arr : images) {
-            for (int i = 0; i < arr.length; i++) {
-                for (int j = 0; j < arr[i].length; j++) {
-                    avgArray[i][j] = avgArray[i][j] + arr[i][j];
-                }
-            }
-        }
+    //average
+    public static float[][] combineFloatArraysAverage(float[][][] images) {
+        return combineFloatArraysAverage(images, null);
+    }
 
-        //        for (float[] arr : avgArray){
-//            for (float x : arr){
-//                System.out.print(x);
-//            }
-//            System.out.println();
-//        }
+    public static float[][] combineFloatArraysAverage(float[][][] images, ForkJoinPool pool) {
+        int numberOfImages = images.length;
+        float[][] avgArray = combineFloatArraysSum(images, pool);
 
-            for (int i = 0; i < images[0].length; i++) {
-                for (int j = 0; j < images[0][i].length; j++) {
-                    avgArray[i][j] = avgArray[i][j] / numberOfImages;
-                }
+        RowBands.forEach(avgArray.length, pool, (startRow, endRow) -> {
+            for (int i = startRow; i < endRow; i++) {
+                ArrayKernels.get().divide(avgArray[i], 0, avgArray[i].length, numberOfImages);
             }
-
-
+        });
         return avgArray;
-
-
     }
 
     //medians
-    public static float[][] combineFloatArraysMedian(float[][][] images){
+    public static float[][] combineFloatArraysMedian(float[][][] images) {
+        return combineFloatArraysMedian(images, null);
+    }
+
+    public static float[][] combineFloatArraysMedian(float[][][] images, ForkJoinPool pool) {
         int numberOfImages = images.length;
         int ilen = images[0].length;
         int jlen = images[0][0].length;
         float[][] medianArray = new float[ilen][jlen];
-        float[] sortarray;
-
-        for (int i = 0; i < images[0].length; i++) {
-            for (int j = 0; j < images[0][0].length; j++) {
-                //medianArray[i][j] = medianArray[i][j] + images[][i][j];
-                sortarray = new float[images.length];
-                for (int k = 0; k < images.length;k++){
-                    sortarray[k] = images[k][i][j];
-                }
-                Arrays.sort(sortarray);
-                float val;
-                if (images.length % 2 == 0 ){
-                    val = (sortarray[images.length / 2 ] + sortarray[(images.length-1) / 2 ] )/2;
-                }
-                else {
-                    val = sortarray[images.length / 2 ];
-                }
-                medianArray[i][j] =val;
 
+        RowBands.forEach(ilen, pool, (startRow, endRow) -> {
+            float[] sortarray = Selection.scratch(numberOfImages);
+            for (int i = startRow; i < endRow; i++) {
+                for (int j = 0; j < jlen; j++) {
+                    for (int k = 0; k < numberOfImages; k++) {
+                        sortarray[k] = images[k][i][j];
+                    }
+                    medianArray[i][j] = Selection.median(sortarray, numberOfImages);
+                }
             }
-        }
+        });
         return medianArray;
     }
 
     //sum
     public static float[][] combineFloatArraysSum(float[][][] images) {
-        //int numberOfImages = images.length;
+        return combineFloatArraysSum(images, null);
+    }
+
+    public static float[][] combineFloatArraysSum(float[][][] images, ForkJoinPool pool) {
         int ilen = images[0].length;
         int jlen = images[0][0].length;
         float[][] sumArray = new float[ilen][jlen];
 
-        for (float[] floats : sumArray) {
-            Arrays.fill(floats, 0);
-        }
-        for (float[][] arr : images) {
-            for (int i = 0; i < arr.length; i++) {
-                for (int j = 0; j < arr[i].length; j++) {
-
-                    sumArray[i][j] = arr[i][j] + sumArray[i][j];
+        RowBands.forEach(ilen, pool, (startRow, endRow) -> {
+            for (float[][] arr : images) {
+                for (int i = startRow; i < endRow; i++) {
+                    ArrayKernels.get().add(sumArray[i], 0, arr[i], 0, jlen);
                 }
             }
-        }
+        });
         return sumArray;
     }
-    public static float[][] combineFloatArraysSubtract(float[][] high, float[][]low){
+
+    public static float[][] combineFloatArraysSubtract(float[][] high, float[][] low) {
+        return combineFloatArraysSubtract(high, low, null);
+    }
+
+    public static float[][] combineFloatArraysSubtract(float[][] high, float[][] low, ForkJoinPool pool) {
         int ilen = high.length;
         int jlen = high[0].length;
         float[][] subArray = new float[ilen][jlen];
-        for (int i = 0; i < ilen; i++) {
-            for (int j = 0; j < jlen; j++) {
-                subArray[i][j] = high[i][j] - low[i][j];
+
+        RowBands.forEach(ilen, pool, (startRow, endRow) -> {
+            for (int i = startRow; i < endRow; i++) {
+                ArrayKernels.get().subtract(subArray[i], 0, high[i], 0, low[i], 0, jlen);
             }
-        }
+        });
         return subArray;
+    }
 
+    public static float[][] flat_correct(float[][] ccd, float[][] flat) {
+        return flat_correct(ccd, flat, null);
     }
-    public static float[][] flat_correct(float[][] ccd , float[][] flat){
+
+    public static float[][] flat_correct(float[][] ccd, float[][] flat, ForkJoinPool pool) {
         int ilen = flat.length;
         int jlen = flat[0].length;
-        float[][] flatMean = new float[flat.length][flat[0].length];
-        float sum = 0;
-        for (float[] floats : flatMean) {
-            Arrays.fill(floats, 0);
-        }
-        for (int i = 0; i < ilen; i++) {
-            for (int j = 0; j < jlen; j++) {
-                sum = flat[i][j] + sum;
+
+        //Sum each row on its own and add the row sums in order, so the mean does not depend on the bands
+        double[] rowSums = new double[ilen];
+        RowBands.forEach(ilen, pool, (startRow, endRow) -> {
+            for (int i = startRow; i < endRow; i++) {
+                double sum = 0;
+                for (int j = 0; j < jlen; j++) {
+                    sum += flat[i][j];
+                }
+                rowSums[i] = sum;
+            }
+        });
+        float flat_mean = (float) (sumInOrder(rowSums) / ((double) ilen * jlen));
+
+        //flat_corrected = ccd.divide(flat.divide(flat_mean))
+        float[][] use_flat = new float[ilen][jlen];
+        RowBands.forEach(ilen, pool, (startRow, endRow) -> {
+            for (int i = startRow; i < endRow; i++) {
+                for (int j = 0; j < jlen; j++) {
+                    use_flat[i][j] = ccd[i][j] / (flat[i][j] / flat_mean);
+                }
             }
+        });
+        return use_flat;
+    }
+
+    //average
+    public static FloatImage combineFloatArraysAverage(FloatImage[] images) {
+        return combineFloatArraysAverage(images, null);
+    }
+
+    public static FloatImage combineFloatArraysAverage(FloatImage[] images, ForkJoinPool pool) {
+        int numberOfImages = images.length;
+        FloatImage avgImage = combineFloatArraysSum(images, pool);
+        float[] avg = avgImage.getData();
+        int width = avgImage.getWidth();
+
+        RowBands.forEach(avgImage.getHeight(), pool, (startRow, endRow) ->
+                ArrayKernels.get().divide(avg, startRow * width, endRow * width, numberOfImages));
+        return avgImage;
+    }
+
+    /**
+     * Averages FITS files, adding each one as soon as the loader decoded it, so only the frames read ahead by the
+     * loader are in memory. Each file is mapped to a 0-1 range like {@link FitsDocument#extractFloatImage}, so the
+     * result matches averaging the extracted images.
+     *
+     * @param images The images to average.
+     * @param loader The loader decoding the images.
+     * @param pool   The pool to add each image on, or null to run on the calling thread.
+     * @return The average image.
+     * @throws IOException              If an image cannot be read.
+     * @throws IllegalArgumentException If there are no images, or they are different sizes.
+     */
+    public static FloatImage combineFloatArraysAverage(Fits[] images, FrameLoader loader, ForkJoinPool pool) throws IOException {
+        if (images.length == 0) {
+            throw new IllegalArgumentException("There are no images to combine.");
         }
+        FloatImage sumImage = null;
+
+        try (FrameLoader.Prefetch<FloatImage> frames = loader.prefetch(Arrays.asList(images), FitsDocument::extractFloatImage)) {
+            while (frames.hasNext()) {
+                FloatImage image = frames.next();
+                if (image == null) {
+                    throw new IOException("Could not decode an image.");
+                }
 
-        float flat_mean = sum / (ilen * jlen);
-        System.out.println(flat_mean);
-        float[][] use_flat = new float[flat.length][flat[0].length];
+                //The first image becomes the sum, the others are added to it
+                if (sumImage == null) {
+                    sumImage = image;
+                    continue;
+                }
 
-        //copy flat to use_flat
-        for (int i = 0; i < ilen; i++) {
-            for (int j = 0; j < jlen; j++) {
-                use_flat[i][j] = flat[i][j];
+                Array2D.checkSameSize(sumImage, image);
+                float[] sum = sumImage.getData();
+                int width = sumImage.getWidth();
+                RowBands.forEach(sumImage.getHeight(), pool, (startRow, endRow) -> {
+                    for (int row = startRow; row < endRow; row++) {
+                        ArrayKernels.get().add(sum, row * width, image.getData(), image.rowOffset(row), width);
+                    }
+                });
             }
         }
 
-        //use_flat = use_flat.divide(flat_mean)
-        for (int i = 0; i < ilen; i++) {
-            for (int j = 0; j < jlen; j++) {
-                use_flat[i][j] = use_flat[i][j] / flat_mean;
+        float[] avg = sumImage.getData();
+        int width = sumImage.getWidth();
+        RowBands.forEach(sumImage.getHeight(), pool, (startRow, endRow) ->
+                ArrayKernels.get().divide(avg, startRow * width, endRow * width, images.length));
+        return sumImage;
+    }
+
+    //medians
+    public static FloatImage combineFloatArraysMedian(FloatImage[] images) {
+        return combineFloatArraysMedian(images, (ForkJoinPool) null);
+    }
+
+    public static FloatImage combineFloatArraysMedian(FloatImage[] images, ForkJoinPool pool) {
+        checkSizes(images);
+        int numberOfImages = images.length;
+        int width = images[0].getWidth();
+        FloatImage medianImage = new FloatImage(width, images[0].getHeight());
+        float[] medianData = medianImage.getData();
+
+        RowBands.forEach(medianImage.getHeight(), pool, (startRow, endRow) -> {
+            float[] sortarray = Selection.scratch(numberOfImages);
+            for (int row = startRow; row < endRow; row++) {
+                for (int col = 0; col < width; col++) {
+                    for (int k = 0; k < numberOfImages; k++) {
+                        sortarray[k] = images[k].getData()[images[k].rowOffset(row) + col];
+                    }
+                    medianData[row * width + col] = Selection.median(sortarray, numberOfImages);
+                }
             }
-        }
-//        System.out.println("use_flat");
-//        for (float[] arr : use_flat){
-//            for (float x : arr){
-//                System.out.print(x+" ");
-//            }
-//            System.out.println();
-//        }
+        });
+        return medianImage;
+    }
+
+    /**
+     * Median-combines FITS files without loading them, reading one band of rows from every file at a time.
+     * Each file is mapped to a 0-1 range like {@link FitsDocument#extractFloatData}, so the result matches
+     * median-combining the extracted images.
+     *
+     * @param images       The images to combine. Each must have a file on disk.
+     * @param memoryBudget Maximum number of bytes to spend on input bands.
+     * @param pool         The pool to read and combine each band on, or null to run on the calling thread.
+     * @return The median image.
+     * @throws IOException              If an image cannot be read.
+     * @throws IllegalArgumentException If the images are different sizes.
+     */
+    public static FloatImage combineFloatArraysMedian(Fits[] images, long memoryBudget, ForkJoinPool pool) throws IOException {
+        return combineMedianBands(images, memoryBudget, pool, null, 0);
+    }
+
+    /**
+     * Median-combines FITS files into a FITS file, one band of rows at a time: each band is written out as soon as
+     * it is combined, so neither the inputs nor the result are ever fully in memory.
+     *
+     * @param images       The images to combine. Each must have a file on disk.
+     * @param memoryBudget Maximum number of bytes to spend on input bands.
+     * @param pool         The pool to read and combine each band on, or null to run on the calling thread.
+     * @param destination  The file to write.
+     * @param bitpix       The BITPIX of the file, see {@link FitsWriter}.
+     * @throws IOException              If an image cannot be read or the result cannot be written.
+     * @throws IllegalArgumentException If the images are different sizes.
+     */
+    public static void combineFloatArraysMedian(Fits[] images, long memoryBudget, ForkJoinPool pool, String destination, int bitpix) throws IOException {
+        combineMedianBands(images, memoryBudget, pool, Paths.get(destination), bitpix);
+    }
 
+    /**
+     * @return The median image, or null if it was written to destination.
+     */
+    private static FloatImage combineMedianBands(Fits[] images, long memoryBudget, ForkJoinPool pool, Path destination, int bitpix) throws IOException {
+        int numberOfImages = images.length;
+        MappedFitsReader[] readers = new MappedFitsReader[numberOfImages];
+        FitsWriter writer = null;
 
-        //flat_corrected = ccd.divide(use_flat)
-        for (int i = 0; i < ilen; i++) {
-            for (int j = 0; j < jlen; j++) {
-                use_flat[i][j] = ccd[i][j] / use_flat[i][j];
+        try {
+            for (int k = 0; k < numberOfImages; k++) {
+                readers[k] = new MappedFitsReader(Paths.get(images[k].getFilePath()));
+                if (readers[k].getWidth() != readers[0].getWidth() || readers[k].getHeight() != readers[0].getHeight()) {
+                    throw new IllegalArgumentException("Images are different sizes.");
+                }
+                readers[k].getMinMax();
+            }
+
+            int width = readers[0].getWidth();
+            int height = readers[0].getHeight();
+
+            //As many rows per band as fit in the budget for all images
+            long bandRowBytes = (long) numberOfImages * width * Float.BYTES;
+            int bandHeight = (int) Math.max(1, Math.min(height, memoryBudget / bandRowBytes));
+            FloatImage bands = new FloatImage(width, numberOfImages * bandHeight);
+            float[] bandData = bands.getData();
+
+            //The whole result, or a single band when it is written out band by band
+            if (destination != null) {
+                writer = new FitsWriter(destination, width, height, bitpix, null);
+            }
+            FloatImage medianImage = new FloatImage(width, writer == null ? height : bandHeight);
+            float[] medianData = medianImage.getData();
+
+            for (int startRow = 0; startRow < height; startRow += bandHeight) {
+                int bandStart = startRow;
+                int rows = Math.min(bandHeight, height - startRow);
+
+                //Read the band from every image, one image per task
+                RowBands.forEach(numberOfImages, pool, (startImage, endImage) -> {
+                    for (int k = startImage; k < endImage; k++) {
+                        try {
+                            readers[k].readNormalizedRows(bandStart, bands.rows(k * bandHeight, rows));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+
+                //Median of the band
+                int outStart = writer == null ? bandStart : 0;
+                RowBands.forEach(rows, pool, (bandRow, bandEnd) -> {
+                    float[] sortarray = Selection.scratch(numberOfImages);
+                    for (int row = bandRow; row < bandEnd; row++) {
+                        for (int col = 0; col < width; col++) {
+                            for (int k = 0; k < numberOfImages; k++) {
+                                sortarray[k] = bandData[(k * bandHeight + row) * width + col];
+                            }
+                            medianData[(outStart + row) * width + col] = Selection.median(sortarray, numberOfImages);
+                        }
+                    }
+                });
+
+                if (writer != null) {
+                    writer.writeRows(medianImage.rows(0, rows));
+                }
+            }
+
+            if (writer != null) {
+                FitsWriter finished = writer;
+                writer = null;
+                finished.close();
+                return null;
+            }
+            return medianImage;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (MappedFitsReader reader : readers) {
+                if (reader != null) reader.close();
+            }
+            //Only still set when failing, so the original error is the one reported
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
             }
         }
+    }
 
-//        System.out.println("use_flat next");
-//        for (float[] arr : use_flat){
-//            for (float x : arr){
-//                System.out.print(x+" ");
-//            }
-//            System.out.println();
-//        }
+    public static FloatImage combineFloatArraysMedian(Fits[] images, long memoryBudget) throws IOException {
+        return combineFloatArraysMedian(images, memoryBudget, null);
+    }
 
-        return use_flat;
+    public static FloatImage combineFloatArraysMedian(Fits[] images) throws IOException {
+        return combineFloatArraysMedian(images, DEFAULT_MEMORY_BUDGET, null);
+    }
+
+    //sum
+    public static FloatImage combineFloatArraysSum(FloatImage[] images) {
+        return combineFloatArraysSum(images, null);
+    }
+
+    public static FloatImage combineFloatArraysSum(FloatImage[] images, ForkJoinPool pool) {
+        checkSizes(images);
+        int width = images[0].getWidth();
+        FloatImage sumImage = new FloatImage(width, images[0].getHeight());
+        float[] sum = sumImage.getData();
+
+        RowBands.forEach(sumImage.getHeight(), pool, (startRow, endRow) -> {
+            for (FloatImage image : images) {
+                for (int row = startRow; row < endRow; row++) {
+                    ArrayKernels.get().add(sum, row * width, image.getData(), image.rowOffset(row), width);
+                }
+            }
+        });
+        return sumImage;
+    }
+
+    public static FloatImage combineFloatArraysSubtract(FloatImage high, FloatImage low) {
+        return combineFloatArraysSubtract(high, low, null);
+    }
+
+    public static FloatImage combineFloatArraysSubtract(FloatImage high, FloatImage low, ForkJoinPool pool) {
+        Array2D.checkSameSize(high, low);
+        int width = high.getWidth();
+        FloatImage subImage = new FloatImage(width, high.getHeight());
+        float[] sub = subImage.getData(), h = high.getData(), l = low.getData();
+
+        RowBands.forEach(subImage.getHeight(), pool, (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                ArrayKernels.get().subtract(sub, row * width, h, high.rowOffset(row), l, low.rowOffset(row), width);
+            }
+        });
+        return subImage;
+    }
+
+    public static FloatImage flat_correct(FloatImage ccd, FloatImage flat) {
+        return flat_correct(ccd, flat, null);
+    }
+
+    public static FloatImage flat_correct(FloatImage ccd, FloatImage flat, ForkJoinPool pool) {
+        Array2D.checkSameSize(ccd, flat);
+        int width = flat.getWidth();
+        int height = flat.getHeight();
+        float[] f = flat.getData(), c = ccd.getData();
+
+        //Sum each row on its own and add the row sums in order, so the mean does not depend on the bands
+        double[] rowSums = new double[height];
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                int start = flat.rowOffset(row);
+                double sum = 0;
+                for (int col = 0; col < width; col++) {
+                    sum += f[start + col];
+                }
+                rowSums[row] = sum;
+            }
+        });
+        float flat_mean = (float) (sumInOrder(rowSums) / ((double) width * height));
+
+        //flat_corrected = ccd.divide(flat.divide(flat_mean))
+        FloatImage corrected = new FloatImage(width, height);
+        float[] out = corrected.getData();
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                int fStart = flat.rowOffset(row), cStart = ccd.rowOffset(row);
+                for (int col = 0; col < width; col++) {
+                    out[row * width + col] = c[cStart + col] / (f[fStart + col] / flat_mean);
+                }
+            }
+        });
+        return corrected;
+    }
+
+    private static double sumInOrder(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the images are not all the same size.
+     */
+    private static void checkSizes(FloatImage[] images) {
+        for (FloatImage image : images) {
+            Array2D.checkSameSize(images[0], image);
+        }
     }
 
     public static void main(String[] args) {
@@ -200,12 +483,13 @@ public class Combine {
                 biasArr = null,
                 scienceArr = null;
 
-        try {
+        try (FrameLoader loader = new FrameLoader()) {
             // imageArray = collectDark("./test/fits");
-            darkArr = collectObjects(Constants.testFitsPath, Constants.HeaderObjs.DARK_IMG);
-            flatArr = collectObjects(Constants.testFitsPath, Constants.HeaderObjs.FLAT_IMG);
-            biasArr = collectObjects(Constants.testFitsPath, Constants.HeaderObjs.BIAS_IMG);
-            scienceArr = collectSciObjs(Constants.testFitsPath);
+            Map<String, Fits[]> images = collectAllObjects(Constants.testFitsPath, loader);
+            darkArr = images.get(Constants.HeaderObjs.DARK_IMG);
+            flatArr = images.get(Constants.HeaderObjs.FLAT_IMG);
+            biasArr = images.get(Constants.HeaderObjs.BIAS_IMG);
+            scienceArr = images.get(Constants.HeaderObjs.SCIENCE_IMG);
 
 
         } catch (FitsException e) {
@@ -1,10 +1,13 @@
 package org.ccode.asset.ctn.image;
 
 import nom.tam.fits.FitsException;
-import org.ccode.asset.ctn.image.extensions.Array1D;
-import org.ccode.asset.ctn.image.extensions.Array2D;
+import org.ccode.asset.ctn.image.extensions.BackgroundMap;
+import org.ccode.asset.ctn.image.extensions.ConnectedComponents;
 import org.ccode.asset.ctn.image.extensions.Fits;
 import org.ccode.asset.ctn.image.extensions.FitsDocument;
+import org.ccode.asset.ctn.image.extensions.FloatImage;
+import org.ccode.asset.ctn.image.extensions.StarFitter;
+import org.ccode.asset.ctn.image.util.RowBands;
 import org.ccode.asset.ctn.logging.Logger;
 import org.ccode.asset.ctn.logging.LoggerBuilder;
 
@@ -12,11 +15,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 
 public class FindStars {
     private static final Logger _logger = LoggerBuilder.defaultLogger(FindStars.class.getName());
 
+    //Height of a peak above the background, in units of the noise, from which it is a star candidate
+    public static final float DEFAULT_DETECTION_SIGMA = 5f;
+
     /**
      * Function finds stars by finding high data values within the chosen .fits file
      *
@@ -25,146 +31,257 @@ public class FindStars {
      * @return
      */
     public static List<XYCoord> findTheStars(Fits fits, float relativePeakLimit) throws IOException, FitsException {
-        final int width, height;
-        width = fits.getAxes()[0];
-        height = fits.getAxes()[1];
+        return findTheStars(fits, relativePeakLimit, null);
+    }
 
-        Double max = fits.getMax();
-        double maxIntensity = max == null || max == Double.MIN_VALUE ? 0d : max;
-        _logger.info(String.format("Max intensity found: %f", maxIntensity));
+    /**
+     * Function finds stars by finding high data values within the chosen .fits file
+     *
+     * @param fits              Data from the chosen .fits file
+     * @param relativePeakLimit Minimum peak value of a chunk, relative to the 0-1 range of the image.
+     * @param pool              The pool to scan on, or null to scan on the calling thread.
+     * @return The peak of every chunk that may hold a star, in row-major chunk order.
+     * @throws IOException If the image data cannot be read.
+     */
+    public static List<XYCoord> findTheStars(Fits fits, float relativePeakLimit, ForkJoinPool pool) throws IOException, FitsException {
+        FloatImage image = FitsDocument.extractFloatImage(fits);
+        if (image == null) {
+            throw new IOException("The image data could not be read.");
+        }
 
-        float[][] floatDataFromFITSFile = FitsDocument.extractFloatData(fits);
-        float[] imageData = Array2D.flatten(floatDataFromFITSFile);
+        int[] candidates = findCandidates(image, relativePeakLimit, pool);
+        List<XYCoord> centroidCoords = new ArrayList<>(candidates.length / 2);
+        for (int i = 0; i < candidates.length; i += 2)
+            centroidCoords.add(new XYCoord(candidates[i], candidates[i + 1]));
 
-        if (maxIntensity == 0d) {
-            throw new ArithmeticException("Cannot divide by a maxIntensity of 0.");
-        }
-        Array2D.multiply(floatDataFromFITSFile, (float) (1f / maxIntensity));
+        _logger.info(String.format("Found %d places to check a Gaussian fit.", centroidCoords.size()));
 
-        int chunksize;
-        if (((width / 100) % 2) != 0) {
-            chunksize = width / 100;
-        } else {
-            chunksize = (width / 100) + 1;
-        }
-        if (chunksize < 11) {
-            chunksize = 11;
+        return centroidCoords;
+    }
+
+    /**
+     * Scans the image in square chunks and keeps the peak of every chunk that looks like it holds a star: a maximum
+     * above relativePeakLimit but below saturation, in a chunk whose standard deviation is at least a tenth of
+     * relativePeakLimit. Chunks are read in place from the image, and rows of chunks are scanned in parallel.
+     *
+     * @param image             The image, in the 0-1 range.
+     * @param relativePeakLimit Minimum peak value of a chunk.
+     * @param pool              The pool to scan on, or null to scan on the calling thread.
+     * @return The peaks as {x0, y0, x1, y1, ...}, in row-major chunk order.
+     */
+    public static int[] findCandidates(FloatImage image, float relativePeakLimit, ForkJoinPool pool) {
+        return scanChunks(image, relativePeakLimit, null, 0, pool);
+    }
+
+    /**
+     * Scans the image in square chunks like {@link #findCandidates(FloatImage, float, ForkJoinPool)}, but keeps the
+     * peak of a chunk when it rises more than detectionSigma times the local noise above the local background, so
+     * gradients and vignetting do not hide faint stars or raise false ones.
+     *
+     * @param image          The image, in the 0-1 range.
+     * @param background     The background and noise of the image.
+     * @param detectionSigma Minimum height of a peak above the background, in units of the noise, e.g.
+     *                       {@link #DEFAULT_DETECTION_SIGMA}.
+     * @param pool           The pool to scan on, or null to scan on the calling thread.
+     * @return The peaks as {x0, y0, x1, y1, ...}, in row-major chunk order.
+     */
+    public static int[] findCandidates(FloatImage image, BackgroundMap background, float detectionSigma, ForkJoinPool pool) {
+        return scanChunks(image, 0, background, detectionSigma, pool);
+    }
+
+    /**
+     * Finds one candidate per blob of pixels rising more than detectionSigma times the local noise above the local
+     * background, so a star spanning several chunks is reported once and a faint star next to a bright one is kept.
+     *
+     * @param image          The image, in the 0-1 range.
+     * @param background     The background and noise of the image.
+     * @param detectionSigma Minimum height of the pixels of a blob above the background, in units of the noise.
+     * @param minArea        Minimum number of pixels of a blob, e.g. 2 or more to skip hot pixels.
+     * @param pool           The pool to label on, or null to label on the calling thread.
+     * @return The brightest pixel of every blob that is not saturated, as {x0, y0, x1, y1, ...}, in row-major order
+     * of the first pixel of the blobs.
+     */
+    public static int[] findCandidates(FloatImage image, BackgroundMap background, float detectionSigma, int minArea,
+                                       ForkJoinPool pool) {
+        ConnectedComponents components = ConnectedComponents.label(image, background, detectionSigma, pool);
+
+        int[] peaks = new int[components.getCount() * 2];
+        int count = 0;
+        for (ConnectedComponents.Blob blob : components.getBlobs()) {
+            if (blob.getArea() < minArea || blob.getPeak() >= 0.95) continue;
+            peaks[count++] = blob.getPeakX();
+            peaks[count++] = blob.getPeakY();
         }
 
+        _logger.info(String.format("Found %d blobs, %d of them star candidates.", components.getCount(), count / 2));
+
+        return Arrays.copyOf(peaks, count);
+    }
+
+    /**
+     * @param background The background map to test the peaks against, or null to test them against
+     *                   relativePeakLimit and the standard deviation of their chunk.
+     */
+    private static int[] scanChunks(FloatImage image, float relativePeakLimit, BackgroundMap background,
+                                    float detectionSigma, ForkJoinPool pool) {
+        final int width = image.getWidth(), height = image.getHeight();
+
+        int chunksize = chunkSize(width);
         _logger.info(String.format("chunksize = %d", chunksize));
 
         // halfChunkSizeRoundedDown
-        int halfChunkSize = (int) Math.floor(((double) chunksize) / 2.0);
+        int halfChunkSize = chunksize / 2;
 
-        int centerX, centerY;
-        List<Float> testArray;
-        List<XYCoord> centroidCoords = new ArrayList<>();
-        XYCoord returnedCoordinates;
+        //Chunks are centered every chunksize pixels, from halfChunkSize up to the last one that fits
+        int chunksX = Math.max(0, (width - 2 * halfChunkSize + chunksize - 1) / chunksize);
+        int chunksY = Math.max(0, (height - 2 * halfChunkSize + chunksize - 1) / chunksize);
 
-        _logger.info("Running preliminary star finder loops.");
-        for (centerY = halfChunkSize; centerY < height - halfChunkSize; centerY += chunksize) {
-            for (centerX = halfChunkSize; centerX < width - halfChunkSize; centerX += chunksize) {
-                testArray = new ArrayList<>();
-
-                for (int y = centerY - halfChunkSize; y < centerY + halfChunkSize; y++) {
-                    for (int x = centerX - halfChunkSize; x < centerX + halfChunkSize; x++) {
-                        testArray.add(imageData[x + y * width]);
-                    }
-                }
+        //Two slots per chunk, x is -1 where there is no peak
+        int[] peaks = new int[chunksX * chunksY * 2];
 
-                returnedCoordinates = findMaximumValueInChunk(testArray.toArray(new Float[0]), centerX, centerY, chunksize, relativePeakLimit);
-                if (returnedCoordinates.y > 0.0) {
-                    centroidCoords.add(returnedCoordinates);
+        _logger.info("Running preliminary star finder loops.");
+        RowBands.forEach(chunksY, pool, (startChunkRow, endChunkRow) -> {
+            for (int chunkY = startChunkRow; chunkY < endChunkRow; chunkY++) {
+                int centerY = halfChunkSize + chunkY * chunksize;
+                for (int chunkX = 0; chunkX < chunksX; chunkX++) {
+                    int centerX = halfChunkSize + chunkX * chunksize;
+                    findMaximumValueInChunk(image, centerX, centerY, halfChunkSize, relativePeakLimit, background,
+                            detectionSigma, peaks, 2 * (chunkY * chunksX + chunkX));
                 }
             }
+        });
+
+        //Drop the chunks without a peak
+        int count = 0;
+        for (int i = 0; i < peaks.length; i += 2) {
+            if (peaks[i] >= 0) {
+                peaks[count++] = peaks[i];
+                peaks[count++] = peaks[i + 1];
+            }
         }
+        return Arrays.copyOf(peaks, count);
+    }
 
-        _logger.info(String.format("Found %d places to check a Gaussian fit.", centroidCoords.size()));
-
-        return centroidCoords;
+    /**
+     * @return The side of a chunk, an odd number of about 1% of the width, and at least 11.
+     */
+    private static int chunkSize(int width) {
+        int chunksize;
+        if (((width / 100) % 2) != 0) {
+            chunksize = width / 100;
+        } else {
+            chunksize = (width / 100) + 1;
+        }
+        if (chunksize < 11) {
+            chunksize = 11;
+        }
+        return chunksize;
     }
 
     /**
-     * Function utilized to find the highest data point within a chunk of the image.
+     * Function utilized to find the highest data point within a chunk of the image. The chunk spans
+     * [center - halfChunkSize, center + halfChunkSize) on both axes.
      *
-     * @param imageData         referring to the data of the image itself, used to pull the raw data of the file, like looking for the maximum values in each of the chunks.
-     * @param centerX           Rounded estimate to the nearest integer of the central x-coordinate of the image.
-     * @param centerY           Rounded estimate to the nearest integer of the central y-coordinate of the image.
-     * @param chunkSize         Determined by the pixel width of the image, width/100 pixels
+     * @param image             The image, in the 0-1 range.
+     * @param centerX           Rounded estimate to the nearest integer of the central x-coordinate of the chunk.
+     * @param centerY           Rounded estimate to the nearest integer of the central y-coordinate of the chunk.
+     * @param halfChunkSize     Half the side of the chunk, rounded down.
      * @param relativePeakLimit Finds the highest floating integer datapoint in the chunk of the image.
-     * @return
+     * @param background        The background map to test the peak against, or null to use relativePeakLimit.
+     * @param detectionSigma    Minimum height of the peak above the background, in units of the noise.
+     * @param peaks             Set to the x and y of the first maximum at pos, or x to -1 if the chunk has no star.
+     * @param pos               The index of the chunk in peaks.
      */
-    private static XYCoord findMaximumValueInChunk(Float[] imageData, int centerX, int centerY, int chunkSize, float relativePeakLimit) {
-        final Optional<Float> optionalMax = Arrays.stream(imageData).max(Float::compare);
-        if (optionalMax.isEmpty()) {
-            throw new NullPointerException("No maximum value could be found in the chunk.");
+    private static void findMaximumValueInChunk(FloatImage image, int centerX, int centerY, int halfChunkSize,
+                                                float relativePeakLimit, BackgroundMap background,
+                                                float detectionSigma, int[] peaks, int pos) {
+        float[] data = image.getData();
+        int startX = centerX - halfChunkSize, endX = centerX + halfChunkSize;
+        int startY = centerY - halfChunkSize, endY = centerY + halfChunkSize;
+        peaks[pos] = -1;
+        peaks[pos + 1] = -1;
+
+        //Find the maximum and its first position, and the sum for the mean
+        float max = Float.NEGATIVE_INFINITY;
+        int maxX = startX, maxY = startY;
+        double sum = 0;
+        for (int y = startY; y < endY; y++) {
+            int index = image.index(startX, y);
+            for (int x = startX; x < endX; x++, index++) {
+                float value = data[index];
+                sum += value;
+                if (value > max) {
+                    max = value;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
         }
-        final float max = optionalMax.get();
 
-        if ((max <= relativePeakLimit) || max >= 0.95) {
-            return new XYCoord(-1.0, -1.0);
+        if (max >= 0.95) {
+            return;
         }
 
-        float standardDev = (float) Array1D.standardDeviation(imageData);
-
-        if (standardDev < relativePeakLimit * 0.1) {
-            return new XYCoord(-1.0, -1.0);
+        //Test the peak against the local background and noise, which needs no second pass
+        if (background != null) {
+            float threshold = background.getBackground(maxX, maxY) + detectionSigma * background.getRms(maxX, maxY);
+            if (max > threshold) {
+                peaks[pos] = maxX;
+                peaks[pos + 1] = maxY;
+            }
+            return;
         }
 
-        int halfChunkSize = (int) Math.floor((double) chunkSize / 2.0d);
-
-        int x = 0, y = 0;
-
-        for (int deltaY = -halfChunkSize; deltaY < halfChunkSize; deltaY++) {
-            for (int deltaX = -halfChunkSize; deltaX < halfChunkSize; deltaX++) {
-                float valueChecking = imageData[(deltaX + halfChunkSize) + (deltaY + halfChunkSize) * chunkSize];
+        if (max <= relativePeakLimit) {
+            return;
+        }
 
-                if (Math.abs(valueChecking - max) < (Math.ulp(max) * 5)) {
-                    x = centerX + deltaX;
-                    y = centerY + deltaY;
-                    break;
-                }
+        //Sample standard deviation, as in Array1D
+        int n = (endX - startX) * (endY - startY);
+        double mean = sum / n, sumOfSquares = 0;
+        for (int y = startY; y < endY; y++) {
+            int index = image.index(startX, y);
+            for (int x = startX; x < endX; x++, index++) {
+                double delta = data[index] - mean;
+                sumOfSquares += delta * delta;
             }
         }
+        float standardDev = (float) Math.sqrt(sumOfSquares / (n - 1));
 
+        if (standardDev < relativePeakLimit * 0.1) {
+            return;
+        }
 
-        return new XYCoord(x, y);
+        peaks[pos] = maxX;
+        peaks[pos + 1] = maxY;
     }
 
     /**
-     * FUNCTION DOES NOT EXIST. FUTURE LABORERS, IMPLEMENT THIS FEATURE -DB
+     * Finds the star candidates of the chosen .fits file and fits a Gaussian to each of them.
      *
-     * @param image             raw data from the chosen .fits file.
-     * @param centerX           Rounded integer of the central x-coordinate.
-     * @param centerY           Rounded integer of the central y-coordinate.
-     * @param width             width of the .fits file, in pixels.
-     * @param height            height of the .fits file, in pixels.
-     * @param chunkSize         slice of the .fits file determined by the width of the image
-     * @param relativePeakLimit highest data value within each chunk.
-     * @return
+     * @param fits              Data from the chosen .fits file
+     * @param relativePeakLimit Minimum peak value of a chunk, relative to the 0-1 range of the image.
+     * @param pool              The pool to scan and fit on, or null to work on the calling thread.
+     * @return The fits that are {@link StarFitter.Quality#GOOD}, in row-major chunk order.
+     * @throws IOException If the image data cannot be read.
      */
-    private static boolean shouldAttemptGaussianFitAtThisPoint(Float[] image, int centerX, int centerY, int width, int height, int chunkSize, double relativePeakLimit) {
-        int halfChunkSize = (int) Math.floor(((double) chunkSize) / 2.0d);
-
-        float chunkAverage = 0.0f;
-        float valueChecking, valueCenter = image[centerX + centerY * width];
-
-        boolean isBiggest = true, isPeak = false;
+    public static List<StarFitter.StarFit> fitTheStars(Fits fits, float relativePeakLimit, ForkJoinPool pool) throws IOException {
+        FloatImage image = FitsDocument.extractFloatImage(fits);
+        if (image == null) {
+            throw new IOException("The image data could not be read.");
+        }
 
-        //Checks if center pixel is the highest in the chunk. Also calculates average.
-        for (int checkingY = centerY - halfChunkSize; checkingY < centerY + halfChunkSize; checkingY++) {
-            for (int checkingX = centerX - halfChunkSize; checkingX < centerX + halfChunkSize; checkingX++) {
-                valueChecking = image[checkingX + checkingY * width];
+        int[] candidates = findCandidates(image, relativePeakLimit, pool);
+        StarFitter.StarFit[] starFits = StarFitter.fit(image, candidates, pool);
 
-                if (checkingY != centerY || checkingX != centerX) { // Don't check against itself
-                    if (valueChecking >= valueCenter) {
-                        isBiggest = false;
-                    }
-                }
-            }
+        List<StarFitter.StarFit> stars = new ArrayList<>();
+        for (StarFitter.StarFit starFit : starFits) {
+            if (starFit.isGood()) stars.add(starFit);
         }
 
-        return isBiggest;
+        _logger.info(String.format("Fitted %d stars out of %d candidates.", stars.size(), starFits.length));
+
+        return stars;
     }
 
     public static class XYCoord {
@@ -3,29 +3,39 @@ package org.ccode.asset.ctn.image;
 import nom.tam.fits.FitsException;
 import org.ccode.asset.ctn.image.extensions.Fits;
 import org.ccode.asset.ctn.image.extensions.FitsDocument;
+import org.ccode.asset.ctn.image.extensions.FloatImage;
+import org.ccode.asset.ctn.image.extensions.MappedFitsReader;
+import org.ccode.asset.ctn.image.extensions.Selection;
 import org.ccode.asset.ctn.image.util.Constants;
+import org.ccode.asset.ctn.image.util.RowBands;
 import org.ccode.asset.ctn.logging.Logger;
 import org.ccode.asset.ctn.logging.LoggerBuilder;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class MakeDarkView {
     private static final Logger _logger = LoggerBuilder.defaultLogger(MakeDarkView.class.getName());
 
+    //Values further than this many standard deviations from the mean are left out of the dark
+    public static final float NUMBER_OF_STANDARD_DEVIATIONS_AWAY = 1.5f;
+
     /**
      * @param imageArray The array of Fits images.
      * @throws java.lang.IllegalArgumentException If the image sizes do not match.
      */
     public static float[][] loadAndSum(Fits[] imageArray) {
         int imageHeight = 0, imageWidth = 0;
-        float numberOfStandardDeviationsAway = 1.5f;
+        float numberOfStandardDeviationsAway = NUMBER_OF_STANDARD_DEVIATIONS_AWAY;
 
         float[][] deviationArray, meanArray, darkFloatArray;
         float[] pointArray;
@@ -53,18 +63,19 @@ public class MakeDarkView {
 
         deviationArray = new float[imageHeight][imageWidth];
         meanArray = new float[imageHeight][imageWidth];
+        int numberOfImages = imageArrayList.size();
+        pointArray = Selection.scratch(numberOfImages);
 
         for (int row = 0; row < imageHeight; row++) {
             for (int col = 0; col < imageWidth; col++) {
-                pointArray = new float[imageArrayList.size()];
                 int i = 0;
                 for (float[][] floatArray : imageArrayList) {
                     pointArray[i] = floatArray[row][col];
                     i++;
                 }
 
-                deviationArray[row][col] = calculateDeviation(pointArray);
-                meanArray[row][col] = calculateMean(pointArray);
+                deviationArray[row][col] = calculateDeviation(pointArray, numberOfImages);
+                meanArray[row][col] = calculateMean(pointArray, numberOfImages);
             }
         }
 
@@ -86,6 +97,106 @@ public class MakeDarkView {
         return darkFloatArray;
     }
 
+    /**
+     * Streaming version of {@link #loadAndSum(Fits[])} that never holds more than the output image.
+     * <p>
+     * Each row is handled on its own: a running mean and variance (Welford) is updated while the row is decoded from
+     * each frame, then the row is read again from each frame to average the values within
+     * {@link #NUMBER_OF_STANDARD_DEVIATIONS_AWAY} standard deviations of the mean. Frames are read through memory
+     * mappings, so re-reading a row does not decode the frame again.
+     *
+     * @param imageArray The array of Fits images. Each must have a file on disk.
+     * @param pool       The pool to split the rows over, or null to run on the calling thread.
+     * @return The master dark, mapped like {@link FitsDocument#extractFloatData}.
+     * @throws IOException              If an image cannot be read.
+     * @throws IllegalArgumentException If the image sizes do not match.
+     */
+    public static FloatImage loadAndSumStreaming(Fits[] imageArray, ForkJoinPool pool) throws IOException {
+        int numberOfImages = imageArray.length;
+        MappedFitsReader[] readers = new MappedFitsReader[numberOfImages];
+
+        try {
+            for (int k = 0; k < numberOfImages; k++) {
+                readers[k] = new MappedFitsReader(Paths.get(imageArray[k].getFilePath()));
+                if (readers[k].getWidth() != readers[0].getWidth() || readers[k].getHeight() != readers[0].getHeight()) {
+                    throw new IllegalArgumentException("Image sizes do not match.");
+                }
+            }
+
+            //Find the range of every frame up front, one frame per task
+            RowBands.forEach(numberOfImages, pool, (startImage, endImage) -> {
+                for (int k = startImage; k < endImage; k++) {
+                    try {
+                        readers[k].getMinMax();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+
+            int imageWidth = readers[0].getWidth();
+            FloatImage darkImage = new FloatImage(imageWidth, readers[0].getHeight());
+            float[] darkData = darkImage.getData();
+
+            RowBands.forEach(darkImage.getHeight(), pool, (startRow, endRow) -> {
+                //Row-sized working arrays, one set per band
+                FloatImage row = new FloatImage(imageWidth, 1);
+                float[] rowData = row.getData();
+                float[] mean = new float[imageWidth];
+                float[] squaredDistance = new float[imageWidth];
+                float[] limit = new float[imageWidth];
+                int[] sumCounter = new int[imageWidth];
+
+                try {
+                    for (int r = startRow; r < endRow; r++) {
+                        Arrays.fill(mean, 0);
+                        Arrays.fill(squaredDistance, 0);
+
+                        //Running mean and variance of the row over all frames
+                        for (int k = 0; k < numberOfImages; k++) {
+                            readers[k].readNormalizedRows(r, row);
+                            for (int col = 0; col < imageWidth; col++) {
+                                float delta = rowData[col] - mean[col];
+                                mean[col] += delta / (k + 1);
+                                squaredDistance[col] += delta * (rowData[col] - mean[col]);
+                            }
+                        }
+                        for (int col = 0; col < imageWidth; col++) {
+                            limit[col] = NUMBER_OF_STANDARD_DEVIATIONS_AWAY * (float) Math.sqrt(squaredDistance[col] / numberOfImages);
+                        }
+
+                        //Average the values close enough to the mean
+                        int start = r * imageWidth;
+                        Arrays.fill(sumCounter, 0);
+                        for (int k = 0; k < numberOfImages; k++) {
+                            readers[k].readNormalizedRows(r, row);
+                            for (int col = 0; col < imageWidth; col++) {
+                                if (Math.abs(rowData[col] - mean[col]) <= limit[col]) {
+                                    sumCounter[col]++;
+                                    darkData[start + col] = (darkData[start + col] * (float) (sumCounter[col] - 1) + rowData[col]) / (float) sumCounter[col];
+                                }
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            return darkImage;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (MappedFitsReader reader : readers) {
+                if (reader != null) reader.close();
+            }
+        }
+    }
+
+    public static FloatImage loadAndSumStreaming(Fits[] imageArray) throws IOException {
+        return loadAndSumStreaming(imageArray, null);
+    }
+
     /**
      * @param imageArray
      * @return true if dimensions match
@@ -110,13 +221,24 @@ public class MakeDarkView {
      * @return The mean/average
      */
     public static float calculateMean(float[] li) {
+        return calculateMean(li, li.length);
+    }
+
+    /**
+     * Calculates the mean/average of the first n floats of a list.
+     *
+     * @param li The list of floats
+     * @param n  The number of floats to use
+     * @return The mean/average
+     */
+    public static float calculateMean(float[] li, int n) {
         float total = 0;
 
-        for (float item : li) {
-            total += item;
+        for (int i = 0; i < n; i++) {
+            total += li[i];
         }
 
-        return total / li.length;
+        return total / n;
     }
 
     /**
@@ -126,15 +248,26 @@ public class MakeDarkView {
      * @return The standard deviation of the list
      */
     public static float calculateDeviation(float[] li) {
-        float mean = calculateMean(li);
+        return calculateDeviation(li, li.length);
+    }
+
+    /**
+     * Calculates the standard deviation of the first n floats of a list.
+     *
+     * @param li The list of floats
+     * @param n  The number of floats to use
+     * @return The standard deviation of those floats
+     */
+    public static float calculateDeviation(float[] li, int n) {
+        float mean = calculateMean(li, n);
         float deviation = 0;
 
         // calculate the standard deviation
-        for (float item : li) {
-            deviation += (float) Math.pow(item - mean, 2);
+        for (int i = 0; i < n; i++) {
+            deviation += (float) Math.pow(li[i] - mean, 2);
         }
 
-        return (float) Math.sqrt(deviation / li.length);
+        return (float) Math.sqrt(deviation / n);
     }
 
 
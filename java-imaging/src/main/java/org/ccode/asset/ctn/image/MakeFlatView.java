@@ -4,6 +4,10 @@ package org.ccode.asset.ctn.image;
 import org.ccode.asset.ctn.image.extensions.Array2D;
 import org.ccode.asset.ctn.image.extensions.Fits;
 import org.ccode.asset.ctn.image.extensions.FitsDocument;
+import org.ccode.asset.ctn.image.extensions.FrameLoader;
+import org.ccode.asset.ctn.image.extensions.Histogram;
+import org.ccode.asset.ctn.image.extensions.ImageExpression;
+import org.ccode.asset.ctn.image.util.RowBands;
 import org.ccode.asset.ctn.logging.Logger;
 import org.ccode.asset.ctn.logging.LoggerBuilder;
 import org.jfree.chart.ChartFactory;
@@ -26,8 +30,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Takes flat images and separates them into corrected red, green, blue, and luminance flat images
@@ -47,20 +53,9 @@ public class MakeFlatView {
      * @return
      */
     public static int[] createHistogram(float[] data, int numBins, float minX, float maxX) {
-        int[] histogram = new int[numBins];
-        float binWidth = (maxX - minX) / (numBins - 1);
-
-        for (float value : data) {
-            //Clip extreme values
-            if (value > maxX) value = maxX;
-            if (value < minX) value = minX;
-
-            //Update the appropriate bin
-            int binIndex = (int) ((value - minX) / binWidth);
-            histogram[binIndex]++;
-        }
-
-        return histogram;
+        Histogram histogram = new Histogram(numBins, minX, maxX);
+        histogram.add(data, 0, data.length);
+        return histogram.getCounts();
     }
 
     /**
@@ -73,54 +68,21 @@ public class MakeFlatView {
      *
      * @param histogram
      * @return
+     * @see Histogram#analyze()
      */
     public static Map<String, Float> analyzeHistogram(int[] histogram) {
-        //For the mean
-        int maxVal = 0, maxIndex = 0;
-
-        //Find the max value and calculate the mean
-        for (int i = 1; i < HISTOGRAM_BINS; i++) {
-            if (histogram[i] > maxVal) {
-                maxVal = histogram[i];
-                maxIndex = i;
-            }
-        }
-        float mean = (float) maxIndex / (float) HISTOGRAM_BINS;
-
-        //For the standard deviation
-        float histStart = 0, histEnd = 0;
-
-        //What percentage of the maximum is considered the start/end of the histogram
-        final float STARTING_THRESHOLD = 1f / 100f;
-
-        //Find the start of the histogram
-        for (int i = 1; i < HISTOGRAM_BINS; i++) {
-            if (histogram[i] > maxVal * STARTING_THRESHOLD) {
-                histStart = (float) i / (float) HISTOGRAM_BINS;
-                break;
-            }
-        }
-
-        //Find the end of the histogram
-        for (int i = HISTOGRAM_BINS - 1; i > 0; i--) {
-            if (histogram[i] > maxVal * STARTING_THRESHOLD) {
-                histEnd = (float) i / (float) HISTOGRAM_BINS;
-                break;
-            }
-        }
-
-        //Estimate the standard deviation
-        //The interval of the normal distribution is about 6 standard deviations
-        float sd = (histEnd - histStart) / 6;
+        Histogram wrapped = new Histogram(HISTOGRAM_BINS, 0, 1);
+        System.arraycopy(histogram, 0, wrapped.getCounts(), 0, HISTOGRAM_BINS);
+        Histogram.Stats stats = wrapped.analyze();
 
         //Create a Map with the stats
-        Map<String, Float> stats = new HashMap<>();
-        stats.put("mean", mean);
-        stats.put("sd", sd);
-        stats.put("histStart", histStart);
-        stats.put("histEnd", histEnd);
+        Map<String, Float> map = new HashMap<>();
+        map.put("mean", stats.getMean());
+        map.put("sd", stats.getSd());
+        map.put("histStart", stats.getStart());
+        map.put("histEnd", stats.getEnd());
 
-        return stats;
+        return map;
     }
 
     /**
@@ -131,14 +93,28 @@ public class MakeFlatView {
      * @param blueImage
      */
     public static void equalizeColors(float[][] redImage, float[][] greenImage, float[][] blueImage) {
-        //Get stats
-        Map<String, Float> redStat = analyzeHistogram(createHistogram(Array2D.flatten(redImage), HISTOGRAM_BINS, 0, 1));
-        Map<String, Float> greenStat = analyzeHistogram(createHistogram(Array2D.flatten(greenImage), HISTOGRAM_BINS, 0, 1));
-        Map<String, Float> blueStat = analyzeHistogram(createHistogram(Array2D.flatten(blueImage), HISTOGRAM_BINS, 0, 1));
+        equalizeColors(redImage, greenImage, blueImage, null);
+    }
 
-        float redMean = redStat.get("mean"), redSD = redStat.get("sd");
-        float greenMean = greenStat.get("mean"), greenSD = greenStat.get("sd");
-        float blueMean = blueStat.get("mean"), blueSD = blueStat.get("sd");
+    /**
+     * Applies a transformation to equalize the color mean and standard deviations for the histograms
+     *
+     * @param redImage
+     * @param greenImage
+     * @param blueImage
+     * @param pool       The pool to run on, or null to run on the calling thread.
+     */
+    public static void equalizeColors(float[][] redImage, float[][] greenImage, float[][] blueImage, ForkJoinPool pool) {
+        //Get stats, binning the three colors in one pass
+        Histogram[] histograms = Histogram.of(new ImageExpression[]{ImageExpression.of(redImage),
+                ImageExpression.of(greenImage), ImageExpression.of(blueImage)}, HISTOGRAM_BINS, 0, 1, pool);
+        Histogram.Stats redStat = histograms[0].analyze();
+        Histogram.Stats greenStat = histograms[1].analyze();
+        Histogram.Stats blueStat = histograms[2].analyze();
+
+        float redMean = redStat.getMean(), redSD = redStat.getSd();
+        float greenMean = greenStat.getMean(), greenSD = greenStat.getSd();
+        float blueMean = blueStat.getMean(), blueSD = blueStat.getSd();
 
 		/*Print stats
 		 _logger.log("\tSD\t\tMean");
@@ -171,15 +147,10 @@ public class MakeFlatView {
         ImageParameters.greenA = greenA;
         ImageParameters.greenB = greenB;
 
-        //Apply transformations
-        Array2D.multiply(greenImage, greenA);
-        Array2D.add(greenImage, greenB);
-
-        Array2D.multiply(blueImage, blueA);
-        Array2D.add(blueImage, blueB);
-
-        Array2D.multiply(redImage, redA);
-        Array2D.add(redImage, redB);
+        //Apply transformations, one pass per color
+        ImageExpression.of(greenImage).mul(greenA).add(greenB).evaluateInto(greenImage, pool);
+        ImageExpression.of(blueImage).mul(blueA).add(blueB).evaluateInto(blueImage, pool);
+        ImageExpression.of(redImage).mul(redA).add(redB).evaluateInto(redImage, pool);
     }
 
     /**
@@ -191,27 +162,31 @@ public class MakeFlatView {
      * @return
      */
     public static float[][] createLuminance(float[][] redImage, float[][] greenImage, float[][] blueImage) {
-        //Create copies of the arrays as to not modify the originals
-        float[][] redCopy = Array2D.copy(redImage);
-        float[][] greenCopy = Array2D.copy(greenImage);
-        float[][] blueCopy = Array2D.copy(blueImage);
+        return createLuminance(redImage, greenImage, blueImage, null);
+    }
 
+    /**
+     * Creates a luminance array
+     *
+     * @param redImage
+     * @param greenImage
+     * @param blueImage
+     * @param pool       The pool to run on, or null to run on the calling thread.
+     * @return
+     */
+    public static float[][] createLuminance(float[][] redImage, float[][] greenImage, float[][] blueImage, ForkJoinPool pool) {
         //Luminance = 0.222*red + 0.707*green + 0.071*blue
         //Based on how humans see color
-        Array2D.multiply(redCopy, 0.222f);
-        Array2D.multiply(greenCopy, 0.707f);
-        Array2D.multiply(blueCopy, 0.071f);
-        float[][] luminance = Array2D.add(redCopy, greenCopy, blueCopy);
+        //The originals are not modified
+        ImageExpression luminance = ImageExpression.of(redImage).mul(0.222f)
+                .plus(ImageExpression.of(greenImage).mul(0.707f))
+                .plus(ImageExpression.of(blueImage).mul(0.071f));
 
-        //Get stats
-        Map<String, Float> luminanceStats = analyzeHistogram(
-                createHistogram(Array2D.flatten(luminance), HISTOGRAM_BINS, 0, 1));
+        //Get stats, binning the luminance as it is computed
+        Histogram.Stats luminanceStats = Histogram.of(luminance, HISTOGRAM_BINS, 0, 1, pool).analyze();
 
-        //Shifts luminance histogram to center mean at 0.5
-        Array2D.add(luminance, 0.5f - luminanceStats.get("mean"));
-        Array2D.clip(luminance, 0, 1);
-
-        return luminance;
+        //Shifts luminance histogram to center mean at 0.5, computing the result in one more pass
+        return luminance.add(0.5f - luminanceStats.getMean()).clip(0, 1).evaluate(pool);
     }
 
     /**
@@ -312,6 +287,38 @@ public class MakeFlatView {
      * @throws IllegalArgumentException If the images are different sizes.
      */
     public static boolean execute(Fits[] flatImages, String outputFolder) throws FileNotFoundException, IllegalArgumentException {
+        try (FrameLoader loader = new FrameLoader()) {
+            return execute(flatImages, outputFolder, loader);
+        }
+    }
+
+    /**
+     * Creates flat images (returns true upon success)
+     *
+     * @param flatImages
+     * @param outputFolder The folder where the images should be written to.
+     * @param loader       The loader decoding the next flat images while the current one is processed.
+     * @return If the process was successful.
+     * @throws FileNotFoundException    If the outputFolder is not a valid directory.
+     * @throws IllegalArgumentException If the images are different sizes.
+     */
+    public static boolean execute(Fits[] flatImages, String outputFolder, FrameLoader loader) throws FileNotFoundException, IllegalArgumentException {
+        return execute(flatImages, outputFolder, loader, false);
+    }
+
+    /**
+     * Creates flat images (returns true upon success)
+     *
+     * @param flatImages
+     * @param outputFolder The folder where the images should be written to.
+     * @param loader       The loader decoding the next flat images while the current one is processed.
+     * @param superPixel   Whether to make half-resolution flats with one pixel per 2x2 Bayer quad instead of
+     *                     interpolating full-resolution ones, at a quarter of the memory and work.
+     * @return If the process was successful.
+     * @throws FileNotFoundException    If the outputFolder is not a valid directory.
+     * @throws IllegalArgumentException If the images are different sizes.
+     */
+    public static boolean execute(Fits[] flatImages, String outputFolder, FrameLoader loader, boolean superPixel) throws FileNotFoundException, IllegalArgumentException {
         //Check that destination is a valid Folder
         if (!Files.isDirectory(Paths.get(outputFolder))) {
             try {
@@ -338,6 +345,12 @@ public class MakeFlatView {
 
         _logger.info(String.format("Width: %d, Height: %d\n", width, height));
 
+        //Super pixels are half the size of the raw image
+        if (superPixel) {
+            width /= 2;
+            height /= 2;
+        }
+
         //Create RGB+L arrays
         float[][] redFlat = new float[height][width];
         float[][] greenFlat = new float[height][width];
@@ -345,24 +358,39 @@ public class MakeFlatView {
         float[][] luminanceFlat;
 
 //		int i = 0;
-        //Create RGB+L flats for each flat image
-        for (Fits flatImage : flatImages) {
-            //Extract image RGB data
-            FitsDocument.extractRGB(flatImage, redFlat, greenFlat, blueFlat);
-
-            //Equalize the color histograms
-            equalizeColors(redFlat, greenFlat, blueFlat);
-
-            //Create luminance image
-            luminanceFlat = createLuminance(redFlat, greenFlat, blueFlat);
-
-            //Write RGB+L flats to files
-            String fileName = flatImage.getFileName();
-            FitsDocument.writeFits(String.format("%s/RedFlat/%s", outputFolder, fileName), redFlat);
-            FitsDocument.writeFits(String.format("%s/GreenFlat/%s", outputFolder, fileName), greenFlat);
-            FitsDocument.writeFits(String.format("%s/BlueFlat/%s", outputFolder, fileName), blueFlat);
-            FitsDocument.writeFits(String.format("%s/LuminanceFlat/%s", outputFolder, fileName), luminanceFlat);
+        //Create RGB+L flats for each flat image, decoding the next ones in the background
+        ForkJoinPool pool = RowBands.newPool(0);
+        try (FrameLoader.Prefetch<float[][]> frames = loader.prefetch(Arrays.asList(flatImages), FitsDocument::extractFloatData)) {
+            for (Fits flatImage : flatImages) {
+                //Extract image RGB data
+                float[][] floatData = frames.next();
+                if (floatData == null) return false;
+                String bayerPat = flatImage.checkHeaderVar("BAYERPAT");
+                if (superPixel) {
+                    FitsDocument.extractSuperPixelRGB(floatData, bayerPat, redFlat, greenFlat, blueFlat, pool);
+                } else {
+                    FitsDocument.extractRGB(floatData, bayerPat, redFlat, greenFlat, blueFlat, pool);
+                }
+
+                //Equalize the color histograms
+                equalizeColors(redFlat, greenFlat, blueFlat, pool);
+
+                //Create luminance image
+                luminanceFlat = createLuminance(redFlat, greenFlat, blueFlat, pool);
+
+                //Write RGB+L flats to files
+                String fileName = flatImage.getFileName();
+                FitsDocument.writeFits(String.format("%s/RedFlat/%s", outputFolder, fileName), redFlat);
+                FitsDocument.writeFits(String.format("%s/GreenFlat/%s", outputFolder, fileName), greenFlat);
+                FitsDocument.writeFits(String.format("%s/BlueFlat/%s", outputFolder, fileName), blueFlat);
+                FitsDocument.writeFits(String.format("%s/LuminanceFlat/%s", outputFolder, fileName), luminanceFlat);
 //			FitsDocument.createPNG(String.format("%s/test%d.png", outputFolder, i++), redFlat, greenFlat, blueFlat);
+            }
+        } catch (IOException e) {
+            _logger.logException(e);
+            return false;
+        } finally {
+            pool.shutdown();
         }
 
         //Successfully created flat images
@@ -370,12 +398,14 @@ public class MakeFlatView {
     }
 
     public static void execute(String sourceFolder, String outputFolder) throws IllegalArgumentException, IOException {
-        //Get Fits files in the folder
-        Fits[] fitImages = FitsDocument.getFitsFilesFromFolder(sourceFolder);
-        if (fitImages == null) return;
+        try (FrameLoader loader = new FrameLoader()) {
+            //Get Fits files in the folder
+            Fits[] fitImages = FitsDocument.getFitsFilesFromFolder(sourceFolder, loader);
+            if (fitImages == null) return;
 
-        //Call execute function
-        execute(fitImages, outputFolder);
+            //Call execute function
+            execute(fitImages, outputFolder, loader);
+        }
     }
 
     public static void main(String[] args) {
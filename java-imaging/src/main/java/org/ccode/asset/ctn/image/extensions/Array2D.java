@@ -81,8 +81,7 @@ public class Array2D {
 
         //Apply addition
         for (int row = 0; row < height; row++)
-            for (int col = 0; col < width; col++)
-                arr[row][col] += num;
+            ArrayKernels.get().add(arr[row], 0, width, num);
     }
 
     /**
@@ -111,8 +110,7 @@ public class Array2D {
 
             //Add all the elements to the result array
             for (int row = 0; row < height; row++)
-                for (int col = 0; col < width; col++)
-                    result[row][col] += arr[row][col];
+                ArrayKernels.get().add(result[row], 0, arr[row], 0, width);
         }
 
         return result;
@@ -131,8 +129,7 @@ public class Array2D {
 
         //Add all the elements to the original array
         for (int row = 0; row < height; row++)
-            for (int col = 0; col < width; col++)
-                original[row][col] += arr[row][col];
+            ArrayKernels.get().add(original[row], 0, arr[row], 0, width);
     }
 
     /**
@@ -148,8 +145,7 @@ public class Array2D {
 
         //Apply multiplication
         for (int row = 0; row < height; row++)
-            for (int col = 0; col < width; col++)
-                arr[row][col] *= num;
+            ArrayKernels.get().multiply(arr[row], 0, width, num);
     }
 
     /**
@@ -165,15 +161,8 @@ public class Array2D {
         int height = arr.length;
 
         //Loop through the array and clip values
-        for (int row = 0; row < height; row++) {
-            for (int col = 0; col < width; col++) {
-                if (arr[row][col] > max) {
-                    arr[row][col] = max;
-                } else if (arr[row][col] < min) {
-                    arr[row][col] = min;
-                }
-            }
-        }
+        for (int row = 0; row < height; row++)
+            ArrayKernels.get().clip(arr[row], 0, width, min, max);
     }
 
     /**
@@ -208,4 +197,140 @@ public class Array2D {
         }
     }
 
+    /**
+     * Converts an image into a 1D array. A contiguous image that covers its whole backing array is returned as is.
+     *
+     * @param image The image to be flattened.
+     * @return The flattened array
+     */
+    public static float[] flatten(FloatImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        //No copy needed when the backing array already is the flattened image
+        if (image.getOffset() == 0 && image.isContiguous() && image.getData().length == width * height) {
+            return image.getData();
+        }
+
+        float[] flattened = new float[width * height];
+        for (int row = 0; row < height; row++)
+            image.getRow(row, flattened, row * width);
+
+        return flattened;
+    }
+
+    /**
+     * Adds the given number to each pixel of the image.
+     *
+     * @param image The image whose pixels should be increased.
+     * @param num   The value that should be added to each pixel.
+     */
+    public static void add(FloatImage image, float num) {
+        int width = image.getWidth();
+
+        for (int row = 0; row < image.getHeight(); row++) {
+            int start = image.rowOffset(row);
+            ArrayKernels.get().add(image.getData(), start, start + width, num);
+        }
+    }
+
+    /**
+     * Adds the corresponding pixels of each given image together into a new image.
+     *
+     * @param images The images to be added.
+     * @return A new image holding the sum.
+     * @throws IllegalArgumentException If the width or height does not match the other images.
+     */
+    public static FloatImage add(FloatImage... images) {
+        FloatImage result = new FloatImage(images[0].getWidth(), images[0].getHeight());
+
+        for (FloatImage image : images)
+            add(result, image);
+
+        return result;
+    }
+
+    /**
+     * Adds the pixels of one image to the original image.
+     *
+     * @param original The image whose values should be affected by the addition.
+     * @param image    The image whose values are being added to the affected image.
+     * @throws IllegalArgumentException If the width or height of the images do not match.
+     */
+    public static void add(FloatImage original, FloatImage image) {
+        checkSameSize(original, image);
+
+        int width = original.getWidth();
+
+        for (int row = 0; row < original.getHeight(); row++)
+            ArrayKernels.get().add(original.getData(), original.rowOffset(row), image.getData(), image.rowOffset(row), width);
+    }
+
+    /**
+     * Multiplies each pixel of the image by the given number.
+     *
+     * @param image The image whose pixels should be multiplied.
+     * @param num   The value that should be multiplied to each pixel.
+     */
+    public static void multiply(FloatImage image, float num) {
+        int width = image.getWidth();
+
+        for (int row = 0; row < image.getHeight(); row++) {
+            int start = image.rowOffset(row);
+            ArrayKernels.get().multiply(image.getData(), start, start + width, num);
+        }
+    }
+
+    /**
+     * Clips pixel values between min and max
+     *
+     * @param image
+     * @param min
+     * @param max
+     */
+    public static void clip(FloatImage image, float min, float max) {
+        int width = image.getWidth();
+
+        for (int row = 0; row < image.getHeight(); row++) {
+            int start = image.rowOffset(row);
+            ArrayKernels.get().clip(image.getData(), start, start + width, min, max);
+        }
+    }
+
+    /**
+     * Creates a deep, contiguous copy of the image.
+     *
+     * @param image The image that needs to be copied.
+     * @return A new image that holds the same values in a new memory location.
+     */
+    public static FloatImage copy(FloatImage image) {
+        return image.copy();
+    }
+
+    /**
+     * Populates an image with a specific value.
+     *
+     * @param image The image that needs to be populated.
+     * @param value The value that every pixel will be set to.
+     */
+    public static void setValue(FloatImage image, float value) {
+        for (int row = 0; row < image.getHeight(); row++) {
+            int start = image.rowOffset(row);
+            Arrays.fill(image.getData(), start, start + image.getWidth(), value);
+        }
+    }
+
+    /**
+     * Checks that two images have the same dimensions.
+     *
+     * @param first
+     * @param second
+     * @throws IllegalArgumentException If the width or height of the images do not match.
+     */
+    public static void checkSameSize(FloatImage first, FloatImage second) {
+        if (!first.hasSameSize(second)) {
+            throw new IllegalArgumentException("The width or height of an array does not match the others.");
+        }
+    }
+
 }
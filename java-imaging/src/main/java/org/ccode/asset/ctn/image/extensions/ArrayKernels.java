@@ -0,0 +1,108 @@
+package org.ccode.asset.ctn.image.extensions;
+
+/**
+ * Element-wise kernels over ranges of float arrays, used by Array2D and Combine for every row they touch.
+ * <p>
+ * This class holds the scalar Java 11 implementation. On JDK 17+ the jar also carries a subclass built on the
+ * incubating Vector API (see src/main/java17) that is picked at startup when the jdk.incubator.vector module is
+ * available, e.g. with {@code java --add-modules jdk.incubator.vector}. Set the system property
+ * {@code imaging.vector=false} to force the scalar kernels. Both give identical results.
+ */
+public class ArrayKernels {
+    private static final String VECTOR_IMPLEMENTATION = "org.ccode.asset.ctn.image.extensions.VectorArrayKernels";
+    private static final ArrayKernels INSTANCE = select();
+
+    protected ArrayKernels() {
+    }
+
+    /**
+     * @return The vectorized kernels if they can be loaded, the scalar kernels otherwise.
+     */
+    private static ArrayKernels select() {
+        if (!Boolean.parseBoolean(System.getProperty("imaging.vector", "true"))) {
+            return new ArrayKernels();
+        }
+
+        //Only present in the Java 17 layer of the jar, and only loadable with the incubator module
+        try {
+            return (ArrayKernels) Class.forName(VECTOR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ArrayKernels();
+        }
+    }
+
+    /**
+     * @return The kernels in use.
+     */
+    public static ArrayKernels get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return A short name of the implementation in use, for logging.
+     */
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * a[i] += num for i in [from, to)
+     */
+    public void add(float[] a, int from, int to, float num) {
+        for (int i = from; i < to; i++)
+            a[i] += num;
+    }
+
+    /**
+     * a[i] *= num for i in [from, to)
+     */
+    public void multiply(float[] a, int from, int to, float num) {
+        for (int i = from; i < to; i++)
+            a[i] *= num;
+    }
+
+    /**
+     * a[i] /= num for i in [from, to)
+     */
+    public void divide(float[] a, int from, int to, float num) {
+        for (int i = from; i < to; i++)
+            a[i] /= num;
+    }
+
+    /**
+     * a[i] = a[i] * mul + add for i in [from, to), rounded after each operation
+     */
+    public void multiplyAdd(float[] a, int from, int to, float mul, float add) {
+        for (int i = from; i < to; i++)
+            a[i] = a[i] * mul + add;
+    }
+
+    /**
+     * Clips a[i] between min and max for i in [from, to)
+     */
+    public void clip(float[] a, int from, int to, float min, float max) {
+        for (int i = from; i < to; i++) {
+            if (a[i] > max) {
+                a[i] = max;
+            } else if (a[i] < min) {
+                a[i] = min;
+            }
+        }
+    }
+
+    /**
+     * dst[dstPos + i] += src[srcPos + i] for i in [0, length)
+     */
+    public void add(float[] dst, int dstPos, float[] src, int srcPos, int length) {
+        for (int i = 0; i < length; i++)
+            dst[dstPos + i] += src[srcPos + i];
+    }
+
+    /**
+     * dst[dstPos + i] = a[aPos + i] - b[bPos + i] for i in [0, length)
+     */
+    public void subtract(float[] dst, int dstPos, float[] a, int aPos, float[] b, int bPos, int length) {
+        for (int i = 0; i < length; i++)
+            dst[dstPos + i] = a[aPos + i] - b[bPos + i];
+    }
+}
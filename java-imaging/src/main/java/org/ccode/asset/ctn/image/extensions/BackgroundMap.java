@@ -0,0 +1,312 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The sky background and its noise over an image, estimated on a coarse grid of square meshes and interpolated
+ * bilinearly between the mesh centers, in the manner of SExtractor.
+ * <p>
+ * Each mesh is sigma-clipped around its median until no more pixels are rejected. The background of the mesh is then
+ * its mode, estimated as 2.5 * median - 1.5 * mean, or the median when stars skew the distribution too much, and the
+ * noise (RMS) is the standard deviation of the pixels left. Rows of meshes are estimated in parallel, and the grid is
+ * smoothed with a 3x3 median filter so that meshes covered by a bright star or galaxy take the value of their
+ * neighbours. The full resolution maps are {@link ImageExpression}s, so they are only computed, a row at a time, when
+ * evaluated, e.g. while subtracting the background from an image.
+ */
+public class BackgroundMap {
+    public static final int DEFAULT_MESH_SIZE = 64;
+
+    //Pixels further than this many standard deviations from the median are clipped
+    private static final float CLIP_SIGMA = 3f;
+    private static final int MAX_CLIP_ITERATIONS = 10;
+    //Beyond this skew, (mean - median) / sigma, the mode estimate is unreliable and the median is used
+    private static final float MAX_MODE_SKEW = 0.3f;
+
+    private final int width, height, meshSize, meshesX, meshesY;
+    //Coarse grids, meshesX values per row
+    private final float[] background, rms;
+    //Centers of the meshes along each axis
+    private final float[] centersX, centersY;
+    //Mesh column left of every image column, and the weight of the next one, shared by every row of the maps
+    private final int[] columnMeshes;
+    private final float[] columnWeights;
+
+    private BackgroundMap(int width, int height, int meshSize) {
+        this.width = width;
+        this.height = height;
+        this.meshSize = meshSize;
+        this.meshesX = (width + meshSize - 1) / meshSize;
+        this.meshesY = (height + meshSize - 1) / meshSize;
+        this.background = new float[meshesX * meshesY];
+        this.rms = new float[meshesX * meshesY];
+        this.centersX = centers(width, meshSize, meshesX);
+        this.centersY = centers(height, meshSize, meshesY);
+        this.columnMeshes = new int[width];
+        this.columnWeights = new float[width];
+        for (int x = 0; x < width; x++) {
+            columnMeshes[x] = lowerMesh(centersX, x);
+            columnWeights[x] = weight(centersX, columnMeshes[x], x);
+        }
+    }
+
+    /**
+     * Estimates the background with meshes of {@link #DEFAULT_MESH_SIZE} pixels.
+     *
+     * @see #estimate(FloatImage, int, ForkJoinPool)
+     */
+    public static BackgroundMap estimate(FloatImage image, ForkJoinPool pool) {
+        return estimate(image, DEFAULT_MESH_SIZE, pool);
+    }
+
+    /**
+     * Estimates the background and noise of every mesh.
+     *
+     * @param image    The image.
+     * @param meshSize The side of the meshes, in pixels. It should be several times the size of the stars, and smaller
+     *                 than the scale of the gradients. The last row and column of meshes may be smaller.
+     * @param pool     The pool to estimate on, or null to estimate on the calling thread.
+     * @return The background map.
+     */
+    public static BackgroundMap estimate(FloatImage image, int meshSize, ForkJoinPool pool) {
+        if (meshSize < 2) {
+            throw new IllegalArgumentException("The mesh size must be at least 2.");
+        }
+        BackgroundMap map = new BackgroundMap(image.getWidth(), image.getHeight(), meshSize);
+        float[] meshBackground = new float[map.background.length], meshRms = new float[map.rms.length];
+
+        RowBands.forEach(map.meshesY, pool, (startMeshRow, endMeshRow) -> {
+            float[] values = new float[meshSize * meshSize];
+            for (int meshY = startMeshRow; meshY < endMeshRow; meshY++) {
+                for (int meshX = 0; meshX < map.meshesX; meshX++) {
+                    int x = meshX * meshSize, y = meshY * meshSize;
+                    int w = Math.min(meshSize, image.getWidth() - x), h = Math.min(meshSize, image.getHeight() - y);
+                    int i = meshY * map.meshesX + meshX;
+                    estimateMesh(image.view(x, y, w, h), values, meshBackground, meshRms, i);
+                }
+            }
+        });
+
+        fillEmptyMeshes(meshBackground);
+        fillEmptyMeshes(meshRms);
+        map.medianFilter(meshBackground, map.background);
+        map.medianFilter(meshRms, map.rms);
+        return map;
+    }
+
+    /**
+     * Sigma-clips the pixels of one mesh, and sets the background and RMS at index i to their estimates, or to NaN if
+     * the mesh only holds NaN.
+     *
+     * @param values A buffer for the pixels of the mesh.
+     */
+    private static void estimateMesh(FloatImage mesh, float[] values, float[] background, float[] rms, int i) {
+        float[] data = mesh.getData();
+        int n = 0;
+        for (int y = 0; y < mesh.getHeight(); y++) {
+            int index = mesh.rowOffset(y);
+            for (int x = 0; x < mesh.getWidth(); x++) {
+                float value = data[index + x];
+                if (!Float.isNaN(value)) values[n++] = value;
+            }
+        }
+        if (n == 0) {
+            background[i] = Float.NaN;
+            rms[i] = Float.NaN;
+            return;
+        }
+
+        float median = 0, mean = 0, sigma = 0;
+        for (int iteration = 0; iteration < MAX_CLIP_ITERATIONS; iteration++) {
+            median = Selection.median(values, n);
+
+            double sum = 0, sumOfSquares = 0;
+            for (int j = 0; j < n; j++) {
+                sum += values[j];
+                sumOfSquares += (double) values[j] * values[j];
+            }
+            mean = (float) (sum / n);
+            sigma = (float) Math.sqrt(Math.max(0, sumOfSquares / n - (double) mean * mean));
+
+            //Keep the values within CLIP_SIGMA of the median
+            float low = median - CLIP_SIGMA * sigma, high = median + CLIP_SIGMA * sigma;
+            int kept = 0;
+            for (int j = 0; j < n; j++) {
+                if (values[j] >= low && values[j] <= high) values[kept++] = values[j];
+            }
+            if (kept == n || kept == 0) break;
+            n = kept;
+        }
+
+        boolean skewed = sigma > 0 && Math.abs(mean - median) / sigma > MAX_MODE_SKEW;
+        background[i] = skewed ? median : 2.5f * median - 1.5f * mean;
+        rms[i] = sigma;
+    }
+
+    /**
+     * Replaces NaN meshes with the median of the other meshes, or 0 if all of them are NaN.
+     */
+    private static void fillEmptyMeshes(float[] grid) {
+        float[] values = new float[grid.length];
+        int n = 0;
+        for (float value : grid) {
+            if (!Float.isNaN(value)) values[n++] = value;
+        }
+        if (n == grid.length) return;
+
+        float fill = n == 0 ? 0 : Selection.median(values, n);
+        for (int i = 0; i < grid.length; i++) {
+            if (Float.isNaN(grid[i])) grid[i] = fill;
+        }
+    }
+
+    /**
+     * Writes the median of the 3x3 neighbourhood of every mesh of src to dst, shrunk at the edges of the grid.
+     */
+    private void medianFilter(float[] src, float[] dst) {
+        float[] window = new float[9];
+        for (int meshY = 0; meshY < meshesY; meshY++) {
+            for (int meshX = 0; meshX < meshesX; meshX++) {
+                int n = 0;
+                for (int y = Math.max(0, meshY - 1); y <= Math.min(meshesY - 1, meshY + 1); y++) {
+                    for (int x = Math.max(0, meshX - 1); x <= Math.min(meshesX - 1, meshX + 1); x++)
+                        window[n++] = src[y * meshesX + x];
+                }
+                dst[meshY * meshesX + meshX] = Selection.median(window, n);
+            }
+        }
+    }
+
+    private static float[] centers(int length, int meshSize, int meshes) {
+        float[] centers = new float[meshes];
+        for (int i = 0; i < meshes; i++) {
+            int start = i * meshSize, end = Math.min(length, start + meshSize);
+            centers[i] = (start + end - 1) / 2f;
+        }
+        return centers;
+    }
+
+    /**
+     * @return The background at a pixel, interpolated between the meshes.
+     */
+    public float getBackground(int x, int y) {
+        return interpolate(background, x, y);
+    }
+
+    /**
+     * @return The noise at a pixel, interpolated between the meshes.
+     */
+    public float getRms(int x, int y) {
+        return interpolate(rms, x, y);
+    }
+
+    private float interpolate(float[] grid, int x, int y) {
+        int row = lowerMesh(centersY, y), col = lowerMesh(centersX, x);
+        float ty = weight(centersY, row, y), tx = weight(centersX, col, x);
+        int nextRow = Math.min(row + 1, meshesY - 1), nextCol = Math.min(col + 1, meshesX - 1);
+
+        //Blend the mesh rows first, in the same order as the full resolution maps
+        float left = lerp(grid[row * meshesX + col], grid[nextRow * meshesX + col], ty);
+        float right = lerp(grid[row * meshesX + nextCol], grid[nextRow * meshesX + nextCol], ty);
+        return lerp(left, right, tx);
+    }
+
+    /**
+     * @return The last mesh whose center is at or before position, or 0.
+     */
+    private static int lowerMesh(float[] centers, int position) {
+        int mesh = 0;
+        while (mesh < centers.length - 1 && centers[mesh + 1] <= position)
+            mesh++;
+        return mesh;
+    }
+
+    /**
+     * @return The weight of the mesh after the given one at position, clamped to 0-1 beyond the outer centers.
+     */
+    private static float weight(float[] centers, int mesh, int position) {
+        if (mesh == centers.length - 1) return 0;
+        float t = (position - centers[mesh]) / (centers[mesh + 1] - centers[mesh]);
+        return Math.max(0f, Math.min(1f, t));
+    }
+
+    private static float lerp(float a, float b, float t) {
+        return a + (b - a) * t;
+    }
+
+    /**
+     * @return The background at full resolution, e.g.
+     * {@code ImageExpression.of(image).plus(map.background().mul(-1))} to remove gradients.
+     */
+    public ImageExpression background() {
+        return new Interpolated(background);
+    }
+
+    /**
+     * @return The noise at full resolution.
+     */
+    public ImageExpression rms() {
+        return new Interpolated(rms);
+    }
+
+    /**
+     * The bilinear interpolation of a grid, evaluated a row at a time: the two mesh rows around the row are blended
+     * first, then interpolated along the row.
+     */
+    private class Interpolated extends ImageExpression {
+        private final float[] grid;
+
+        Interpolated(float[] grid) {
+            super(BackgroundMap.this.width, BackgroundMap.this.height);
+            this.grid = grid;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            int meshRow = lowerMesh(centersY, row), nextRow = Math.min(meshRow + 1, meshesY - 1);
+            float ty = weight(centersY, meshRow, row);
+
+            //The grid blended between the two mesh rows, one value per mesh column
+            float[] line = scratch[level];
+            for (int meshX = 0; meshX < meshesX; meshX++)
+                line[meshX] = lerp(grid[meshRow * meshesX + meshX], grid[nextRow * meshesX + meshX], ty);
+
+            for (int x = 0; x < width; x++) {
+                int col = columnMeshes[x];
+                dst[pos + x] = lerp(line[col], line[Math.min(col + 1, meshesX - 1)], columnWeights[x]);
+            }
+        }
+
+        @Override
+        protected int scratchRows() {
+            return 1;
+        }
+    }
+
+    public int getMeshSize() {
+        return meshSize;
+    }
+
+    public int getMeshesX() {
+        return meshesX;
+    }
+
+    public int getMeshesY() {
+        return meshesY;
+    }
+
+    /**
+     * @return The background of a mesh, after filtering.
+     */
+    public float getMeshBackground(int meshX, int meshY) {
+        return background[meshY * meshesX + meshX];
+    }
+
+    /**
+     * @return The noise of a mesh, after filtering.
+     */
+    public float getMeshRms(int meshX, int meshY) {
+        return rms[meshY * meshesX + meshX];
+    }
+}
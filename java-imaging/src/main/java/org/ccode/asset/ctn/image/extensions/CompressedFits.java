@@ -0,0 +1,252 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import nom.tam.fits.BasicHDU;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.fits.ImageData;
+import nom.tam.fits.ImageHDU;
+import nom.tam.fits.header.Compression;
+import nom.tam.image.compression.hdu.CompressedImageHDU;
+import nom.tam.util.Cursor;
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Reads and writes tile-compressed FITS images. The image is cut into tiles of whole rows that are compressed on their
+ * own and stored in a binary table extension marked ZIMAGE, behind an empty primary HDU.
+ * <p>
+ * Raw 16-bit frames typically shrink 2-3x with Rice, without loss. Tiles are compressed and decompressed in parallel
+ * by nom-tam-fits on its own thread pool; converting the pixels to and from our images runs in row bands on the
+ * caller's pool.
+ */
+public class CompressedFits {
+    public static final String RICE = Compression.ZCMPTYPE_RICE_1;
+    public static final String GZIP = Compression.ZCMPTYPE_GZIP_1;
+    //GZIP of the bytes reordered by significance, which often compresses floats better
+    public static final String GZIP_SHUFFLED = Compression.ZCMPTYPE_GZIP_2;
+
+    //Rows per tile, one as in CFITSIO. Tiles are the unit of parallel work when compressing and decompressing.
+    public static final int TILE_ROWS = 1;
+
+    /**
+     * @param path The FITS file.
+     * @return If the image of the file is tile-compressed.
+     * @throws IOException If the headers cannot be read.
+     */
+    public static boolean isCompressed(Path path) throws IOException {
+        return FitsHeader.readImageHeader(path).isCompressed();
+    }
+
+    /**
+     * Decompresses the image of a file into physical pixel values (BZERO and BSCALE applied).
+     *
+     * @param path The FITS file.
+     * @param pool The pool to convert the pixels on, or null to convert them on the calling thread.
+     * @return The image.
+     * @throws IOException If the file cannot be read or holds no compressed 2D image.
+     */
+    public static FloatImage read(Path path, ForkJoinPool pool) throws IOException {
+        return decode(path, pool, null);
+    }
+
+    /**
+     * Decompresses the image of a file mapped to a 0-1 range, the same way as {@link FitsDocument#extractFloatData}.
+     *
+     * @param path The FITS file.
+     * @param pool The pool to convert the pixels on, or null to convert them on the calling thread.
+     * @return The image.
+     * @throws IOException If the file cannot be read or holds no compressed 2D image.
+     */
+    public static FloatImage readNormalized(Path path, ForkJoinPool pool) throws IOException {
+        //Minimum and maximum of every row, tracked while converting
+        float[][] rowRanges = new float[2][];
+        FloatImage image = decode(path, pool, rowRanges);
+
+        float min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int row = 0; row < image.getHeight(); row++) {
+            min = Math.min(min, rowRanges[0][row]);
+            max = Math.max(max, rowRanges[1][row]);
+        }
+
+        //Map each pixel to a 0-1 range
+        ImageExpression.of(image).add(-min).mul(1f / (max - min)).evaluateInto(image, pool);
+        return image;
+    }
+
+    /**
+     * @param rowRanges Set to {row minimums, row maximums} when not null.
+     */
+    private static FloatImage decode(Path path, ForkJoinPool pool, float[][] rowRanges) throws IOException {
+        try (nom.tam.fits.Fits fits = new nom.tam.fits.Fits(path.toFile())) {
+            CompressedImageHDU compressed = findImage(fits, path);
+            Header imageHeader = compressed.getImageHeader();
+            double bzero = imageHeader.getDoubleValue("BZERO", 0);
+            double bscale = imageHeader.getDoubleValue("BSCALE", 1);
+
+            int[] axes = compressed.getImageAxes();
+            if (axes.length != 2) {
+                throw new IOException(String.format("File: `%s` does not hold a 2D image.", path));
+            }
+
+            //Rows of a primitive array, e.g. short[height][width]
+            Object[] rows = (Object[]) compressed.asImageHDU().getKernel();
+            int height = axes[0];
+            int width = axes[1];
+            FloatImage image = new FloatImage(width, height);
+            if (rowRanges != null) {
+                rowRanges[0] = new float[height];
+                rowRanges[1] = new float[height];
+            }
+
+            RowBands.forEach(height, pool, (startRow, endRow) -> {
+                for (int row = startRow; row < endRow; row++) {
+                    int pos = image.rowOffset(row);
+                    decodeRow(rows[row], image.getData(), pos, width, bzero, bscale);
+
+                    if (rowRanges != null) {
+                        float min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+                        for (int col = pos; col < pos + width; col++) {
+                            float num = image.getData()[col];
+                            if (num > max) max = num;
+                            if (num < min) min = num;
+                        }
+                        rowRanges[0][row] = min;
+                        rowRanges[1][row] = max;
+                    }
+                }
+            });
+            return image;
+        } catch (FitsException e) {
+            throw new IOException(String.format("File: `%s` could not be decompressed.", path), e);
+        }
+    }
+
+    private static CompressedImageHDU findImage(nom.tam.fits.Fits fits, Path path) throws IOException {
+        for (BasicHDU<?> hdu = fits.readHDU(); hdu != null; hdu = fits.readHDU()) {
+            if (hdu instanceof CompressedImageHDU) return (CompressedImageHDU) hdu;
+        }
+        throw new IOException(String.format("File: `%s` has no compressed image.", path));
+    }
+
+    /**
+     * Converts one row of stored values to physical values, with the same precision as {@link MappedFitsReader}.
+     */
+    private static void decodeRow(Object src, float[] dst, int pos, int width, double bzero, double bscale) {
+        float zero = (float) bzero, scale = (float) bscale;
+
+        if (src instanceof byte[]) {
+            byte[] row = (byte[]) src;
+            for (int col = 0; col < width; col++)
+                dst[pos + col] = (row[col] & 0xFF) * scale + zero;
+        } else if (src instanceof short[]) {
+            short[] row = (short[]) src;
+            for (int col = 0; col < width; col++)
+                dst[pos + col] = row[col] * scale + zero;
+        } else if (src instanceof int[]) {
+            int[] row = (int[]) src;
+            for (int col = 0; col < width; col++)
+                dst[pos + col] = (float) (row[col] * bscale + bzero);
+        } else if (src instanceof long[]) {
+            long[] row = (long[]) src;
+            for (int col = 0; col < width; col++)
+                dst[pos + col] = (float) (row[col] * bscale + bzero);
+        } else if (src instanceof float[]) {
+            float[] row = (float[]) src;
+            for (int col = 0; col < width; col++)
+                dst[pos + col] = row[col] * scale + zero;
+        } else {
+            double[] row = (double[]) src;
+            for (int col = 0; col < width; col++)
+                dst[pos + col] = (float) (row[col] * bscale + bzero);
+        }
+    }
+
+    /**
+     * Writes an image to a tile-compressed FITS file. Unlike {@link FitsWriter}, the whole image is converted in
+     * memory first, as the tiles are compressed all at once.
+     *
+     * @param path        The file to write. An existing file is replaced.
+     * @param image       The image, in the 0-1 range.
+     * @param header      Extra header cards to copy, or null.
+     * @param bitpix      16 or 32 for unsigned integers scaled from 0-1, -32 for the floats as they are.
+     * @param compression {@link #RICE}, {@link #GZIP} or {@link #GZIP_SHUFFLED}. Rice needs integer pixels.
+     * @param pool        The pool to convert the pixels on, or null to convert them on the calling thread.
+     * @throws IOException If the file cannot be written, or the image does not compress.
+     */
+    public static void write(Path path, FloatImage image, Header header, int bitpix, String compression,
+                             ForkJoinPool pool) throws IOException {
+        if (bitpix != 16 && bitpix != 32 && bitpix != -32) {
+            throw new IllegalArgumentException(String.format("Unsupported BITPIX %d, use 16, 32 or -32.", bitpix));
+        }
+        if (!RICE.equals(compression) && !GZIP.equals(compression) && !GZIP_SHUFFLED.equals(compression)) {
+            throw new IllegalArgumentException(String.format("Unsupported compression `%s`, use %s, %s or %s.",
+                    compression, RICE, GZIP, GZIP_SHUFFLED));
+        }
+        if (bitpix == -32 && RICE.equals(compression)) {
+            throw new IllegalArgumentException("Rice compression needs integer pixels, use BITPIX 16 or 32, or GZIP.");
+        }
+
+        int width = image.getWidth(), height = image.getHeight();
+        Object data = bitpix == 16 ? new short[height][width] : bitpix == 32 ? new int[height][width] : new float[height][width];
+
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            float[] src = image.getData();
+            for (int row = startRow; row < endRow; row++) {
+                int pos = image.rowOffset(row);
+                if (bitpix == 16) {
+                    short[] dst = ((short[][]) data)[row];
+                    for (int col = 0; col < width; col++)
+                        dst[col] = FitsWriter.toStoredShort(src[pos + col]);
+                } else if (bitpix == 32) {
+                    int[] dst = ((int[][]) data)[row];
+                    for (int col = 0; col < width; col++)
+                        dst[col] = FitsWriter.toStoredInt(src[pos + col]);
+                } else {
+                    System.arraycopy(src, pos, ((float[][]) data)[row], 0, width);
+                }
+            }
+        });
+
+        try {
+            ImageHDU hdu = ImageData.from(data).toHDU();
+            Header imageHeader = hdu.getHeader();
+            if (bitpix == 16) {
+                imageHeader.addValue("BZERO", 32768, null);
+                imageHeader.addValue("BSCALE", 1, null);
+            } else if (bitpix == 32) {
+                imageHeader.addValue("BZERO", 2147483648L, null);
+                imageHeader.addValue("BSCALE", 1, null);
+            }
+
+            if (header != null) {
+                for (Cursor<String, HeaderCard> it = header.iterator(); it.hasNext(); ) {
+                    HeaderCard card = it.next();
+                    if (card.getKey() == null || card.getKey().isEmpty()
+                            || FitsWriter.STRUCTURAL_KEYS.contains(card.getKey().toUpperCase(Locale.ROOT))) continue;
+                    imageHeader.addLine(card.copy());
+                }
+            }
+
+            CompressedImageHDU compressed = CompressedImageHDU.fromImageHDU(hdu, width, Math.min(TILE_ROWS, height));
+            compressed.setCompressAlgorithm(compression);
+            try {
+                compressed.compress();
+            } catch (IllegalStateException e) {
+                //nom-tam-fits fails on tiles that do not compress at all, e.g. pure noise over the full range
+                throw new IOException(String.format("File: `%s` could not be compressed.", path), e);
+            }
+
+            try (nom.tam.fits.Fits fits = new nom.tam.fits.Fits()) {
+                fits.addHDU(compressed);
+                fits.write(path.toFile());
+            }
+        } catch (FitsException e) {
+            throw new IOException(String.format("File: `%s` could not be compressed.", path), e);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Labels the connected blobs of pixels above a threshold, e.g. stars, satellite trails or hot pixels, and measures
+ * their bounding box, area, flux, centroid and peak. Pixels touching by a side or a corner belong to the same blob.
+ * <p>
+ * Labeling is a union-find over the pixels: every pixel above the threshold starts as its own set, named by its index,
+ * and is joined with its neighbours above and to the left. Bands of rows are labeled in parallel, then the sets
+ * crossing the boundaries between bands are joined on the calling thread, which only reads one row per boundary. The
+ * smaller index always stays the root, so a blob is named by its first pixel in row-major order whatever the bands,
+ * and blobs are numbered in that order. Measuring runs in parallel again, with every band adding to its own sums: the
+ * blobs starting in the band, which have consecutive labels, and the few blobs reaching into it from above, so the
+ * sums of all bands together hold about one entry per blob.
+ */
+public class ConnectedComponents {
+    private static final int BACKGROUND = -1;
+
+    private final int width, height;
+    //Blob of every pixel, row by row, or BACKGROUND
+    private final int[] labels;
+    private final Blob[] blobs;
+
+    private ConnectedComponents(int width, int height, int[] labels, Blob[] blobs) {
+        this.width = width;
+        this.height = height;
+        this.labels = labels;
+        this.blobs = blobs;
+    }
+
+    /**
+     * Labels the pixels above a fixed threshold. The flux of a blob is the sum of its pixel values.
+     *
+     * @param image     The image.
+     * @param threshold The value pixels must exceed.
+     * @param pool      The pool to label on, or null to label on the calling thread.
+     * @return The blobs.
+     */
+    public static ConnectedComponents label(FloatImage image, float threshold, ForkJoinPool pool) {
+        return label(image, threshold, null, null, pool);
+    }
+
+    /**
+     * Labels the pixels more than detectionSigma times the local noise above the local background. The flux of a
+     * blob is the sum of its pixel values minus the background.
+     *
+     * @param image          The image.
+     * @param background     The background and noise of the image.
+     * @param detectionSigma The height above the background pixels must exceed, in units of the noise.
+     * @param pool           The pool to label on, or null to label on the calling thread.
+     * @return The blobs.
+     */
+    public static ConnectedComponents label(FloatImage image, BackgroundMap background, float detectionSigma,
+                                            ForkJoinPool pool) {
+        ImageExpression thresholds = background.background().plus(background.rms().mul(detectionSigma));
+        return label(image, 0, thresholds, background.background(), pool);
+    }
+
+    /**
+     * @param thresholds The threshold of every pixel, or null to use threshold.
+     * @param baseline   The value subtracted from the pixels for the flux, or null for none.
+     */
+    private static ConnectedComponents label(FloatImage image, float threshold, ImageExpression thresholds,
+                                             ImageExpression baseline, ForkJoinPool pool) {
+        int width = image.getWidth(), height = image.getHeight();
+        //Parent of every pixel in its set, or BACKGROUND
+        int[] parent = new int[width * height];
+        List<Integer> bandStarts = new ArrayList<>();
+
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            float[] data = image.getData();
+            float[] limits = thresholds == null ? null : new float[width];
+            float[][] scratch = thresholds == null ? null : new float[thresholds.scratchRows()][width];
+
+            for (int row = startRow; row < endRow; row++) {
+                if (thresholds != null) thresholds.evaluateRow(row, limits, 0, scratch, 0);
+                int src = image.rowOffset(row), i = row * width;
+
+                for (int col = 0; col < width; col++, i++) {
+                    //NaN is never above the threshold
+                    if (!(data[src + col] > (limits == null ? threshold : limits[col]))) {
+                        parent[i] = BACKGROUND;
+                        continue;
+                    }
+                    parent[i] = i;
+
+                    if (col > 0 && parent[i - 1] != BACKGROUND) union(parent, i, i - 1);
+                    //Rows above the band are joined once all bands are done
+                    if (row > startRow) unionAbove(parent, i, col, width);
+                }
+            }
+
+            synchronized (bandStarts) {
+                bandStarts.add(startRow);
+            }
+        });
+
+        //Join the sets crossing the boundaries between bands
+        for (int startRow : bandStarts) {
+            if (startRow == 0) continue;
+            for (int col = 0, i = startRow * width; col < width; col++, i++) {
+                if (parent[i] != BACKGROUND) unionAbove(parent, i, col, width);
+            }
+        }
+
+        //Number the roots in row-major order, stored in place as -(label + 2) so they stay apart from BACKGROUND, and
+        //note the first label of every row
+        int count = 0;
+        int[] firstLabels = new int[height + 1];
+        for (int row = 0, i = 0; row < height; row++) {
+            firstLabels[row] = count;
+            for (int col = 0; col < width; col++, i++) {
+                if (parent[i] == i) parent[i] = -(count++ + 2);
+            }
+        }
+        firstLabels[height] = count;
+
+        int[] labels = new int[width * height];
+        Map<Integer, Measures> partials = new TreeMap<>();
+        int blobCount = count;
+
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            Measures measures = new Measures(firstLabels[startRow], firstLabels[endRow] - firstLabels[startRow]);
+            float[] data = image.getData();
+            float[] base = baseline == null ? null : new float[width];
+            float[][] scratch = baseline == null ? null : new float[baseline.scratchRows()][width];
+
+            for (int row = startRow; row < endRow; row++) {
+                if (baseline != null) baseline.evaluateRow(row, base, 0, scratch, 0);
+                int src = image.rowOffset(row), i = row * width;
+
+                for (int col = 0; col < width; col++, i++) {
+                    if (parent[i] == BACKGROUND) {
+                        labels[i] = BACKGROUND;
+                        continue;
+                    }
+
+                    //Follow the parents up to the numbered root, without writing to the shared array
+                    int root = i;
+                    while (parent[root] >= 0)
+                        root = parent[root];
+                    int label = -parent[root] - 2;
+                    labels[i] = label;
+
+                    float value = data[src + col];
+                    measures.add(label, col, row, value, base == null ? value : value - base[col]);
+                }
+            }
+
+            synchronized (partials) {
+                partials.put(startRow, measures);
+            }
+        });
+
+        //Add up in row order, so the sums do not depend on the order the bands finished in
+        Measures total = new Measures(0, blobCount);
+        for (Measures measures : partials.values())
+            total.add(measures);
+
+        return new ConnectedComponents(width, height, labels, total.toBlobs());
+    }
+
+    /**
+     * Joins pixel i with its neighbours above it that are above the threshold.
+     */
+    private static void unionAbove(int[] parent, int i, int col, int width) {
+        int above = i - width;
+        if (col > 0 && parent[above - 1] != BACKGROUND) union(parent, i, above - 1);
+        if (parent[above] != BACKGROUND) union(parent, i, above);
+        if (col < width - 1 && parent[above + 1] != BACKGROUND) union(parent, i, above + 1);
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a), rootB = find(parent, b);
+        if (rootA == rootB) return;
+
+        //Keep the smaller index as the root
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else {
+            parent[rootA] = rootB;
+        }
+    }
+
+    /**
+     * @return The root of the set of i, halving the path on the way.
+     */
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * The sums over the pixels of every blob, for one band of rows or the whole image. The labels from first on get
+     * the first slots, and any other label gets the next free slot when it is first added.
+     */
+    private static class Measures {
+        private static final int MIN_EXTRA_SLOTS = 16;
+
+        final int first, owned;
+        //Slots of the labels outside [first, first + owned)
+        final Map<Integer, Integer> extraSlots = new HashMap<>();
+        int[] area, minX, minY, maxX, maxY, peakX, peakY;
+        float[] peak;
+        double[] flux, sumX, sumY;
+        //The slot of the last label added, as pixels of the same blob mostly come in runs
+        int lastLabel = -1, lastSlot;
+
+        /**
+         * @param first The first label of the consecutive labels.
+         * @param owned The number of consecutive labels.
+         */
+        Measures(int first, int owned) {
+            this.first = first;
+            this.owned = owned;
+            area = new int[owned];
+            minX = new int[owned];
+            minY = new int[owned];
+            maxX = new int[owned];
+            maxY = new int[owned];
+            peakX = new int[owned];
+            peakY = new int[owned];
+            peak = new float[owned];
+            flux = new double[owned];
+            sumX = new double[owned];
+            sumY = new double[owned];
+            clear(0, owned);
+        }
+
+        private void grow(int capacity) {
+            int size = area.length;
+            area = Arrays.copyOf(area, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            peakX = Arrays.copyOf(peakX, capacity);
+            peakY = Arrays.copyOf(peakY, capacity);
+            peak = Arrays.copyOf(peak, capacity);
+            flux = Arrays.copyOf(flux, capacity);
+            sumX = Arrays.copyOf(sumX, capacity);
+            sumY = Arrays.copyOf(sumY, capacity);
+            clear(size, capacity);
+        }
+
+        /**
+         * Sets the slots [from, to) to an empty blob.
+         */
+        private void clear(int from, int to) {
+            Arrays.fill(minX, from, to, Integer.MAX_VALUE);
+            Arrays.fill(minY, from, to, Integer.MAX_VALUE);
+            Arrays.fill(maxX, from, to, -1);
+            Arrays.fill(maxY, from, to, -1);
+            Arrays.fill(peak, from, to, Float.NEGATIVE_INFINITY);
+        }
+
+        private int slot(int label) {
+            if (label >= first && label - first < owned) return label - first;
+            if (label == lastLabel) return lastSlot;
+
+            Integer slot = extraSlots.get(label);
+            if (slot == null) {
+                slot = owned + extraSlots.size();
+                if (slot == area.length) grow(area.length + Math.max(MIN_EXTRA_SLOTS, area.length / 2));
+                extraSlots.put(label, slot);
+            }
+            lastLabel = label;
+            lastSlot = slot;
+            return slot;
+        }
+
+        void add(int label, int x, int y, float value, float weight) {
+            int slot = slot(label);
+            area[slot]++;
+            minX[slot] = Math.min(minX[slot], x);
+            minY[slot] = Math.min(minY[slot], y);
+            maxX[slot] = Math.max(maxX[slot], x);
+            maxY[slot] = Math.max(maxY[slot], y);
+            flux[slot] += weight;
+            sumX[slot] += (double) weight * x;
+            sumY[slot] += (double) weight * y;
+            if (value > peak[slot]) {
+                peak[slot] = value;
+                peakX[slot] = x;
+                peakY[slot] = y;
+            }
+        }
+
+        /**
+         * Adds the sums of a band below the bands already added.
+         */
+        void add(Measures other) {
+            for (int i = 0; i < other.owned; i++)
+                add(other.first + i, other, i);
+            for (Map.Entry<Integer, Integer> entry : other.extraSlots.entrySet())
+                add(entry.getKey(), other, entry.getValue());
+        }
+
+        private void add(int label, Measures other, int otherSlot) {
+            if (other.area[otherSlot] == 0) return;
+            int slot = slot(label);
+            area[slot] += other.area[otherSlot];
+            minX[slot] = Math.min(minX[slot], other.minX[otherSlot]);
+            minY[slot] = Math.min(minY[slot], other.minY[otherSlot]);
+            maxX[slot] = Math.max(maxX[slot], other.maxX[otherSlot]);
+            maxY[slot] = Math.max(maxY[slot], other.maxY[otherSlot]);
+            flux[slot] += other.flux[otherSlot];
+            sumX[slot] += other.sumX[otherSlot];
+            sumY[slot] += other.sumY[otherSlot];
+            //Keep the first peak in row-major order on ties
+            if (other.peak[otherSlot] > peak[slot]) {
+                peak[slot] = other.peak[otherSlot];
+                peakX[slot] = other.peakX[otherSlot];
+                peakY[slot] = other.peakY[otherSlot];
+            }
+        }
+
+        /**
+         * @return The blobs of the consecutive labels, for the measures of the whole image.
+         */
+        Blob[] toBlobs() {
+            Blob[] blobs = new Blob[owned];
+            for (int slot = 0; slot < blobs.length; slot++) {
+                //Centroid of the pixels when the flux is not positive, e.g. for a blob barely above the background
+                double centroidX, centroidY;
+                if (flux[slot] > 0) {
+                    centroidX = sumX[slot] / flux[slot];
+                    centroidY = sumY[slot] / flux[slot];
+                } else {
+                    centroidX = (minX[slot] + maxX[slot]) / 2.0;
+                    centroidY = (minY[slot] + maxY[slot]) / 2.0;
+                }
+                blobs[slot] = new Blob(first + slot, minX[slot], minY[slot], maxX[slot], maxY[slot], area[slot],
+                        flux[slot], centroidX, centroidY, peakX[slot], peakY[slot], peak[slot]);
+            }
+            return blobs;
+        }
+    }
+
+    /**
+     * @return The blob of every pixel, row by row (index x + y * width), or -1 for pixels below the threshold.
+     * The array is not copied.
+     */
+    public int[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return The blob of a pixel, or -1 if it is below the threshold.
+     */
+    public int getLabel(int x, int y) {
+        return labels[x + y * width];
+    }
+
+    /**
+     * @return The blobs, indexed by label, in row-major order of their first pixel. The array is not copied.
+     */
+    public Blob[] getBlobs() {
+        return blobs;
+    }
+
+    public int getCount() {
+        return blobs.length;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The measures of one blob.
+     */
+    public static class Blob {
+        private final int label, minX, minY, maxX, maxY, area, peakX, peakY;
+        private final double flux, centroidX, centroidY;
+        private final float peak;
+
+        Blob(int label, int minX, int minY, int maxX, int maxY, int area, double flux, double centroidX,
+             double centroidY, int peakX, int peakY, float peak) {
+            this.label = label;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.area = area;
+            this.flux = flux;
+            this.centroidX = centroidX;
+            this.centroidY = centroidY;
+            this.peakX = peakX;
+            this.peakY = peakY;
+            this.peak = peak;
+        }
+
+        public int getLabel() {
+            return label;
+        }
+
+        /**
+         * @return The first column of the bounding box.
+         */
+        public int getMinX() {
+            return minX;
+        }
+
+        /**
+         * @return The first row of the bounding box.
+         */
+        public int getMinY() {
+            return minY;
+        }
+
+        /**
+         * @return The last column of the bounding box, inclusive.
+         */
+        public int getMaxX() {
+            return maxX;
+        }
+
+        /**
+         * @return The last row of the bounding box, inclusive.
+         */
+        public int getMaxY() {
+            return maxY;
+        }
+
+        /**
+         * @return The number of pixels.
+         */
+        public int getArea() {
+            return area;
+        }
+
+        /**
+         * @return The sum of the pixel values, minus the background when labeled against one.
+         */
+        public double getFlux() {
+            return flux;
+        }
+
+        /**
+         * @return The x of the center, weighted by the flux of the pixels.
+         */
+        public double getCentroidX() {
+            return centroidX;
+        }
+
+        /**
+         * @return The y of the center, weighted by the flux of the pixels.
+         */
+        public double getCentroidY() {
+            return centroidY;
+        }
+
+        /**
+         * @return The x of the brightest pixel, the first in row-major order on ties.
+         */
+        public int getPeakX() {
+            return peakX;
+        }
+
+        /**
+         * @return The y of the brightest pixel.
+         */
+        public int getPeakY() {
+            return peakY;
+        }
+
+        /**
+         * @return The value of the brightest pixel.
+         */
+        public float getPeak() {
+            return peak;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Bilinear debayering of raw color filter array (CFA) images into red, green and blue planes.
+ * <p>
+ * The image is walked in 2x2 quads. Every quad holds one red, one blue and two green pixels at positions fixed by
+ * the {@link Pattern}, so the interior is done without any per-pixel branch: each of the four positions has its own
+ * line of code. Each missing color is the mean of the nearest pixels of that color (the 4 edge or corner neighbours,
+ * or the 2 neighbours along the row or column). Pixels on the image border use the same rule with the neighbours
+ * outside the image reflected back in, which keeps the CFA pattern intact.
+ * <p>
+ * Results are written to buffers given by the caller, which must have the size of the raw image, or half of it for
+ * the {@link #superPixel} mode.
+ */
+public class Debayer {
+
+    /**
+     * The supported Bayer patterns, named by their top left 2x2 quad, with the position of the red pixel in it.
+     * The blue pixel is diagonal to the red one and the other two are green.
+     */
+    public enum Pattern {
+        RGGB(0, 0),
+        BGGR(1, 1),
+        GRBG(0, 1),
+        GBRG(1, 0);
+
+        private final int redRow, redCol;
+
+        Pattern(int redRow, int redCol) {
+            this.redRow = redRow;
+            this.redCol = redCol;
+        }
+
+        /**
+         * @param bayerPat The pattern as found in the BAYERPAT header, e.g. "RGGB".
+         * @return The pattern.
+         * @throws IllegalArgumentException If the pattern is not supported.
+         */
+        public static Pattern parse(String bayerPat) {
+            if (bayerPat != null) {
+                for (Pattern pattern : values()) {
+                    if (pattern.name().equalsIgnoreCase(bayerPat.trim())) return pattern;
+                }
+            }
+            throw new IllegalArgumentException("Invalid Bayer Pattern");
+        }
+    }
+
+    /**
+     * Debayers an image.
+     *
+     * @param raw     The raw CFA image.
+     * @param pattern The Bayer pattern of the image.
+     * @param red     The image receiving the red plane.
+     * @param green   The image receiving the green plane.
+     * @param blue    The image receiving the blue plane.
+     * @param pool    The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If the image sizes do not match or the image is smaller than 2x2.
+     */
+    public static void debayer(FloatImage raw, Pattern pattern, FloatImage red, FloatImage green, FloatImage blue, ForkJoinPool pool) {
+        Array2D.checkSameSize(raw, red);
+        Array2D.checkSameSize(raw, green);
+        Array2D.checkSameSize(raw, blue);
+
+        debayer(new Plane(raw), pattern, new Plane(red), new Plane(green), new Plane(blue), raw.getWidth(), raw.getHeight(), pool);
+    }
+
+    /**
+     * Debayers an image.
+     *
+     * @param raw     The raw CFA image.
+     * @param pattern The Bayer pattern of the image.
+     * @param red     The array receiving the red plane.
+     * @param green   The array receiving the green plane.
+     * @param blue    The array receiving the blue plane.
+     * @param pool    The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If the array sizes do not match or the image is smaller than 2x2.
+     */
+    public static void debayer(float[][] raw, Pattern pattern, float[][] red, float[][] green, float[][] blue, ForkJoinPool pool) {
+        int width = raw[0].length;
+        int height = raw.length;
+        for (float[][] arr : new float[][][]{red, green, blue}) {
+            if (arr.length != height || arr[0].length != width) {
+                throw new IllegalArgumentException("The width or height of an array does not match the others.");
+            }
+        }
+
+        debayer(new Plane(raw), pattern, new Plane(red), new Plane(green), new Plane(blue), width, height, pool);
+    }
+
+    private static void debayer(Plane raw, Pattern pattern, Plane red, Plane green, Plane blue, int width, int height, ForkJoinPool pool) {
+        if (width < 2 || height < 2) {
+            throw new IllegalArgumentException("The image must be at least 2x2 pixels.");
+        }
+
+        //Quads whose pixels all have their neighbours inside the image: even rows and columns from 2 on
+        int quadRowEnd = (height - 1) & ~1;
+        int quadColEnd = (width - 1) & ~1;
+        int quadRows = Math.max(0, (quadRowEnd - 2) / 2);
+
+        RowBands.forEach(quadRows, pool, (startQuad, endQuad) -> {
+            for (int row = 2 + 2 * startQuad; row < 2 + 2 * endQuad; row += 2) {
+                quadRow(raw, pattern, red, green, blue, row, quadColEnd);
+
+                //Left and right border columns of the two rows
+                for (int y = row; y < row + 2; y++) {
+                    for (int x = 0; x < Math.min(2, width); x++)
+                        pixel(raw, pattern, red, green, blue, width, height, x, y);
+                    for (int x = Math.max(2, quadColEnd); x < width; x++)
+                        pixel(raw, pattern, red, green, blue, width, height, x, y);
+                }
+            }
+        });
+
+        //Top and bottom border rows
+        int lastQuadRow = 2 + 2 * quadRows;
+        for (int y = 0; y < height; y++) {
+            if (y >= 2 && y < lastQuadRow) continue;
+            for (int x = 0; x < width; x++)
+                pixel(raw, pattern, red, green, blue, width, height, x, y);
+        }
+    }
+
+    /**
+     * Debayers the quads of rows [row, row + 2) and columns [2, colEnd). Both rows and their neighbour rows must be
+     * inside the image.
+     */
+    private static void quadRow(Plane raw, Pattern pattern, Plane red, Plane green, Plane blue, int row, int colEnd) {
+        //The row holding red pixels and the row holding blue pixels, with the rows around them
+        int redY = row + pattern.redRow, blueY = row + 1 - pattern.redRow;
+
+        float[] redLine = raw.rows[redY], redUp = raw.rows[redY - 1], redDown = raw.rows[redY + 1];
+        int redPos = raw.offsets[redY], redUpPos = raw.offsets[redY - 1], redDownPos = raw.offsets[redY + 1];
+        float[] blueLine = raw.rows[blueY], blueUp = raw.rows[blueY - 1], blueDown = raw.rows[blueY + 1];
+        int bluePos = raw.offsets[blueY], blueUpPos = raw.offsets[blueY - 1], blueDownPos = raw.offsets[blueY + 1];
+
+        float[] rOnRed = red.rows[redY], gOnRed = green.rows[redY], bOnRed = blue.rows[redY];
+        int rOnRedPos = red.offsets[redY], gOnRedPos = green.offsets[redY], bOnRedPos = blue.offsets[redY];
+        float[] rOnBlue = red.rows[blueY], gOnBlue = green.rows[blueY], bOnBlue = blue.rows[blueY];
+        int rOnBluePos = red.offsets[blueY], gOnBluePos = green.offsets[blueY], bOnBluePos = blue.offsets[blueY];
+
+        //Column of the red pixel and of the blue pixel within a quad
+        int redCol = pattern.redCol, blueCol = 1 - pattern.redCol;
+
+        for (int col = 2; col < colEnd; col += 2) {
+            int x, i, up, down;
+
+            //Red pixel
+            x = col + redCol;
+            i = redPos + x;
+            up = redUpPos + x;
+            down = redDownPos + x;
+            rOnRed[rOnRedPos + x] = redLine[i];
+            gOnRed[gOnRedPos + x] = 0.25f * (redUp[up] + redDown[down] + redLine[i - 1] + redLine[i + 1]);
+            bOnRed[bOnRedPos + x] = 0.25f * (redUp[up - 1] + redUp[up + 1] + redDown[down - 1] + redDown[down + 1]);
+
+            //Green pixel in the red row
+            x = col + blueCol;
+            i = redPos + x;
+            up = redUpPos + x;
+            down = redDownPos + x;
+            rOnRed[rOnRedPos + x] = 0.5f * (redLine[i - 1] + redLine[i + 1]);
+            gOnRed[gOnRedPos + x] = redLine[i];
+            bOnRed[bOnRedPos + x] = 0.5f * (redUp[up] + redDown[down]);
+
+            //Blue pixel
+            x = col + blueCol;
+            i = bluePos + x;
+            up = blueUpPos + x;
+            down = blueDownPos + x;
+            rOnBlue[rOnBluePos + x] = 0.25f * (blueUp[up - 1] + blueUp[up + 1] + blueDown[down - 1] + blueDown[down + 1]);
+            gOnBlue[gOnBluePos + x] = 0.25f * (blueUp[up] + blueDown[down] + blueLine[i - 1] + blueLine[i + 1]);
+            bOnBlue[bOnBluePos + x] = blueLine[i];
+
+            //Green pixel in the blue row
+            x = col + redCol;
+            i = bluePos + x;
+            up = blueUpPos + x;
+            down = blueDownPos + x;
+            rOnBlue[rOnBluePos + x] = 0.5f * (blueUp[up] + blueDown[down]);
+            gOnBlue[gOnBluePos + x] = blueLine[i];
+            bOnBlue[bOnBluePos + x] = 0.5f * (blueLine[i - 1] + blueLine[i + 1]);
+        }
+    }
+
+    /**
+     * Collapses every 2x2 quad into one RGB pixel: the red and blue pixels of the quad and the mean of its two
+     * greens. Gives half-resolution planes in a single pass without interpolation, e.g. for flats and quick looks.
+     * A last odd row or column of the raw image is dropped.
+     *
+     * @param raw     The raw CFA image.
+     * @param pattern The Bayer pattern of the image.
+     * @param red     The image receiving the red plane, of half the raw width and height (rounded down).
+     * @param green   The image receiving the green plane, of the same size.
+     * @param blue    The image receiving the blue plane, of the same size.
+     * @param pool    The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If the planes are not half the size of the raw image.
+     */
+    public static void superPixel(FloatImage raw, Pattern pattern, FloatImage red, FloatImage green, FloatImage blue, ForkJoinPool pool) {
+        checkHalfSize(raw.getWidth(), raw.getHeight(), red.getWidth(), red.getHeight());
+        Array2D.checkSameSize(red, green);
+        Array2D.checkSameSize(red, blue);
+
+        superPixel(new Plane(raw), pattern, new Plane(red), new Plane(green), new Plane(blue), red.getWidth(), red.getHeight(), pool);
+    }
+
+    /**
+     * Collapses every 2x2 quad into one RGB pixel, see {@link #superPixel(FloatImage, Pattern, FloatImage, FloatImage, FloatImage, ForkJoinPool)}.
+     *
+     * @param raw     The raw CFA image.
+     * @param pattern The Bayer pattern of the image.
+     * @param red     The array receiving the red plane, of half the raw width and height (rounded down).
+     * @param green   The array receiving the green plane, of the same size.
+     * @param blue    The array receiving the blue plane, of the same size.
+     * @param pool    The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If the planes are not half the size of the raw image.
+     */
+    public static void superPixel(float[][] raw, Pattern pattern, float[][] red, float[][] green, float[][] blue, ForkJoinPool pool) {
+        int width = red[0].length;
+        int height = red.length;
+        checkHalfSize(raw[0].length, raw.length, width, height);
+        for (float[][] arr : new float[][][]{green, blue}) {
+            if (arr.length != height || arr[0].length != width) {
+                throw new IllegalArgumentException("The width or height of an array does not match the others.");
+            }
+        }
+
+        superPixel(new Plane(raw), pattern, new Plane(red), new Plane(green), new Plane(blue), width, height, pool);
+    }
+
+    private static void superPixel(Plane raw, Pattern pattern, Plane red, Plane green, Plane blue, int width, int height, ForkJoinPool pool) {
+        int redCol = pattern.redCol, blueCol = 1 - pattern.redCol;
+
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                int redY = 2 * y + pattern.redRow, blueY = 2 * y + 1 - pattern.redRow;
+                float[] redLine = raw.rows[redY], blueLine = raw.rows[blueY];
+                int redPos = raw.offsets[redY], bluePos = raw.offsets[blueY];
+                float[] r = red.rows[y], g = green.rows[y], b = blue.rows[y];
+                int rPos = red.offsets[y], gPos = green.offsets[y], bPos = blue.offsets[y];
+
+                for (int x = 0; x < width; x++) {
+                    r[rPos + x] = redLine[redPos + 2 * x + redCol];
+                    g[gPos + x] = 0.5f * (redLine[redPos + 2 * x + blueCol] + blueLine[bluePos + 2 * x + redCol]);
+                    b[bPos + x] = blueLine[bluePos + 2 * x + blueCol];
+                }
+            }
+        });
+    }
+
+    private static void checkHalfSize(int rawWidth, int rawHeight, int width, int height) {
+        if (width != rawWidth / 2 || height != rawHeight / 2) {
+            throw new IllegalArgumentException("The planes must be half the width and height of the raw image.");
+        }
+    }
+
+    /**
+     * Debayers a single pixel, reflecting neighbours outside the image back in. Used for the border.
+     */
+    private static void pixel(Plane raw, Pattern pattern, Plane red, Plane green, Plane blue, int width, int height, int x, int y) {
+        int up = reflect(y - 1, height), down = reflect(y + 1, height);
+        int left = reflect(x - 1, width), right = reflect(x + 1, width);
+
+        float value = raw.get(x, y);
+        float cross = 0.25f * (raw.get(x, up) + raw.get(x, down) + raw.get(left, y) + raw.get(right, y));
+        float diagonal = 0.25f * (raw.get(left, up) + raw.get(right, up) + raw.get(left, down) + raw.get(right, down));
+        float horizontal = 0.5f * (raw.get(left, y) + raw.get(right, y));
+        float vertical = 0.5f * (raw.get(x, up) + raw.get(x, down));
+
+        boolean onRedRow = ((y ^ pattern.redRow) & 1) == 0;
+        boolean onRedCol = ((x ^ pattern.redCol) & 1) == 0;
+
+        if (onRedRow && onRedCol) {
+            red.set(x, y, value);
+            green.set(x, y, cross);
+            blue.set(x, y, diagonal);
+        } else if (!onRedRow && !onRedCol) {
+            red.set(x, y, diagonal);
+            green.set(x, y, cross);
+            blue.set(x, y, value);
+        } else if (onRedRow) {
+            red.set(x, y, horizontal);
+            green.set(x, y, value);
+            blue.set(x, y, vertical);
+        } else {
+            red.set(x, y, vertical);
+            green.set(x, y, value);
+            blue.set(x, y, horizontal);
+        }
+    }
+
+    /**
+     * Reflects an index that is at most one step outside [0, n) back in, e.g. -1 to 1 and n to n - 2.
+     */
+    private static int reflect(int i, int n) {
+        if (i < 0) return -i;
+        if (i >= n) return 2 * n - 2 - i;
+        return i;
+    }
+
+    /**
+     * The rows of a float[][] or FloatImage as (array, offset) pairs, so both go through the same code.
+     */
+    private static class Plane {
+        final float[][] rows;
+        final int[] offsets;
+
+        Plane(float[][] arr) {
+            this.rows = arr;
+            this.offsets = new int[arr.length];
+        }
+
+        Plane(FloatImage image) {
+            this.rows = new float[image.getHeight()][];
+            this.offsets = new int[image.getHeight()];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = image.getData();
+                offsets[row] = image.rowOffset(row);
+            }
+        }
+
+        float get(int x, int y) {
+            return rows[y][offsets[y] + x];
+        }
+
+        void set(int x, int y, float value) {
+            rows[y][offsets[y] + x] = value;
+        }
+    }
+}
@@ -13,7 +13,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -25,6 +28,7 @@ public class Fits extends nom.tam.fits.Fits {
     private static final Logger _logger = LoggerBuilder.defaultLogger(Fits.class.getName());
     private String filePath;
     private double max;
+    private FitsFrame frame;
 
 
     /**
@@ -42,6 +46,27 @@ public class Fits extends nom.tam.fits.Fits {
         this.filePath = filePath;
     }
 
+    /**
+     * Creates a Fits from a scanned frame. Header queries are answered from the frame without reading the file.
+     *
+     * @param frame Header-only description of the file.
+     * @throws FitsException
+     */
+    public Fits(FitsFrame frame) throws FitsException, FileNotFoundException {
+        this(frame.getFilePath());
+        this.frame = frame;
+    }
+
+    /**
+     * @return The header-only description of the file, read from its header blocks on first use.
+     */
+    public FitsFrame getFrame() throws IOException {
+        if (frame == null && filePath != null) {
+            frame = FitsFrame.read(Paths.get(filePath));
+        }
+        return frame;
+    }
+
     public BasicHDU<?>[] read() {
         return super.read();
     }
@@ -59,6 +84,16 @@ public class Fits extends nom.tam.fits.Fits {
     }
 
     public String checkHeaderVar(String var) {
+        //Only the header blocks need to be read for files on disk
+        if (filePath != null) {
+            try {
+                return getFrame().getHeader().getStringValue(var);
+            } catch (IOException e) {
+                _logger.logException(e);
+                return "";
+            }
+        }
+
         BasicHDU<?>[] hdu = this.read();
         for (BasicHDU<?> h : hdu) {
             return h.getHeader().getStringValue(var);
@@ -67,6 +102,11 @@ public class Fits extends nom.tam.fits.Fits {
     }
 
     public Boolean isObjectType(String target) {
+        //Only the header blocks need to be read for files on disk
+        if (filePath != null) {
+            return Objects.equals(checkHeaderVar("OBJECT"), target);
+        }
+
         BasicHDU<?>[] hdu = this.read();
         //Header header  = hdu[0].getHeader();
         for (BasicHDU<?> h : hdu) {
@@ -80,89 +120,149 @@ public class Fits extends nom.tam.fits.Fits {
     }
 
     /**
-     * @param path File path to look for FITS files - "./test/fits" - used for now
-     * @param type FitsObjectType for shared identifier for dark, flat, or bias
-     * @return an array of images matching the specified FitsObjectType
+     * Walks the directory tree once and reads the header blocks of every file in parallel. Headers are taken from the
+     * catalog in the working directory for files that did not change since the last scan.
+     *
+     * @param path File path to look for FITS files
+     * @return The frames found, in walk order
+     * @throws IOException If the directory cannot be walked.
      */
+    public static List<FitsFrame> scanFrames(String path) throws IOException {
+        return scanFrames(path, (FrameLoader) null);
+    }
 
-    public static Fits[] collectObjects(String path, String type) {
+    /**
+     * Walks the directory tree once and reads the header blocks of every file through a loader. Headers are taken
+     * from the catalog in the working directory for files that did not change since the last scan.
+     *
+     * @param path   File path to look for FITS files
+     * @param loader The loader issuing the header reads, or null to read them on a parallel stream.
+     * @return The frames found, in walk order
+     * @throws IOException If the directory cannot be walked.
+     */
+    public static List<FitsFrame> scanFrames(String path, FrameLoader loader) throws IOException {
+        FitsCatalog catalog = FitsCatalog.open();
+        List<FitsFrame> frames = scanFrames(path, catalog, loader);
 
-        List<String> filePaths;
-        Fits[] imageArray = new Fits[0];
         try {
-            //set path to fits files. I used python test images.
-            Stream<Path> paths = Files.walk(Paths.get(path));
+            catalog.save();
+        } catch (IOException e) {
+            _logger.logException("Could not save the FITS catalog", e);
+        }
+        return frames;
+    }
+
+    /**
+     * Walks the directory tree once and looks up the frame of every file through a catalog.
+     * Files that are not FITS files are skipped.
+     *
+     * @param path    File path to look for FITS files
+     * @param catalog The catalog to read and update. It is not saved.
+     * @return The frames found, in walk order
+     * @throws IOException If the directory cannot be walked.
+     */
+    public static List<FitsFrame> scanFrames(String path, FitsCatalog catalog) throws IOException {
+        return scanFrames(path, catalog, null);
+    }
+
+    /**
+     * Walks the directory tree once and looks up the frame of every file through a catalog.
+     * Files that are not FITS files are skipped.
+     *
+     * @param path    File path to look for FITS files
+     * @param catalog The catalog to read and update. It is not saved.
+     * @param loader  The loader issuing the header reads, or null to read them on a parallel stream.
+     * @return The frames found, in walk order
+     * @throws IOException If the directory cannot be walked.
+     */
+    public static List<FitsFrame> scanFrames(String path, FitsCatalog catalog, FrameLoader loader) throws IOException {
+        List<Path> filePaths;
+        try (Stream<Path> paths = Files.walk(Paths.get(path))) {
             filePaths = paths
                     .filter(Files::isRegularFile)
-                    .map(Path::toString)
+                    .filter(fp -> !fp.getFileName().toString().startsWith(FitsCatalog.DEFAULT_FILE_NAME))
                     .collect(Collectors.toList());
-            imageArray = new Fits[filePaths.size()];
-            int i = 0;
+        }
 
-            //iterate through all file paths in directory
-            for (String fp : filePaths) {
-                Fits fitsFile = new Fits(fp);
+        catalog.retain(Paths.get(path), filePaths);
+        return loader == null ? catalog.getFrames(filePaths) : catalog.getFrames(filePaths, loader);
+    }
 
-                // set header string value. Test images work with "object" but apparently there can be alternatives ways to store this information
-                if (fitsFile.isObjectType(type)) {
-                    imageArray[i] = fitsFile;
-                    i++;
-                }
-            }
-            System.out.printf("Number of |%s| files found: %d\n", type, i);
+    /**
+     * Collects every FITS file under the path in a single header-only scan, partitioned by frame type.
+     *
+     * @param path File path to look for FITS files
+     * @return The images for each {@link Constants.HeaderObjs} value (every key is present)
+     */
+    public static Map<String, Fits[]> collectAllObjects(String path) {
+        return collectAllObjects(path, null);
+    }
 
-            Fits[] resizedImageArray = new Fits[i];
-            //imageArray[0].dumpHeader();
-            System.arraycopy(imageArray, 0, resizedImageArray, 0, i);
-            //resizedImageArray[0].dumpHeader();
-            return resizedImageArray;
+    /**
+     * Collects every FITS file under the path in a single header-only scan, partitioned by frame type.
+     *
+     * @param path   File path to look for FITS files
+     * @param loader The loader issuing the header reads, or null to read them on a parallel stream.
+     * @return The images for each {@link Constants.HeaderObjs} value (every key is present)
+     */
+    public static Map<String, Fits[]> collectAllObjects(String path, FrameLoader loader) {
+        Map<String, List<Fits>> partitioned = new LinkedHashMap<>();
+        for (String type : new String[]{Constants.HeaderObjs.DARK_IMG, Constants.HeaderObjs.FLAT_IMG,
+                Constants.HeaderObjs.BIAS_IMG, Constants.HeaderObjs.SCIENCE_IMG}) {
+            partitioned.put(type, new ArrayList<>());
+        }
 
+        try {
+            for (FitsFrame frame : scanFrames(path, loader)) {
+                partitioned.get(frame.getFrameType()).add(frame.toFits());
+            }
         } catch (FitsException | FileNotFoundException e) {
             _logger.logException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return imageArray;
+
+        Map<String, Fits[]> result = new LinkedHashMap<>();
+        partitioned.forEach((type, images) -> {
+            System.out.printf("Number of |%s| files found: %d\n", type, images.size());
+            result.put(type, images.toArray(new Fits[0]));
+        });
+        return result;
     }
 
-    public static Fits[] collectSciObjs(String path) {
+    /**
+     * @param path File path to look for FITS files - "./test/fits" - used for now
+     * @param type FitsObjectType for shared identifier for dark, flat, or bias
+     * @return an array of images matching the specified FitsObjectType
+     */
 
-        List<String> filePaths;
-        Fits[] imageArray = new Fits[0];
-        try {
-            //set path to fits files. I used python test images.
-            Stream<Path> paths = Files.walk(Paths.get(path));
-            filePaths = paths
-                    .filter(Files::isRegularFile)
-                    .map(Path::toString)
-                    .collect(Collectors.toList());
-            imageArray = new Fits[filePaths.size()];
-            int i = 0;
+    public static Fits[] collectObjects(String path, String type) {
+        return collectFrames(path, type);
+    }
 
-            //iterate through all file paths in directory
-            for (String fp : filePaths) {
-                Fits fitsFile = new Fits(fp);
+    public static Fits[] collectSciObjs(String path) {
+        return collectFrames(path, Constants.HeaderObjs.SCIENCE_IMG);
+    }
 
-                // set header string value. Test images work with "object" but apparently there can be alternatives ways to store this information
-                if (!Constants.isSciImg(fitsFile.checkHeaderVar("OBJECT"))) {
-                    imageArray[i] = fitsFile;
-                    i++;
+    /**
+     * @return the images under the path whose frame type matches
+     */
+    private static Fits[] collectFrames(String path, String type) {
+        List<Fits> images = new ArrayList<>();
+        try {
+            for (FitsFrame frame : scanFrames(path)) {
+                if (type.equals(frame.getFrameType()) || type.equals(frame.getHeader().getStringValue("OBJECT"))) {
+                    images.add(frame.toFits());
                 }
             }
-            System.out.printf("Number of |%s| files found: %d\n", "science", i);
-
-            Fits[] resizedImageArray = new Fits[i];
-            //imageArray[0].dumpHeader();
-            System.arraycopy(imageArray, 0, resizedImageArray, 0, i);
-            //resizedImageArray[0].dumpHeader();
-            return resizedImageArray;
-
         } catch (FitsException | FileNotFoundException e) {
             _logger.logException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return imageArray;
+
+        System.out.printf("Number of |%s| files found: %d\n", type, images.size());
+        return images.toArray(new Fits[0]);
     }
 
     public void setMax() throws IOException, FitsException {
@@ -209,6 +309,11 @@ public class Fits extends nom.tam.fits.Fits {
      * @return dimensions (width, height)
      */
     public int[] getAxes() {
+        //Use the scanned header when there is one
+        if (frame != null) {
+            return frame.getAxes();
+        }
+
         try {
             //Get axes
             int[] rawDims = super.getHDU(0).getAxes();
@@ -238,10 +343,11 @@ public class Fits extends nom.tam.fits.Fits {
 
         try {
             // imageArray = collectDark("./test/fits");
-            darkArr = collectObjects(Constants.testFitsPath, Constants.HeaderObjs.DARK_IMG);
-            flatArr = collectObjects(Constants.testFitsPath, Constants.HeaderObjs.FLAT_IMG);
-            biasArr = collectObjects(Constants.testFitsPath, Constants.HeaderObjs.BIAS_IMG);
-            scienceArr = collectSciObjs(Constants.testFitsPath);
+            Map<String, Fits[]> images = collectAllObjects(Constants.testFitsPath);
+            darkArr = images.get(Constants.HeaderObjs.DARK_IMG);
+            flatArr = images.get(Constants.HeaderObjs.FLAT_IMG);
+            biasArr = images.get(Constants.HeaderObjs.BIAS_IMG);
+            scienceArr = images.get(Constants.HeaderObjs.SCIENCE_IMG);
 
 
         } catch (FitsException e) {
@@ -0,0 +1,252 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.logging.Logger;
+import org.ccode.asset.ctn.logging.LoggerBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Persistent index of FITS headers, keyed by absolute path, file size and modification time.
+ * <p>
+ * A file is only read again when its size or modification time changed since it was indexed, so re-scanning an
+ * unchanged archive does not open a single FITS file. Files found not to be FITS files are remembered as well.
+ */
+public class FitsCatalog {
+    private static final Logger _logger = LoggerBuilder.defaultLogger(FitsCatalog.class.getName());
+
+    public static final String DEFAULT_FILE_NAME = ".fits-catalog";
+    private static final int MAGIC = 0x46435447; // "FCTG"
+    private static final int VERSION = 2;
+
+    private final Path catalogFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    private FitsCatalog(Path catalogFile) {
+        this.catalogFile = catalogFile;
+    }
+
+    /**
+     * @return The catalog stored in the working directory.
+     */
+    public static FitsCatalog open() {
+        return open(Paths.get(DEFAULT_FILE_NAME));
+    }
+
+    /**
+     * Loads a catalog. A missing or unreadable catalog file gives an empty catalog.
+     *
+     * @param catalogFile The file the catalog is stored in.
+     * @return The catalog.
+     */
+    public static FitsCatalog open(Path catalogFile) {
+        FitsCatalog catalog = new FitsCatalog(catalogFile);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(String.format("`%s` is not a catalog of this version.", catalogFile));
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                long dataOffset = in.readLong();
+                int keyCount = in.readInt();
+
+                //A negative key count marks a file that is not a FITS file
+                FitsHeader header = null;
+                if (keyCount >= 0) {
+                    Map<String, String> values = new LinkedHashMap<>();
+                    for (int k = 0; k < keyCount; k++)
+                        values.put(in.readUTF(), in.readUTF());
+                    header = new FitsHeader(Collections.unmodifiableMap(values), dataOffset);
+                }
+
+                catalog.entries.put(path, new Entry(header == null ? null : new FitsFrame(path, size, lastModified, header),
+                        size, lastModified));
+            }
+        } catch (NoSuchFileException e) {
+            //Nothing indexed yet
+        } catch (IOException e) {
+            _logger.logException(String.format("Ignoring unreadable catalog `%s`", catalogFile), e);
+            catalog.entries.clear();
+        }
+
+        return catalog;
+    }
+
+    /**
+     * Returns the frame of a file, reading its header only if the file is new or changed since it was indexed.
+     *
+     * @param file The file.
+     * @return The frame, or null if the file is not a FITS file.
+     * @throws IOException If the file attributes cannot be read.
+     */
+    public FitsFrame getFrame(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        String key = absolute.toString();
+        BasicFileAttributes attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        Entry entry = entries.get(key);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            FitsFrame frame;
+            try {
+                frame = FitsFrame.read(absolute);
+            } catch (IOException e) {
+                _logger.fine(String.format("Skipping `%s`: %s", absolute, e.getMessage()));
+                frame = null;
+            }
+
+            entry = new Entry(frame, size, lastModified);
+            entries.put(key, entry);
+            dirty = true;
+        }
+
+        //Hand out the path the caller used
+        FitsFrame frame = entry.frame;
+        return frame == null ? null : new FitsFrame(file.toString(), frame.getSize(), frame.getLastModified(), frame.getHeader());
+    }
+
+    /**
+     * Looks up the frames of several files in parallel.
+     *
+     * @param files The files.
+     * @return The frames of the files that are FITS files, in the order of files.
+     */
+    public List<FitsFrame> getFrames(List<Path> files) {
+        return files.parallelStream()
+                .map(file -> {
+                    try {
+                        return getFrame(file);
+                    } catch (IOException e) {
+                        _logger.logException(e);
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Looks up the frames of several files, reading the headers of new or changed files through a loader.
+     *
+     * @param files  The files.
+     * @param loader The loader issuing the header reads.
+     * @return The frames of the files that are FITS files, in the order of files.
+     * @throws IOException If the lookup is interrupted.
+     */
+    public List<FitsFrame> getFrames(List<Path> files, FrameLoader loader) throws IOException {
+        List<FitsFrame> frames = loader.loadAll(files, file -> {
+            try {
+                return getFrame(file);
+            } catch (IOException e) {
+                _logger.logException(e);
+                return null;
+            }
+        });
+
+        frames.removeIf(Objects::isNull);
+        return frames;
+    }
+
+    /**
+     * Forgets indexed files under a directory that are not in the given collection, e.g. because they were deleted.
+     *
+     * @param root  The directory that was scanned.
+     * @param files Every file currently under root.
+     */
+    public void retain(Path root, Collection<Path> files) {
+        Path absoluteRoot = root.toAbsolutePath().normalize();
+        Set<String> keep = new HashSet<>();
+        for (Path file : files)
+            keep.add(file.toAbsolutePath().normalize().toString());
+
+        if (entries.keySet().removeIf(key -> Paths.get(key).startsWith(absoluteRoot) && !keep.contains(key))) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the catalog to its file if anything changed since it was loaded.
+     *
+     * @throws IOException If the catalog cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) return;
+
+        //Write next to the catalog and swap it in, so an interrupted write never leaves a broken catalog
+        Path absolute = catalogFile.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), DEFAULT_FILE_NAME, ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            Map<String, Entry> snapshot = new LinkedHashMap<>(entries);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+
+            for (Map.Entry<String, Entry> item : snapshot.entrySet()) {
+                Entry entry = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+
+                if (entry.frame == null) {
+                    out.writeLong(0);
+                    out.writeInt(-1);
+                } else {
+                    FitsHeader header = entry.frame.getHeader();
+                    out.writeLong(header.getDataOffset());
+                    out.writeInt(header.getValues().size());
+                    for (Map.Entry<String, String> value : header.getValues().entrySet()) {
+                        out.writeUTF(value.getKey());
+                        out.writeUTF(value.getValue());
+                    }
+                }
+            }
+        }
+
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    /**
+     * @return The number of indexed files.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        final FitsFrame frame;
+        final long size, lastModified;
+
+        Entry(FitsFrame frame, long size, long lastModified) {
+            this.frame = frame;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
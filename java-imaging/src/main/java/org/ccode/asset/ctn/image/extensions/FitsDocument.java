@@ -6,15 +6,16 @@ import org.ccode.asset.ctn.image.util.Constants;
 import org.ccode.asset.ctn.logging.Logger;
 import org.ccode.asset.ctn.logging.LoggerBuilder;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
 
 public class FitsDocument {
@@ -27,6 +28,29 @@ public class FitsDocument {
      * @return
      */
     public static float[][] extractFloatData(Fits image) {
+        //Decode straight from a memory mapping of the file when there is one
+        if (image.getFilePath() != null) {
+            if (isCompressed(image.getFilePath())) {
+                FloatImage decompressed = extractFloatImage(image.getFilePath());
+                return decompressed == null ? null : decompressed.toArray();
+            }
+
+            try (MappedFitsReader reader = new MappedFitsReader(Paths.get(image.getFilePath()))) {
+                float[] range = reader.getMinMax();
+                float[][] adjustedData = new float[reader.getHeight()][reader.getWidth()];
+                for (int row = 0; row < adjustedData.length; row++)
+                    reader.readRow(row, adjustedData[row], 0);
+
+                //Map each pixel to a 0-1 range
+                Array2D.add(adjustedData, -range[0]);
+                Array2D.multiply(adjustedData, 1f / (range[1] - range[0]));
+                return adjustedData;
+            } catch (IOException e) {
+                _logger.logException(e);
+                return null;
+            }
+        }
+
         BasicHDU imageHDU;
         Object data;
         float [][] rawData = null;
@@ -76,204 +100,210 @@ public class FitsDocument {
         return adjustedData;
     }
 
+    /**
+     * Return raw image float data as one contiguous image, mapped to a 0-1 range
+     *
+     * @param image
+     * @return The image data, or null if it cannot be read.
+     */
+    public static FloatImage extractFloatImage(Fits image) {
+        //Decode straight from a memory mapping of the file when there is one
+        if (image.getFilePath() != null) {
+            return extractFloatImage(image.getFilePath());
+        }
+
+        Object data;
+
+        //Load in data
+        try {
+            data = image.getHDU(0).getKernel();
+        } catch (Exception e) {
+            _logger.logException(e);
+            return null;
+        }
+
+        // Check if the data is a 2D array (image)
+        if (!(data instanceof float[][])) {
+            return null;
+        }
+        float[][] rawData = (float[][]) data;
+
+        //Copy rows into one contiguous buffer while tracking minimum and maximum
+        int imgWidth = rawData[0].length;
+        int imgHeight = rawData.length;
+        FloatImage adjustedData = new FloatImage(imgWidth, imgHeight);
+        float[] pixels = adjustedData.getData();
+
+        float min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int row = 0; row < imgHeight; row++) {
+            System.arraycopy(rawData[row], 0, pixels, row * imgWidth, imgWidth);
+            for (float num : rawData[row]) {
+                if (num > max) max = num;
+                if (num < min) min = num;
+            }
+        }
+
+        //Map each pixel to a 0-1 range
+        float range = max - min;
+        Array2D.add(adjustedData, -min);
+        Array2D.multiply(adjustedData, 1f / range);
+
+        return adjustedData;
+    }
+
+    /**
+     * Return image data of a FITS file as one contiguous image, mapped to a 0-1 range.
+     * The pixels are decoded from a memory mapping of the file, without an intermediate copy. Tile-compressed
+     * images are decompressed instead.
+     *
+     * @param filePath
+     * @return The image data, or null if it cannot be read.
+     */
+    public static FloatImage extractFloatImage(String filePath) {
+        return extractFloatImage(filePath, null);
+    }
+
+    /**
+     * Return image data of a FITS file as one contiguous image, mapped to a 0-1 range.
+     * The pixels are decoded from a memory mapping of the file, without an intermediate copy. Tile-compressed
+     * images are decompressed instead, converting the pixels on the pool.
+     *
+     * @param filePath
+     * @param pool     The pool to convert decompressed pixels on, or null to convert them on the calling thread.
+     * @return The image data, or null if it cannot be read.
+     * @see CompressedFits
+     */
+    public static FloatImage extractFloatImage(String filePath, ForkJoinPool pool) {
+        if (isCompressed(filePath)) {
+            try {
+                return CompressedFits.readNormalized(Paths.get(filePath), pool);
+            } catch (IOException e) {
+                _logger.logException(e);
+                return null;
+            }
+        }
+
+        try (MappedFitsReader reader = new MappedFitsReader(Paths.get(filePath))) {
+            return reader.readNormalized();
+        } catch (IOException e) {
+            _logger.logException(e);
+            return null;
+        }
+    }
+
+    /**
+     * @return If the file holds a tile-compressed image. Unreadable files are left to the uncompressed path to report.
+     */
+    private static boolean isCompressed(String filePath) {
+        try {
+            return CompressedFits.isCompressed(Paths.get(filePath));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * Populates red, green, and blue arrays from raw fits image.
      *
      * @param floatData
-     * @param bayerPat   The bayer pattern that should be used. Current valid options are "RGGB" and "BGGR".
+     * @param bayerPat   The bayer pattern that should be used: "RGGB", "BGGR", "GRBG" or "GBRG".
      * @param redImage
      * @param greenImage
      * @param blueImage
      * @throws IllegalArgumentException If an invalid bayer pattern is given.
+     * @see Debayer
      */
     public static void extractRGB(float[][] floatData, String bayerPat, float[][] redImage, float[][] greenImage, float[][] blueImage) throws IllegalArgumentException {
-        //Image dimensions
-        int imageWidth = floatData[0].length;
-        int imageHeight = floatData.length;
-
-        _logger.info(String.format("rgb w: %d, h: %d", imageWidth, imageHeight));
-
-        //Extract color depending on the Bayer pattern
-        switch (bayerPat.toUpperCase()) {
-            case "RGGB":
-                //Loop through the image
-                for (int row = 1; row < imageHeight - 1; row++) {
-                    for (int col = 1; col < imageWidth - 1; col++) {
-                        //To determine which pixel we're on
-                        int rowRemainder = row % 2;
-                        int colRemainder = col % 2;
-
-                        //On a red pixel
-                        if (rowRemainder == 0 && colRemainder == 0) {
-                            //Set red pixel
-                            redImage[row][col] = floatData[row][col];
-
-                            //Average neighboring green pixels
-                            greenImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col] +
-                                            floatData[row + 1][col] +
-                                            floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-
-                            //Average neighboring blue pixels
-                            blueImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col - 1] +
-                                            floatData[row - 1][col + 1] +
-                                            floatData[row + 1][col - 1] +
-                                            floatData[row + 1][col - 1]);
-                        }
-                        //On a blue pixel
-                        else if (rowRemainder == 1 && colRemainder == 1) {
-                            //Average neighboring red pixels
-                            redImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col - 1] +
-                                            floatData[row - 1][col + 1] +
-                                            floatData[row + 1][col - 1] +
-                                            floatData[row + 1][col - 1]);
-
-                            //Average neighboring green pixels
-                            greenImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col] +
-                                            floatData[row + 1][col] +
-                                            floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-
-                            //Set blue pixel
-                            blueImage[row][col] = floatData[row][col];
-                        }
-                        //On a green pixel (case 1)
-                        else if (rowRemainder == 0 && colRemainder == 1) {
-                            //Average neighboring red pixels
-                            redImage[row][col] = 0.5f * (
-                                    floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-
-                            //Set green pixel
-                            greenImage[row][col] = floatData[row][col];
-
-                            //Average neighboring blue pixels
-                            blueImage[row][col] = 0.5f * (
-                                    floatData[row - 1][col] +
-                                            floatData[row + 1][col]);
-                        }
-                        //On a green pixel (case 2)
-                        else if (rowRemainder == 1 && colRemainder == 0) {
-                            //Average neighboring red pixels
-                            redImage[row][col] = 0.5f * (
-                                    floatData[row - 1][col] +
-                                            floatData[row + 1][col]);
-
-                            //Set green pixel
-                            greenImage[row][col] = floatData[row][col];
-
-                            //Average neighboring blue pixels
-                            blueImage[row][col] = 0.5f * (
-                                    floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-                        }
-                    }
-                }
-                break;
-            case "BGGR":
-                for (int row = 1; row < imageHeight - 1; row++) {
-                    for (int col = 1; col < imageWidth - 1; col++) {
-                        //To determine which pixel we're on
-                        int rowRemainder = row % 2;
-                        int colRemainder = col % 2;
-
-                        //On a blue pixel
-                        if (rowRemainder == 0 && colRemainder == 0) {
-                            //Average neighboring red pixels
-                            redImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col - 1] +
-                                            floatData[row - 1][col + 1] +
-                                            floatData[row + 1][col - 1] +
-                                            floatData[row + 1][col - 1]);
-
-                            //Average neighboring green pixels
-                            greenImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col] +
-                                            floatData[row + 1][col] +
-                                            floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-
-                            //Set blue pixel
-                            blueImage[row][col] = floatData[row][col];
-                        }
-                        //On a red pixel
-                        else if (rowRemainder == 1 && colRemainder == 1) {
-                            //Set red pixel
-                            redImage[row][col] = floatData[row][col];
-
-                            //Average neighboring green pixels
-                            greenImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col] +
-                                            floatData[row + 1][col] +
-                                            floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-
-                            //Average neighboring blue pixels
-                            blueImage[row][col] = 0.25f * (
-                                    floatData[row - 1][col - 1] +
-                                            floatData[row - 1][col + 1] +
-                                            floatData[row + 1][col - 1] +
-                                            floatData[row + 1][col - 1]);
-                        }
-                        //On a green pixel (case 1)
-                        else if (rowRemainder == 0 && colRemainder == 1) {
-                            //Average neighboring red pixels
-                            redImage[row][col] = 0.5f * (
-                                    floatData[row - 1][col] +
-                                            floatData[row + 1][col]);
-
-                            //Set green pixel
-                            greenImage[row][col] = floatData[row][col];
-
-                            //Average neighboring blue pixels
-                            blueImage[row][col] = 0.5f * (
-                                    floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-                        }
-                        //On a green pixel (case 2)
-                        else if (rowRemainder == 1 && colRemainder == 0) {
-                            //Average neighboring red pixels
-                            redImage[row][col] = 0.5f * (
-                                    floatData[row][col - 1] +
-                                            floatData[row][col + 1]);
-
-                            //Set green pixel
-                            greenImage[row][col] = floatData[row][col];
-
-                            //Average neighboring blue pixels
-                            blueImage[row][col] = 0.5f * (
-                                    floatData[row + 1][col] +
-                                            floatData[row - 1][col]);
-                        }
-                    }
-                }
-                break;
-            default:
-                throw new IllegalArgumentException("Invalid Bayer Pattern");
-        }
+        extractRGB(floatData, bayerPat, redImage, greenImage, blueImage, null);
     }
 
-    public static void extractRGB(Fits fitsImage, float[][] redImage, float[][] greenImage, float[][] blueImage) {
-        Header header = null;
-
-        //Get header data
-        try {
-            header = fitsImage.getHDU(0).getHeader();
-        } catch (Exception e) {
-            _logger.logException(e);
-        }
+    /**
+     * Populates red, green, and blue arrays from raw fits image.
+     *
+     * @param floatData
+     * @param bayerPat   The bayer pattern that should be used: "RGGB", "BGGR", "GRBG" or "GBRG".
+     * @param redImage
+     * @param greenImage
+     * @param blueImage
+     * @param pool       The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If an invalid bayer pattern is given.
+     * @see Debayer
+     */
+    public static void extractRGB(float[][] floatData, String bayerPat, float[][] redImage, float[][] greenImage, float[][] blueImage, ForkJoinPool pool) throws IllegalArgumentException {
+        Debayer.debayer(floatData, Debayer.Pattern.parse(bayerPat), redImage, greenImage, blueImage, pool);
+    }
 
+    public static void extractRGB(Fits fitsImage, float[][] redImage, float[][] greenImage, float[][] blueImage) {
         //Get Bayer pattern
-        String bayerpat = header.getStringValue("BAYERPAT");
+        String bayerpat = fitsImage.checkHeaderVar("BAYERPAT");
 
         //Call extractRGB
         extractRGB(Objects.requireNonNull(extractFloatData(fitsImage)), bayerpat, redImage, greenImage, blueImage);
     }
 
+    /**
+     * Populates red, green, and blue images from a raw fits image.
+     *
+     * @param floatData
+     * @param bayerPat   The bayer pattern that should be used: "RGGB", "BGGR", "GRBG" or "GBRG".
+     * @param redImage
+     * @param greenImage
+     * @param blueImage
+     * @throws IllegalArgumentException If an invalid bayer pattern is given or the image sizes do not match.
+     * @see Debayer
+     */
+    public static void extractRGB(FloatImage floatData, String bayerPat, FloatImage redImage, FloatImage greenImage, FloatImage blueImage) throws IllegalArgumentException {
+        extractRGB(floatData, bayerPat, redImage, greenImage, blueImage, null);
+    }
+
+    /**
+     * Populates red, green, and blue images from a raw fits image.
+     *
+     * @param floatData
+     * @param bayerPat   The bayer pattern that should be used: "RGGB", "BGGR", "GRBG" or "GBRG".
+     * @param redImage
+     * @param greenImage
+     * @param blueImage
+     * @param pool       The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If an invalid bayer pattern is given or the image sizes do not match.
+     * @see Debayer
+     */
+    public static void extractRGB(FloatImage floatData, String bayerPat, FloatImage redImage, FloatImage greenImage, FloatImage blueImage, ForkJoinPool pool) throws IllegalArgumentException {
+        Debayer.debayer(floatData, Debayer.Pattern.parse(bayerPat), redImage, greenImage, blueImage, pool);
+    }
+
+    /**
+     * Populates half-resolution red, green, and blue arrays from raw fits image, one pixel per 2x2 Bayer quad.
+     *
+     * @param floatData
+     * @param bayerPat   The bayer pattern that should be used: "RGGB", "BGGR", "GRBG" or "GBRG".
+     * @param redImage   Array of half the width and height of floatData.
+     * @param greenImage Array of half the width and height of floatData.
+     * @param blueImage  Array of half the width and height of floatData.
+     * @param pool       The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If an invalid bayer pattern is given or the array sizes are wrong.
+     * @see Debayer#superPixel
+     */
+    public static void extractSuperPixelRGB(float[][] floatData, String bayerPat, float[][] redImage, float[][] greenImage, float[][] blueImage, ForkJoinPool pool) throws IllegalArgumentException {
+        Debayer.superPixel(floatData, Debayer.Pattern.parse(bayerPat), redImage, greenImage, blueImage, pool);
+    }
+
+    /**
+     * Populates half-resolution red, green, and blue images from a raw fits image, one pixel per 2x2 Bayer quad.
+     *
+     * @param floatData
+     * @param bayerPat   The bayer pattern that should be used: "RGGB", "BGGR", "GRBG" or "GBRG".
+     * @param redImage   Image of half the width and height of floatData.
+     * @param greenImage Image of half the width and height of floatData.
+     * @param blueImage  Image of half the width and height of floatData.
+     * @param pool       The pool to split the rows over, or null to run on the calling thread.
+     * @throws IllegalArgumentException If an invalid bayer pattern is given or the image sizes are wrong.
+     * @see Debayer#superPixel
+     */
+    public static void extractSuperPixelRGB(FloatImage floatData, String bayerPat, FloatImage redImage, FloatImage greenImage, FloatImage blueImage, ForkJoinPool pool) throws IllegalArgumentException {
+        Debayer.superPixel(floatData, Debayer.Pattern.parse(bayerPat), redImage, greenImage, blueImage, pool);
+    }
+
     /**
      * Check all images are the same size
      *
@@ -324,21 +354,18 @@ public class FitsDocument {
      * @throws IOException
      */
     public static Fits[] getFitsFilesFromFolder(String sourceFolder) throws IOException {
-        //Extract files in the folder, filtering for .fit or .fits only
-        File folder = new File(sourceFolder);
-        //
-        FileFilter fileFilter = dir -> Pattern.compile("^.*.fits?$").matcher(dir.getName()).find();
-        File[] files = folder.listFiles(fileFilter);
-        if (files == null) {
-            throw new IOException(String.format("Unable to list the files in the directory: %s", sourceFolder));
-        }
+        File[] files = listFitsFiles(sourceFolder);
 
-        //Create a Fits object for each file
+        //Create a Fits object for each file, with its header from the catalog
         Fits[] fitsImages = new Fits[files.length];
+        FitsCatalog catalog = FitsCatalog.open();
 
         try {
-            for (int i = 0; i < fitsImages.length; i++)
-                fitsImages[i] = new Fits(files[i].getPath());
+            for (int i = 0; i < fitsImages.length; i++) {
+                FitsFrame frame = catalog.getFrame(files[i].toPath());
+                fitsImages[i] = frame == null ? new Fits(files[i].getPath()) : frame.toFits();
+            }
+            catalog.save();
         } catch (Exception e) {
             _logger.logException("Can't create Fits from files", e);
             return null;
@@ -348,162 +375,306 @@ public class FitsDocument {
         return fitsImages;
     }
 
-    //Write fits image to a file
-    public static void writeFits(String destination, float[][] data) {
-        try {
-            // Create a new FITS file
-            File outputFile = new File(destination);
-            Fits fitsFile = new Fits();
+    /**
+     * Get Fits images from folder path, reading the headers of new or changed files concurrently
+     *
+     * @param sourceFolder
+     * @param loader       The loader issuing the header reads.
+     * @return
+     * @throws IOException
+     */
+    public static Fits[] getFitsFilesFromFolder(String sourceFolder, FrameLoader loader) throws IOException {
+        File[] files = listFitsFiles(sourceFolder);
+
+        //Look the files up in the catalog, which only reads the headers it does not know yet
+        FitsCatalog catalog = FitsCatalog.open();
+        List<File> fileList = Arrays.asList(files);
+        List<FitsFrame> frames = loader.loadAll(fileList, file -> catalog.getFrame(file.toPath()));
 
-            // Get image dimensions
-            int width = data[0].length;
-            int height = data.length;
+        Fits[] fitsImages = new Fits[files.length];
+        try {
+            for (int i = 0; i < fitsImages.length; i++) {
+                FitsFrame frame = frames.get(i);
+                fitsImages[i] = frame == null ? new Fits(files[i].getPath()) : frame.toFits();
+            }
+            catalog.save();
+        } catch (Exception e) {
+            _logger.logException("Can't create Fits from files", e);
+            return null;
+        }
 
-            // Convert float[][] to short[][]
-            final int MAX_USHORT_VAL = Short.MAX_VALUE + Math.abs(Short.MIN_VALUE);
-            short[][] fitsData = new short[height][width];
+        return fitsImages;
+    }
 
-            //Scale float data to short range
-            for (int row = 0; row < height; row++)
-                for (int col = 0; col < width; col++)
-                    fitsData[row][col] = (short) (data[row][col] * MAX_USHORT_VAL + Short.MIN_VALUE);
+    /**
+     * Lists the .fit and .fits files in a folder
+     *
+     * @param sourceFolder
+     * @return
+     * @throws IOException If the folder cannot be listed.
+     */
+    private static File[] listFitsFiles(String sourceFolder) throws IOException {
+        //Extract files in the folder, filtering for .fit or .fits only
+        File folder = new File(sourceFolder);
+        //
+        FileFilter fileFilter = dir -> Pattern.compile("^.*.fits?$").matcher(dir.getName()).find();
+        File[] files = folder.listFiles(fileFilter);
+        if (files == null) {
+            throw new IOException(String.format("Unable to list the files in the directory: %s", sourceFolder));
+        }
+        return files;
+    }
 
-            // Add data to fits file
-            BasicHDU<?> hdu = Fits.makeHDU(fitsData);
-            fitsFile.addHDU(hdu);
+    //Write fits image to a file
+    public static void writeFits(String destination, float[][] data) {
+        writeFits(destination, data, null, 16);
+    }
 
-            // Write the FITS file to disk
-            fitsFile.write(outputFile);
-            fitsFile.close();
+    public static void writeFits(String destination, float[][] data, Header newHeader) {
+        writeFits(destination, data, newHeader, 16);
+    }
 
+    /**
+     * Writes an image to a FITS file, streaming the rows straight from the array.
+     *
+     * @param destination
+     * @param data        The image, in the 0-1 range.
+     * @param newHeader   Extra header cards to copy, or null.
+     * @param bitpix      16 or 32 for unsigned integers scaled from 0-1, -32 for the floats as they are.
+     * @see FitsWriter
+     */
+    public static void writeFits(String destination, float[][] data, Header newHeader, int bitpix) {
+        try (FitsWriter writer = new FitsWriter(Paths.get(destination), data[0].length, data.length, bitpix, newHeader)) {
+            for (float[] row : data)
+                writer.writeRow(row, 0);
         } catch (Exception e) {
             _logger.logException(e);
         }
     }
 
-    public static void writeFits(String destination, float[][] data, Header newHeader) {
-        try {
-            // Create a new FITS file
-            File outputFile = new File(destination);
-            Fits fitsFile = new Fits();
-
-            // Get image dimensions
-            int width = data[0].length;
-            int height = data.length;
-
-            // Convert float[][] to short[][]
-            int MAX_USHORT_VAL = Short.MAX_VALUE + Math.abs(Short.MIN_VALUE);
-            short[][] fitsData = new short[height][width];
-
-            //Scale float data to short range
-            for (int row = 0; row < height; row++)
-                for (int col = 0; col < width; col++)
-                    fitsData[row][col] = (short) (data[row][col] * MAX_USHORT_VAL + Short.MIN_VALUE);
-
-            // Add data to fits file
-            ImageHDU hdu = new ImageHDU(newHeader, new ImageData(fitsData));
-            fitsFile.addHDU(hdu);
-
-            // Write the FITS file to disk
-            fitsFile.write(outputFile);
-            fitsFile.close();
+    //Write fits image to a file
+    public static void writeFits(String destination, FloatImage data) {
+        writeFits(destination, data, null, 16);
+    }
+
+    public static void writeFits(String destination, FloatImage data, Header newHeader) {
+        writeFits(destination, data, newHeader, 16);
+    }
+
+    /**
+     * Writes an image to a FITS file, streaming the rows straight from the image buffer.
+     *
+     * @param destination
+     * @param data        The image, in the 0-1 range.
+     * @param newHeader   Extra header cards to copy, or null.
+     * @param bitpix      16 or 32 for unsigned integers scaled from 0-1, -32 for the floats as they are.
+     * @see FitsWriter
+     */
+    public static void writeFits(String destination, FloatImage data, Header newHeader, int bitpix) {
+        try (FitsWriter writer = new FitsWriter(Paths.get(destination), data.getWidth(), data.getHeight(), bitpix, newHeader)) {
+            writer.writeRows(data);
         } catch (Exception e) {
             _logger.logException(e);
         }
     }
 
-    //TODO: Might need to adjust image format
+    /**
+     * Writes an image to a tile-compressed FITS file.
+     *
+     * @param destination
+     * @param data        The image, in the 0-1 range.
+     * @param newHeader   Extra header cards to copy, or null.
+     * @param bitpix      16 or 32 for unsigned integers scaled from 0-1, -32 for the floats as they are.
+     * @param compression {@link CompressedFits#RICE}, {@link CompressedFits#GZIP} or
+     *                    {@link CompressedFits#GZIP_SHUFFLED}, or null to write the image uncompressed.
+     * @see CompressedFits
+     */
+    public static void writeFits(String destination, float[][] data, Header newHeader, int bitpix, String compression) {
+        if (compression == null) {
+            writeFits(destination, data, newHeader, bitpix);
+            return;
+        }
+        writeFits(destination, FloatImage.fromArray(data), newHeader, bitpix, compression);
+    }
 
     /**
-     * @param filePath
-     * @return image portion of FITS file as a BufferedImage
+     * Writes an image to a tile-compressed FITS file.
+     *
+     * @param destination
+     * @param data        The image, in the 0-1 range.
+     * @param newHeader   Extra header cards to copy, or null.
+     * @param bitpix      16 or 32 for unsigned integers scaled from 0-1, -32 for the floats as they are.
+     * @param compression {@link CompressedFits#RICE}, {@link CompressedFits#GZIP} or
+     *                    {@link CompressedFits#GZIP_SHUFFLED}, or null to write the image uncompressed. The image is
+     *                    also written uncompressed if it cannot be compressed.
+     * @see CompressedFits
      */
-    public static BufferedImage getImagePNG(String filePath) {
-        Fits fits = null;
-        BufferedImage image = null;
+    public static void writeFits(String destination, FloatImage data, Header newHeader, int bitpix, String compression) {
+        if (compression == null) {
+            writeFits(destination, data, newHeader, bitpix);
+            return;
+        }
 
-        //Read Fits file
         try {
-            fits = new Fits(filePath);
+            CompressedFits.write(Paths.get(destination), data, newHeader, bitpix, compression, null);
+        } catch (IOException e) {
+            //Still write the image, just without compression
+            _logger.logException(e);
+            writeFits(destination, data, newHeader, bitpix);
         } catch (Exception e) {
             _logger.logException(e);
         }
+    }
 
-        //Read in raw float data
-        float[][] imageData = extractFloatData(fits);
-
-        if (imageData != null) //If there is image data
-        {
-            //Get image width and height
-            int height = imageData.length;
-            int width = imageData[0].length;
-
-            //Construct and populate Buffered image
-            image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    float pixelValue = imageData[y][x];
-                    int normalizedPixel = Math.min((int) pixelValue, 255); //Cap values at 255
-                    int pixel = (normalizedPixel << 16) | (normalizedPixel << 8) | normalizedPixel; //Format for png
-                    image.setRGB(x, y, pixel); //Update BufferedImage
-                }
-            }
+    /**
+     * @param filePath
+     * @return image portion of FITS file as an 8-bit grayscale BufferedImage, or null if it cannot be read
+     */
+    public static BufferedImage getImagePNG(String filePath) {
+        return getImagePNG(filePath, 8, null);
+    }
+
+    /**
+     * @param filePath
+     * @param bitDepth 8 or 16.
+     * @param pool     The pool to read and convert on, or null to work on the calling thread.
+     * @return image portion of FITS file as a grayscale BufferedImage, or null if it cannot be read
+     * @see PngEncoder
+     */
+    public static BufferedImage getImagePNG(String filePath, int bitDepth, ForkJoinPool pool) {
+        //Read in the image data, mapped to a 0-1 range
+        FloatImage imageData = extractFloatImage(filePath, pool);
+        if (imageData == null) {
+            return null;
         }
 
-        //Return BufferedImage
-        return image;
+        return PngEncoder.toImage(ImageExpression.of(imageData), bitDepth, pool);
+    }
 
+    /**
+     * Creates a PNG file from RGB or greyscale data
+     *
+     * @param destination
+     * @param red
+     * @param green
+     * @param blue
+     */
+    public static void createPNG(String destination, float[][] red, float[][] green, float[][] blue) {
+        createPNG(destination, red, green, blue, 8, null);
     }
 
+    /**
+     * Creates a PNG file from RGB data in the 0-1 range
+     *
+     * @param destination
+     * @param red
+     * @param green
+     * @param blue
+     * @param bitDepth    8 or 16 bits per channel.
+     * @param pool        The pool to convert on, or null to convert on the calling thread.
+     * @see PngEncoder
+     */
+    public static void createPNG(String destination, float[][] red, float[][] green, float[][] blue, int bitDepth, ForkJoinPool pool) {
+        createPNG(destination, ImageExpression.of(red), ImageExpression.of(green), ImageExpression.of(blue), bitDepth, pool);
+    }
 
-    //TODO: Might need to adjust image format
-    // FIXME: Every image generated has come out completely black.
+    public static void createPNG(String destination, float[][] grayscale) {
+        createPNG(destination, grayscale, 8, null);
+    }
 
     /**
-     * Creates a PNG file from RGB or greyscale data
+     * Creates a grayscale PNG file from data in the 0-1 range
+     *
+     * @param destination
+     * @param grayscale
+     * @param bitDepth    8 or 16.
+     * @param pool        The pool to convert on, or null to convert on the calling thread.
+     * @see PngEncoder
+     */
+    public static void createPNG(String destination, float[][] grayscale, int bitDepth, ForkJoinPool pool) {
+        createPNG(destination, ImageExpression.of(grayscale), bitDepth, pool);
+    }
+
+    /**
+     * Creates a PNG file from RGB images
      *
      * @param destination
      * @param red
      * @param green
      * @param blue
      */
-    public static void createPNG(String destination, float[][] red, float[][] green, float[][] blue) {
+    public static void createPNG(String destination, FloatImage red, FloatImage green, FloatImage blue) {
+        createPNG(destination, red, green, blue, 8, null);
+    }
+
+    /**
+     * Creates a PNG file from RGB images in the 0-1 range
+     *
+     * @param destination
+     * @param red
+     * @param green
+     * @param blue
+     * @param bitDepth    8 or 16 bits per channel.
+     * @param pool        The pool to convert on, or null to convert on the calling thread.
+     * @see PngEncoder
+     */
+    public static void createPNG(String destination, FloatImage red, FloatImage green, FloatImage blue, int bitDepth, ForkJoinPool pool) {
+        createPNG(destination, ImageExpression.of(red), ImageExpression.of(green), ImageExpression.of(blue), bitDepth, pool);
+    }
 
-        //Find width and height
-        int width = red[0].length;
-        int height = red.length;
-        BufferedImage image;
+    public static void createPNG(String destination, FloatImage grayscale) {
+        createPNG(destination, grayscale, 8, null);
+    }
 
-        try {
-            //Create appropriately sized image
-            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-            int r, g, b, rgb;
-            // Set pixel values from raw data
-            for (int row = 0; row < width; row++) {
-                for (int col = 0; col < height; col++) {
-                    //Map values to 0-255 range
-                    r = (int) (red[col][row] / Short.MAX_VALUE * 255) & 0xFF;
-                    g = (int) (green[col][row] / Short.MAX_VALUE * 255) & 0xFF;
-                    b = (int) (blue[col][row] / Short.MAX_VALUE * 255) & 0xFF;
-                    rgb = (r << 16) | (g << 8) | b; //Encode in png format
-                    image.setRGB(row, col, rgb);
-                }
-            }
+    /**
+     * Creates a grayscale PNG file from an image in the 0-1 range
+     *
+     * @param destination
+     * @param grayscale
+     * @param bitDepth    8 or 16.
+     * @param pool        The pool to convert on, or null to convert on the calling thread.
+     * @see PngEncoder
+     */
+    public static void createPNG(String destination, FloatImage grayscale, int bitDepth, ForkJoinPool pool) {
+        createPNG(destination, ImageExpression.of(grayscale), bitDepth, pool);
+    }
 
-            // Save the image as PNG
-            ImageIO.write(image, "PNG", new File(destination));
+    /**
+     * Creates a PNG file from RGB expressions in the 0-1 range, e.g. with a stretch applied while encoding
+     *
+     * @param destination
+     * @param red
+     * @param green
+     * @param blue
+     * @param bitDepth    8 or 16 bits per channel.
+     * @param pool        The pool to convert on, or null to convert on the calling thread.
+     * @see PngEncoder
+     */
+    public static void createPNG(String destination, ImageExpression red, ImageExpression green, ImageExpression blue, int bitDepth, ForkJoinPool pool) {
+        try {
+            PngEncoder.write(PngEncoder.toImage(red, green, blue, bitDepth, pool), destination);
         } catch (Exception e) {
             _logger.logException(e);
         }
     }
 
-    public static void createPNG(String destination, float[][] grayscale) {
-        createPNG(destination, grayscale, grayscale, grayscale);
+    /**
+     * Creates a grayscale PNG file from an expression in the 0-1 range
+     *
+     * @param destination
+     * @param grayscale
+     * @param bitDepth    8 or 16.
+     * @param pool        The pool to convert on, or null to convert on the calling thread.
+     * @see PngEncoder
+     */
+    public static void createPNG(String destination, ImageExpression grayscale, int bitDepth, ForkJoinPool pool) {
+        try {
+            PngEncoder.write(PngEncoder.toImage(grayscale, bitDepth, pool), destination);
+        } catch (Exception e) {
+            _logger.logException(e);
+        }
     }
 
-
     /**
      * Prints out header information
      *
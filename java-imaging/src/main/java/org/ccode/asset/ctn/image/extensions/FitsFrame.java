@@ -0,0 +1,103 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import nom.tam.fits.FitsException;
+import org.ccode.asset.ctn.image.util.Constants;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+
+/**
+ * Header-only description of a FITS file on disk: where it is, its primary header and the kind of frame it holds.
+ */
+public class FitsFrame {
+    private final String filePath;
+    private final long size, lastModified;
+    private final FitsHeader header;
+
+    public FitsFrame(String filePath, long size, long lastModified, FitsHeader header) {
+        this.filePath = filePath;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.header = header;
+    }
+
+    /**
+     * Reads the header blocks of a FITS file.
+     *
+     * @param path The FITS file.
+     * @return The frame description.
+     * @throws IOException If the file cannot be read or is not a FITS file.
+     */
+    public static FitsFrame read(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        FitsHeader header = FitsHeader.readImageHeader(path);
+
+        if (!"T".equals(header.getStringValue("SIMPLE"))) {
+            throw new IOException(String.format("File: `%s` is not a FITS file.", path));
+        }
+
+        return new FitsFrame(path.toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), header);
+    }
+
+    /**
+     * Classifies the frame from its header. OBJECT is checked first, as in {@link Fits#isObjectType}; IMAGETYP
+     * values such as "Dark Frame" or "Flat Field" are used when OBJECT does not name a calibration frame.
+     *
+     * @return One of the {@link Constants.HeaderObjs} values.
+     */
+    public String getFrameType() {
+        String object = header.getStringValue("OBJECT");
+        for (String type : new String[]{Constants.HeaderObjs.DARK_IMG, Constants.HeaderObjs.FLAT_IMG, Constants.HeaderObjs.BIAS_IMG}) {
+            if (type.equals(object)) return type;
+        }
+
+        String imageType = header.getStringValue("IMAGETYP");
+        if (imageType != null) {
+            imageType = imageType.toLowerCase(Locale.ROOT);
+            for (String type : new String[]{Constants.HeaderObjs.DARK_IMG, Constants.HeaderObjs.FLAT_IMG, Constants.HeaderObjs.BIAS_IMG}) {
+                if (imageType.contains(type)) return type;
+            }
+        }
+
+        return Constants.HeaderObjs.SCIENCE_IMG;
+    }
+
+    /**
+     * @return A Fits object for the file that answers header queries from this frame.
+     */
+    public Fits toFits() throws FitsException, FileNotFoundException {
+        return new Fits(this);
+    }
+
+    /**
+     * @return dimensions (width, height)
+     */
+    public int[] getAxes() {
+        int[] naxes = header.getNaxes();
+        return naxes.length < 2 ? null : new int[]{naxes[0], naxes[1]};
+    }
+
+    public int getBitpix() {
+        return header.getBitpix();
+    }
+
+    public FitsHeader getHeader() {
+        return header;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,266 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Lightweight parser for the primary header of a FITS file.
+ * <p>
+ * Only the 2880-byte header blocks are read; the data unit is never touched. Values are kept as the raw strings
+ * found in the cards (with quotes removed from string values).
+ */
+public class FitsHeader {
+    public static final int BLOCK_SIZE = 2880;
+    public static final int CARD_SIZE = 80;
+
+    //Cards describing the binary table of a tile-compressed image rather than the image itself
+    private static final Pattern TABLE_KEYS = Pattern.compile("XTENSION|BITPIX|NAXIS\\d*|PCOUNT|GCOUNT|TFIELDS|THEAP"
+            + "|T(TYPE|FORM|UNIT|DIM|NULL|SCAL|ZERO|DISP)\\d+|ZSIMPLE|ZTENSION|ZEXTEND|ZBLOCKED|ZPCOUNT|ZGCOUNT|ZBITPIX"
+            + "|ZNAXIS\\d*|ZTILE\\d+|ZNAME\\d+|ZVAL\\d+|ZQUANTIZ|ZDITHER0|ZHECKSUM|ZDATASUM");
+
+    private final Map<String, String> values;
+    private final long dataOffset;
+
+    FitsHeader(Map<String, String> values, long dataOffset) {
+        this.values = values;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Reads the primary header of a FITS file.
+     *
+     * @param path The FITS file.
+     * @return The parsed header.
+     * @throws IOException If the file cannot be read or has no END card.
+     */
+    public static FitsHeader read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /**
+     * Reads the primary header starting at the beginning of the channel.
+     *
+     * @param channel An open channel of a FITS file.
+     * @return The parsed header.
+     * @throws IOException If the channel cannot be read or has no END card.
+     */
+    public static FitsHeader read(FileChannel channel) throws IOException {
+        return read(channel, 0);
+    }
+
+    /**
+     * Reads a header starting at a block boundary, e.g. the header of an extension.
+     *
+     * @param channel An open channel of a FITS file.
+     * @param start   Byte offset of the first header block.
+     * @return The parsed header.
+     * @throws IOException If the channel cannot be read or has no END card.
+     */
+    public static FitsHeader read(FileChannel channel, long start) throws IOException {
+        Map<String, String> values = new LinkedHashMap<>();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        byte[] card = new byte[CARD_SIZE];
+        long position = start;
+
+        while (true) {
+            //Read one full header block
+            block.clear();
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) {
+                    throw new EOFException("FITS header has no END card.");
+                }
+            }
+            position += BLOCK_SIZE;
+            block.flip();
+
+            //Parse the 36 cards of the block
+            while (block.hasRemaining()) {
+                block.get(card);
+                String keyword = new String(card, 0, 8, StandardCharsets.US_ASCII).trim();
+
+                if (keyword.equals("END")) {
+                    return new FitsHeader(Collections.unmodifiableMap(values), position);
+                }
+                if (card[8] == '=' && card[9] == ' ' && !keyword.isEmpty()) {
+                    values.putIfAbsent(keyword, parseValue(new String(card, 10, CARD_SIZE - 10, StandardCharsets.US_ASCII)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the header describing the image of a FITS file. This is the primary header, except for tile-compressed
+     * images (an empty primary HDU followed by a ZIMAGE binary table): then the cards of the table are returned with
+     * BITPIX and NAXISn taken from ZBITPIX and ZNAXISn, so that they describe the uncompressed image, and ZIMAGE kept
+     * to mark the header as {@link #isCompressed() compressed}.
+     *
+     * @param path The FITS file.
+     * @return The parsed header.
+     * @throws IOException If the file cannot be read or a header has no END card.
+     */
+    public static FitsHeader readImageHeader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            FitsHeader primary = read(channel);
+            if (primary.getNaxes().length != 0 || !"T".equals(primary.getStringValue("EXTEND"))
+                    || primary.getDataOffset() >= channel.size()) {
+                return primary;
+            }
+
+            //An empty primary HDU has no data, so the first extension starts right after its header
+            FitsHeader extension = read(channel, primary.getDataOffset());
+            if (!"T".equals(extension.getStringValue("ZIMAGE"))) {
+                return primary;
+            }
+
+            Map<String, String> values = new LinkedHashMap<>();
+            values.put("SIMPLE", "T");
+            values.put("BITPIX", extension.getStringValue("ZBITPIX"));
+            int naxis = extension.getIntValue("ZNAXIS", 0);
+            values.put("NAXIS", Integer.toString(naxis));
+            for (int i = 1; i <= naxis; i++)
+                values.put("NAXIS" + i, extension.getStringValue("ZNAXIS" + i));
+
+            //Image cards of the table first, then anything only found in the primary header
+            extension.values.forEach((keyword, value) -> {
+                if (!TABLE_KEYS.matcher(keyword).matches()) values.putIfAbsent(keyword, value);
+            });
+            primary.values.forEach(values::putIfAbsent);
+            return new FitsHeader(Collections.unmodifiableMap(values), extension.getDataOffset());
+        }
+    }
+
+    /**
+     * Extracts the value from the value/comment field of a card.
+     *
+     * @param field Columns 11-80 of the card.
+     * @return The value without its comment, with quotes removed from strings.
+     */
+    static String parseValue(String field) {
+        String trimmed = field.trim();
+
+        //String values are quoted, with '' as an escaped quote
+        if (trimmed.startsWith("'")) {
+            StringBuilder value = new StringBuilder();
+            for (int i = 1; i < trimmed.length(); i++) {
+                char c = trimmed.charAt(i);
+                if (c == '\'') {
+                    if (i + 1 < trimmed.length() && trimmed.charAt(i + 1) == '\'') {
+                        value.append('\'');
+                        i++;
+                    } else {
+                        break;
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+            return value.toString().trim();
+        }
+
+        //Other values end at the comment
+        int comment = trimmed.indexOf('/');
+        return (comment < 0 ? trimmed : trimmed.substring(0, comment)).trim();
+    }
+
+    /**
+     * @return If the keyword has a value in the header.
+     */
+    public boolean containsKey(String keyword) {
+        return values.containsKey(keyword);
+    }
+
+    /**
+     * @return The string value of the keyword, or null if it is missing.
+     */
+    public String getStringValue(String keyword) {
+        return values.get(keyword);
+    }
+
+    /**
+     * @return The integer value of the keyword, or defaultValue if it is missing or not an integer.
+     */
+    public int getIntValue(String keyword, int defaultValue) {
+        String value = values.get(keyword);
+        if (value == null) return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return The floating point value of the keyword, or defaultValue if it is missing or not a number.
+     */
+    public double getDoubleValue(String keyword, double defaultValue) {
+        String value = values.get(keyword);
+        if (value == null) return defaultValue;
+
+        try {
+            return Double.parseDouble(value.replace('D', 'E'));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return All keywords with a value, in header order.
+     */
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    /**
+     * @return If this is the header of a tile-compressed image, see {@link #readImageHeader(Path)}.
+     */
+    public boolean isCompressed() {
+        return "T".equals(values.get("ZIMAGE"));
+    }
+
+    public int getBitpix() {
+        return getIntValue("BITPIX", 0);
+    }
+
+    /**
+     * @return NAXISn values in header order (NAXIS1 first).
+     */
+    public int[] getNaxes() {
+        int[] naxes = new int[getIntValue("NAXIS", 0)];
+        for (int i = 0; i < naxes.length; i++)
+            naxes[i] = getIntValue("NAXIS" + (i + 1), 0);
+        return naxes;
+    }
+
+    /**
+     * @return Byte offset of the data unit from the start of the file. For a compressed image this is the start of
+     * the binary table.
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * @return Size of the data unit in bytes, without padding. For a compressed image this is the uncompressed size.
+     */
+    public long getDataSize() {
+        int[] naxes = getNaxes();
+        if (naxes.length == 0) return 0;
+
+        long size = Math.abs(getBitpix()) / 8;
+        for (int naxis : naxes)
+            size *= naxis;
+        return size;
+    }
+}
@@ -0,0 +1,217 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import nom.tam.fits.Header;
+import nom.tam.fits.HeaderCard;
+import nom.tam.util.Cursor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Writes a single image FITS file row by row, converting each row straight from the caller's buffer into the
+ * output, so no second copy of the image is ever made.
+ * <p>
+ * Pixels are expected in the 0-1 range used throughout the pipeline. With BITPIX 16 and 32 they are scaled to the
+ * full unsigned range and stored with the usual BZERO offset (values outside 0-1 are clipped), with BITPIX -32 they
+ * are stored as they are. As in the conversion this replaces, NaN is stored as 0, which reads back as BZERO.
+ */
+public class FitsWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final float MAX_USHORT_VAL = Short.MAX_VALUE + Math.abs(Short.MIN_VALUE);
+    private static final double MAX_UINT_VAL = Integer.MAX_VALUE + Math.abs((double) Integer.MIN_VALUE);
+
+    //Cards the writer sets itself, dropped from a header given by the caller
+    static final Set<String> STRUCTURAL_KEYS = new HashSet<>(Arrays.asList(
+            "SIMPLE", "XTENSION", "BITPIX", "NAXIS", "NAXIS1", "NAXIS2", "NAXIS3", "EXTEND", "PCOUNT", "GCOUNT",
+            "BZERO", "BSCALE", "END"));
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final int width, height, bitpix;
+    private long bytesWritten;
+    private int rowsWritten;
+
+    /**
+     * Creates the file and writes its header.
+     *
+     * @param path   The file to write. An existing file is replaced.
+     * @param width  The image width.
+     * @param height The image height.
+     * @param bitpix 16, 32 or -32.
+     * @param header Extra header cards to copy, e.g. from the source frame, or null. Structural cards and
+     *               BZERO/BSCALE are replaced by the ones matching the output.
+     * @throws IOException If the file cannot be written.
+     */
+    public FitsWriter(Path path, int width, int height, int bitpix, Header header) throws IOException {
+        if (bitpix != 16 && bitpix != 32 && bitpix != -32) {
+            throw new IllegalArgumentException(String.format("Unsupported BITPIX %d, use 16, 32 or -32.", bitpix));
+        }
+
+        this.width = width;
+        this.height = height;
+        this.bitpix = bitpix;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        try {
+            writeHeader(header);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader(Header header) throws IOException {
+        StringBuilder cards = new StringBuilder();
+        cards.append(card("SIMPLE", "T"));
+        cards.append(card("BITPIX", Integer.toString(bitpix)));
+        cards.append(card("NAXIS", "2"));
+        cards.append(card("NAXIS1", Integer.toString(width)));
+        cards.append(card("NAXIS2", Integer.toString(height)));
+        if (bitpix == 16) {
+            cards.append(card("BZERO", "32768"));
+            cards.append(card("BSCALE", "1"));
+        } else if (bitpix == 32) {
+            cards.append(card("BZERO", "2147483648"));
+            cards.append(card("BSCALE", "1"));
+        }
+
+        if (header != null) {
+            for (Cursor<String, HeaderCard> it = header.iterator(); it.hasNext(); ) {
+                HeaderCard card = it.next();
+                if (card.getKey() != null && STRUCTURAL_KEYS.contains(card.getKey().toUpperCase(Locale.ROOT))) continue;
+                cards.append(pad(card.toString(), FitsHeader.CARD_SIZE));
+            }
+        }
+
+        cards.append(pad("END", FitsHeader.CARD_SIZE));
+        writeBytes(pad(cards.toString(), FitsHeader.BLOCK_SIZE).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Writes the next row.
+     *
+     * @param src The pixels.
+     * @param pos The index of the first pixel of the row in src.
+     * @throws IOException If the row cannot be written.
+     */
+    public void writeRow(float[] src, int pos) throws IOException {
+        if (rowsWritten == height) {
+            throw new IllegalStateException("All rows have been written already.");
+        }
+
+        int bytesPerPixel = Math.abs(bitpix) / 8;
+        for (int col = 0; col < width; ) {
+            if (buffer.remaining() < bytesPerPixel) flush();
+            int end = Math.min(width, col + buffer.remaining() / bytesPerPixel);
+
+            //One loop per type, so the conversion is decided once per chunk
+            switch (bitpix) {
+                case 16:
+                    for (; col < end; col++)
+                        buffer.putShort(toStoredShort(src[pos + col]));
+                    break;
+                case 32:
+                    for (; col < end; col++)
+                        buffer.putInt(toStoredInt(src[pos + col]));
+                    break;
+                default:
+                    for (; col < end; col++)
+                        buffer.putFloat(src[pos + col]);
+                    break;
+            }
+        }
+        rowsWritten++;
+    }
+
+    /**
+     * Writes the rows of an image, starting at the next row of the file.
+     *
+     * @param rows The rows to write.
+     * @throws IOException If the rows cannot be written.
+     */
+    public void writeRows(FloatImage rows) throws IOException {
+        for (int row = 0; row < rows.getHeight(); row++)
+            writeRow(rows.getData(), rows.rowOffset(row));
+    }
+
+    /**
+     * Pads the data to a whole FITS block and closes the file.
+     *
+     * @throws IOException If the file cannot be written, or not all rows were written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten == height) {
+                flush();
+                long padding = (FitsHeader.BLOCK_SIZE - bytesWritten % FitsHeader.BLOCK_SIZE) % FitsHeader.BLOCK_SIZE;
+                writeBytes(new byte[(int) padding]);
+            }
+        } finally {
+            channel.close();
+        }
+
+        if (rowsWritten != height) {
+            throw new IOException(String.format("Only %d of %d rows were written.", rowsWritten, height));
+        }
+    }
+
+    /**
+     * @return The value stored for a 0-1 pixel with BITPIX 16 and BZERO 32768.
+     */
+    static short toStoredShort(float value) {
+        return (short) (clip(value) * MAX_USHORT_VAL + Short.MIN_VALUE);
+    }
+
+    /**
+     * @return The value stored for a 0-1 pixel with BITPIX 32 and BZERO 2147483648.
+     */
+    static int toStoredInt(float value) {
+        return (int) (clip(value) * MAX_UINT_VAL + Integer.MIN_VALUE);
+    }
+
+    private static float clip(float value) {
+        return Math.max(0f, Math.min(1f, value));
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            bytesWritten += channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+        while (wrapped.hasRemaining())
+            bytesWritten += channel.write(wrapped);
+    }
+
+    /**
+     * @return A fixed-format card with the value right-aligned in columns 11-30.
+     */
+    private static String card(String key, String value) {
+        return pad(String.format("%-8s= %20s", key, value), FitsHeader.CARD_SIZE);
+    }
+
+    /**
+     * @return The text padded with spaces to a multiple of size.
+     */
+    private static String pad(String text, int size) {
+        StringBuilder padded = new StringBuilder(text);
+        while (padded.length() % size != 0)
+            padded.append(' ');
+        return padded.toString();
+    }
+}
@@ -0,0 +1,211 @@
+package org.ccode.asset.ctn.image.extensions;
+
+/**
+ * A 2D float image stored in a single contiguous float[].
+ * <p>
+ * Pixel (x, y) lives at {@code data[offset + y * stride + x]}. Views created with {@link #view} and {@link #rows}
+ * share the backing array, so a band or region of interest can be handed to a kernel without copying.
+ */
+public class FloatImage {
+    private final float[] data;
+    private final int width, height, offset, stride;
+
+    /**
+     * Allocates a new zero-filled image.
+     *
+     * @param width  The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     */
+    public FloatImage(int width, int height) {
+        this(new float[Math.multiplyExact(width, height)], width, height, 0, width);
+    }
+
+    /**
+     * Creates an image over an existing backing array.
+     *
+     * @param data   The backing array.
+     * @param width  The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param offset Index of pixel (0, 0) in the backing array.
+     * @param stride Distance between the start of two consecutive rows in the backing array.
+     * @throws IllegalArgumentException If the image does not fit in the backing array.
+     */
+    public FloatImage(float[] data, int width, int height, int offset, int stride) {
+        if (width <= 0 || height <= 0 || stride < width || offset < 0) {
+            throw new IllegalArgumentException(String.format("Invalid image geometry: w: %d, h: %d, offset: %d, stride: %d",
+                    width, height, offset, stride));
+        }
+        if ((long) offset + (long) (height - 1) * stride + width > data.length) {
+            throw new IllegalArgumentException("The image does not fit in the backing array.");
+        }
+
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    /**
+     * Wraps a row-major array without copying.
+     *
+     * @param data   Row-major pixel data, at least width * height long.
+     * @param width  The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @return An image backed by data.
+     */
+    public static FloatImage wrap(float[] data, int width, int height) {
+        return new FloatImage(data, width, height, 0, width);
+    }
+
+    /**
+     * Copies a jagged 2D array into a new contiguous image.
+     *
+     * @param arr The array to be copied.
+     * @return A new image holding the same values.
+     */
+    public static FloatImage fromArray(float[][] arr) {
+        int width = arr[0].length;
+        int height = arr.length;
+
+        FloatImage image = new FloatImage(width, height);
+        for (int row = 0; row < height; row++)
+            System.arraycopy(arr[row], 0, image.data, row * width, width);
+
+        return image;
+    }
+
+    /**
+     * Copies the image into a new jagged 2D array.
+     *
+     * @return A new [height][width] array holding the same values.
+     */
+    public float[][] toArray() {
+        float[][] arr = new float[height][width];
+        for (int row = 0; row < height; row++)
+            System.arraycopy(data, rowOffset(row), arr[row], 0, width);
+
+        return arr;
+    }
+
+    /**
+     * Creates a view of a rectangular region. The view shares the backing array with this image.
+     *
+     * @param x      Left column of the region.
+     * @param y      Top row of the region.
+     * @param width  Width of the region.
+     * @param height Height of the region.
+     * @return A view of the region.
+     * @throws IllegalArgumentException If the region is outside of the image.
+     */
+    public FloatImage view(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > this.width || y + height > this.height) {
+            throw new IllegalArgumentException(String.format("Region (%d, %d, %d, %d) is outside of a %dx%d image.",
+                    x, y, width, height, this.width, this.height));
+        }
+        return new FloatImage(data, width, height, index(x, y), stride);
+    }
+
+    /**
+     * Creates a view of a band of full rows.
+     *
+     * @param startRow The first row of the band.
+     * @param count    The number of rows in the band.
+     * @return A view of the band.
+     */
+    public FloatImage rows(int startRow, int count) {
+        return view(0, startRow, width, count);
+    }
+
+    /**
+     * @return A new contiguous image holding the same values as this image (or view).
+     */
+    public FloatImage copy() {
+        FloatImage copy = new FloatImage(width, height);
+        for (int row = 0; row < height; row++)
+            System.arraycopy(data, rowOffset(row), copy.data, row * width, width);
+
+        return copy;
+    }
+
+    /**
+     * Copies one row into a destination array.
+     *
+     * @param row    The row to copy.
+     * @param dst    The destination array.
+     * @param dstPos The position in dst to start writing at.
+     */
+    public void getRow(int row, float[] dst, int dstPos) {
+        System.arraycopy(data, rowOffset(row), dst, dstPos, width);
+    }
+
+    /**
+     * Overwrites one row from a source array.
+     *
+     * @param row    The row to overwrite.
+     * @param src    The source array.
+     * @param srcPos The position in src to start reading from.
+     */
+    public void setRow(int row, float[] src, int srcPos) {
+        System.arraycopy(src, srcPos, data, rowOffset(row), width);
+    }
+
+    public float get(int x, int y) {
+        return data[index(x, y)];
+    }
+
+    public void set(int x, int y, float value) {
+        data[index(x, y)] = value;
+    }
+
+    /**
+     * @return Index of pixel (x, y) in the backing array.
+     */
+    public int index(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    /**
+     * @return Index of the first pixel of the row in the backing array.
+     */
+    public int rowOffset(int row) {
+        return offset + row * stride;
+    }
+
+    /**
+     * @return If the pixels of this image occupy one gap-free range of the backing array.
+     */
+    public boolean isContiguous() {
+        return stride == width || height == 1;
+    }
+
+    /**
+     * @return If both images have the same width and height.
+     */
+    public boolean hasSameSize(FloatImage other) {
+        return width == other.width && height == other.height;
+    }
+
+    /**
+     * @return The backing array. Pixels are only at the indexes given by {@link #index}.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+}
@@ -0,0 +1,237 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.logging.Logger;
+import org.ccode.asset.ctn.logging.LoggerBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Loads frames (headers or pixel data) concurrently, for storage where latency rather than bandwidth limits reading.
+ * <p>
+ * On JDK 21+ every read runs on its own virtual thread, elsewhere on a fixed pool of platform threads. Either way at
+ * most {@link #getConcurrency()} reads are in progress at once, so that the storage is not flooded, and results are
+ * handed back in the order of the inputs. Set the system property {@code imaging.virtualThreads=false} to always use
+ * platform threads.
+ * <p>
+ * Reads of large results, e.g. pixel data, are {@link #prefetch prefetched} a few inputs ahead of the caller, which
+ * bounds the memory whatever the concurrency allowed for small reads such as headers.
+ */
+public class FrameLoader implements Closeable {
+    private static final Logger _logger = LoggerBuilder.defaultLogger(FrameLoader.class.getName());
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+    //Results prefetched ahead of the one in use, enough to overlap reading the next frame with processing this one
+    public static final int DEFAULT_READ_AHEAD = 1;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int concurrency;
+    private final boolean virtual;
+
+    /**
+     * Reads one input.
+     */
+    @FunctionalInterface
+    public interface Reader<I, T> {
+        T read(I input) throws IOException;
+    }
+
+    /**
+     * Creates a loader with {@link #DEFAULT_CONCURRENCY}, on virtual threads when available.
+     */
+    public FrameLoader() {
+        this(DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Creates a loader on virtual threads when available.
+     *
+     * @param concurrency The maximum number of reads in progress at once.
+     */
+    public FrameLoader(int concurrency) {
+        this(concurrency, Boolean.parseBoolean(System.getProperty("imaging.virtualThreads", "true")));
+    }
+
+    /**
+     * @param concurrency    The maximum number of reads in progress at once.
+     * @param virtualThreads Whether to use virtual threads if the JDK has them.
+     */
+    public FrameLoader(int concurrency, boolean virtualThreads) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be at least 1.");
+        }
+
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        this.executor = virtual ? virtualExecutor : Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "frame-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.concurrency = concurrency;
+        this.permits = new Semaphore(concurrency);
+    }
+
+    /**
+     * @return A virtual thread per task executor, or null before JDK 21. Looked up reflectively to keep the Java 11
+     * baseline.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (Runtime.version().feature() < 21) return null;
+
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            _logger.logException(e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads all inputs concurrently.
+     *
+     * @param inputs The inputs.
+     * @param reader The read of one input.
+     * @return The results, in the order of the inputs.
+     * @throws IOException If any read fails. The remaining reads are cancelled.
+     */
+    public <I, T> List<T> loadAll(List<I> inputs, Reader<I, T> reader) throws IOException {
+        List<Future<T>> futures = new ArrayList<>(inputs.size());
+        for (I input : inputs)
+            futures.add(submit(input, reader));
+
+        List<T> results = new ArrayList<>(inputs.size());
+        try {
+            for (Future<T> future : futures)
+                results.add(await(future));
+        } finally {
+            for (Future<T> future : futures)
+                future.cancel(true);
+        }
+        return results;
+    }
+
+    /**
+     * Reads the inputs {@link #DEFAULT_READ_AHEAD} ahead of the caller.
+     *
+     * @see #prefetch(List, Reader, int)
+     */
+    public <I, T> Prefetch<T> prefetch(List<I> inputs, Reader<I, T> reader) {
+        return prefetch(inputs, reader, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Reads the inputs ahead of the caller. Use this when the results are too large to hold all at once, e.g. the
+     * pixel data of many frames: at most readAhead + 1 results are in memory, counting the one the caller is using,
+     * and at most the lesser of readAhead and {@link #getConcurrency()} reads are in progress.
+     *
+     * @param inputs    The inputs.
+     * @param reader    The read of one input.
+     * @param readAhead The number of results read ahead of the one the caller is using.
+     * @return The results, in the order of the inputs. Close it to cancel the reads not taken yet.
+     */
+    public <I, T> Prefetch<T> prefetch(List<I> inputs, Reader<I, T> reader, int readAhead) {
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("The read-ahead must be at least 1.");
+        }
+        return new Prefetch<>(inputs, reader, readAhead);
+    }
+
+    /**
+     * @return Whether the reads run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return The maximum number of reads in progress at once.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private <I, T> Future<T> submit(I input, Reader<I, T> reader) {
+        return executor.submit(() -> {
+            permits.acquire();
+            try {
+                return reader.read(input);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading frames.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Could not load a frame.", cause);
+        }
+    }
+
+    /**
+     * Results of reads started ahead of the caller.
+     */
+    public class Prefetch<T> implements Closeable {
+        private final Queue<Future<T>> pending = new ArrayDeque<>();
+        private final List<?> inputs;
+        private final Reader<Object, T> reader;
+        private int nextInput;
+
+        @SuppressWarnings("unchecked")
+        private <I> Prefetch(List<I> inputs, Reader<I, T> reader, int readAhead) {
+            this.inputs = Collections.unmodifiableList(inputs);
+            this.reader = (Reader<Object, T>) reader;
+            while (pending.size() < readAhead && nextInput < inputs.size())
+                pending.add(submit(inputs.get(nextInput++), this.reader));
+        }
+
+        public boolean hasNext() {
+            return !pending.isEmpty();
+        }
+
+        /**
+         * @return The next result, waiting for its read if needed.
+         * @throws IOException If the read failed.
+         */
+        public T next() throws IOException {
+            //Start the next read only once this result is in, as the caller may still hold the previous one
+            T result = await(pending.remove());
+            if (nextInput < inputs.size())
+                pending.add(submit(inputs.get(nextInput++), reader));
+            return result;
+        }
+
+        @Override
+        public void close() {
+            for (Future<T> future : pending)
+                future.cancel(true);
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A histogram of pixel values over a fixed range, binned straight from the rows of images.
+ * <p>
+ * Several channels, e.g. red, green and blue, are binned in one pass over the rows. Every row band fills its own
+ * local counts, which are added to the result once the band is done, so no counter is shared between threads.
+ * Values outside the range are counted in the first or last bin.
+ */
+public class Histogram {
+    private final int[] counts;
+    private final float min, max;
+
+    /**
+     * Creates an empty histogram.
+     *
+     * @param numBins The number of bins.
+     * @param min     The value of the first bin.
+     * @param max     The value of the last bin.
+     */
+    public Histogram(int numBins, float min, float max) {
+        if (numBins < 2) {
+            throw new IllegalArgumentException("A histogram needs at least 2 bins.");
+        }
+        this.counts = new int[numBins];
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return The histogram of the array.
+     */
+    public static Histogram of(float[][] data, int numBins, float min, float max, ForkJoinPool pool) {
+        return of(ImageExpression.of(data), numBins, min, max, pool);
+    }
+
+    /**
+     * @return The histogram of the image.
+     */
+    public static Histogram of(FloatImage image, int numBins, float min, float max, ForkJoinPool pool) {
+        return of(ImageExpression.of(image), numBins, min, max, pool);
+    }
+
+    /**
+     * @return The histogram of the values of the expression. Plain sources are binned without copying their rows.
+     */
+    public static Histogram of(ImageExpression source, int numBins, float min, float max, ForkJoinPool pool) {
+        return of(new ImageExpression[]{source}, numBins, min, max, pool)[0];
+    }
+
+    /**
+     * Bins several channels of the same size in one pass over the rows.
+     *
+     * @param channels The channels, e.g. red, green, blue and luminance.
+     * @param numBins  The number of bins.
+     * @param min      The value of the first bin.
+     * @param max      The value of the last bin.
+     * @param pool     The pool to bin on, or null to bin on the calling thread.
+     * @return The histogram of every channel, in the order of channels.
+     * @throws IllegalArgumentException If the width or height of the channels do not match.
+     */
+    public static Histogram[] of(ImageExpression[] channels, int numBins, float min, float max, ForkJoinPool pool) {
+        int width = channels[0].getWidth(), height = channels[0].getHeight();
+        int scratchRows = 0;
+        for (ImageExpression channel : channels) {
+            if (channel.getWidth() != width || channel.getHeight() != height) {
+                throw new IllegalArgumentException("The width or height of an array does not match the others.");
+            }
+            scratchRows = Math.max(scratchRows, channel.scratchRows());
+        }
+
+        Histogram[] histograms = new Histogram[channels.length];
+        for (int c = 0; c < channels.length; c++)
+            histograms[c] = new Histogram(numBins, min, max);
+
+        int finalScratchRows = scratchRows;
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            Histogram[] local = new Histogram[channels.length];
+            float[][] scratch = null;
+            float[] values = null;
+
+            for (int c = 0; c < channels.length; c++)
+                local[c] = new Histogram(numBins, min, max);
+
+            for (int row = startRow; row < endRow; row++) {
+                for (int c = 0; c < channels.length; c++) {
+                    float[] src = channels[c].sourceRow(row);
+                    int pos = channels[c].sourceOffset(row);
+
+                    //Evaluate anything that is not a plain source into a row buffer first
+                    if (src == null) {
+                        if (values == null) {
+                            values = new float[width];
+                            scratch = new float[finalScratchRows][width];
+                        }
+                        channels[c].evaluateRow(row, values, 0, scratch, 0);
+                        src = values;
+                        pos = 0;
+                    }
+                    local[c].add(src, pos, pos + width);
+                }
+            }
+
+            synchronized (histograms) {
+                for (int c = 0; c < channels.length; c++)
+                    histograms[c].add(local[c]);
+            }
+        });
+        return histograms;
+    }
+
+    /**
+     * Bins the values a[from, to).
+     */
+    public void add(float[] a, int from, int to) {
+        int[] counts = this.counts;
+        float min = this.min, max = this.max;
+        float binWidth = getBinWidth();
+
+        for (int i = from; i < to; i++) {
+            float value = a[i];
+            //Clip extreme values
+            if (value > max) value = max;
+            if (value < min) value = min;
+
+            counts[(int) ((value - min) / binWidth)]++;
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram with the same bins.
+     *
+     * @param other The histogram to merge into this one.
+     * @throws IllegalArgumentException If the bins of the histograms differ.
+     */
+    public void add(Histogram other) {
+        if (other.counts.length != counts.length || other.min != min || other.max != max) {
+            throw new IllegalArgumentException("The bins of the histograms do not match.");
+        }
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+    }
+
+    /**
+     * Estimates the mean and standard deviation of a roughly normal distribution from the histogram: the mean is
+     * the fullest bin, and the spread between the first and last bin holding 1% of its count is taken as 6
+     * standard deviations. The first bin, where clipped values pile up, is ignored.
+     *
+     * @return The estimates, in units of the bin index over the number of bins.
+     */
+    public Stats analyze() {
+        int numBins = counts.length;
+
+        //Find the max value and calculate the mean
+        int maxVal = 0, maxIndex = 0;
+        for (int i = 1; i < numBins; i++) {
+            if (counts[i] > maxVal) {
+                maxVal = counts[i];
+                maxIndex = i;
+            }
+        }
+        float mean = (float) maxIndex / (float) numBins;
+
+        //What percentage of the maximum is considered the start/end of the histogram
+        final float STARTING_THRESHOLD = 1f / 100f;
+
+        //Find the start of the histogram
+        float start = 0;
+        for (int i = 1; i < numBins; i++) {
+            if (counts[i] > maxVal * STARTING_THRESHOLD) {
+                start = (float) i / (float) numBins;
+                break;
+            }
+        }
+
+        //Find the end of the histogram
+        float end = 0;
+        for (int i = numBins - 1; i > 0; i--) {
+            if (counts[i] > maxVal * STARTING_THRESHOLD) {
+                end = (float) i / (float) numBins;
+                break;
+            }
+        }
+
+        //The interval of the normal distribution is about 6 standard deviations
+        return new Stats(mean, (end - start) / 6, start, end);
+    }
+
+    /**
+     * @return The counts of the bins. The array is not copied.
+     */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    public int getNumBins() {
+        return counts.length;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * @return The width of a bin. The last bin only holds values equal to the maximum.
+     */
+    public float getBinWidth() {
+        return (max - min) / (counts.length - 1);
+    }
+
+    /**
+     * @return The number of values binned.
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int count : counts)
+            total += count;
+        return total;
+    }
+
+    /**
+     * Estimates from {@link #analyze()}.
+     */
+    public static class Stats {
+        private final float mean, sd, start, end;
+
+        Stats(float mean, float sd, float start, float end) {
+            this.mean = mean;
+            this.sd = sd;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return The position of the fullest bin.
+         */
+        public float getMean() {
+            return mean;
+        }
+
+        /**
+         * @return The standard deviation.
+         */
+        public float getSd() {
+            return sd;
+        }
+
+        /**
+         * @return The approximate start of the histogram.
+         */
+        public float getStart() {
+            return start;
+        }
+
+        /**
+         * @return The approximate end of the histogram.
+         */
+        public float getEnd() {
+            return end;
+        }
+    }
+}
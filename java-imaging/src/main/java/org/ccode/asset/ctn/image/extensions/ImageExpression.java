@@ -0,0 +1,352 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A lazy chain of element-wise operations over images, e.g.
+ * {@code ImageExpression.of(red).mul(a).add(b).clip(0, 1).evaluateInto(red)}.
+ * <p>
+ * Nothing is computed until the expression is evaluated. Evaluation runs the whole chain one row at a time, so each
+ * row is read once and written once while it is still in cache, and no full size intermediate image is created.
+ * Operations are applied in the order they were chained with the same float rounding as the matching Array2D calls,
+ * so the results are identical. Every row only depends on the same row of its sources, which makes it safe to
+ * evaluate into one of the sources.
+ */
+public abstract class ImageExpression {
+    protected final int width, height;
+
+    protected ImageExpression(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param arr The source array. It is read when the expression is evaluated, not copied.
+     * @return An expression yielding the array.
+     */
+    public static ImageExpression of(float[][] arr) {
+        return new ArraySource(arr);
+    }
+
+    /**
+     * @param image The source image. It is read when the expression is evaluated, not copied.
+     * @return An expression yielding the image.
+     */
+    public static ImageExpression of(FloatImage image) {
+        return new ImageSource(image);
+    }
+
+    /**
+     * @return This expression multiplied by num.
+     */
+    public ImageExpression mul(float num) {
+        return new Scale(this, num);
+    }
+
+    /**
+     * @return This expression plus num.
+     */
+    public ImageExpression add(float num) {
+        return new Offset(this, num);
+    }
+
+    /**
+     * @return This expression with values clipped between min and max.
+     */
+    public ImageExpression clip(float min, float max) {
+        return new Clip(this, min, max);
+    }
+
+    /**
+     * @param other An expression of the same size.
+     * @return The element-wise sum of this expression and the other.
+     * @throws IllegalArgumentException If the width or height of the expressions do not match.
+     */
+    public ImageExpression plus(ImageExpression other) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException("The width or height of an array does not match the others.");
+        }
+        return new Sum(this, other);
+    }
+
+    /**
+     * @return The result in a new array.
+     */
+    public float[][] evaluate() {
+        return evaluate((ForkJoinPool) null);
+    }
+
+    /**
+     * @param pool The pool to evaluate on, or null to evaluate on the calling thread.
+     * @return The result in a new array.
+     */
+    public float[][] evaluate(ForkJoinPool pool) {
+        float[][] result = new float[height][width];
+        evaluateInto(result, pool);
+        return result;
+    }
+
+    /**
+     * @param dst The array to write the result to. May be one of the sources.
+     */
+    public void evaluateInto(float[][] dst) {
+        evaluateInto(dst, null);
+    }
+
+    /**
+     * @param dst  The array to write the result to. May be one of the sources.
+     * @param pool The pool to evaluate on, or null to evaluate on the calling thread.
+     */
+    public void evaluateInto(float[][] dst, ForkJoinPool pool) {
+        if (dst.length != height || dst[0].length != width) {
+            throw new IllegalArgumentException("The width or height of an array does not match the others.");
+        }
+
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            float[][] scratch = new float[scratchRows()][width];
+            for (int row = startRow; row < endRow; row++)
+                evaluateRow(row, dst[row], 0, scratch, 0);
+        });
+    }
+
+    /**
+     * @return The result in a new image.
+     */
+    public FloatImage toFloatImage() {
+        return toFloatImage(null);
+    }
+
+    /**
+     * @param pool The pool to evaluate on, or null to evaluate on the calling thread.
+     * @return The result in a new image.
+     */
+    public FloatImage toFloatImage(ForkJoinPool pool) {
+        FloatImage result = new FloatImage(width, height);
+        evaluateInto(result, pool);
+        return result;
+    }
+
+    /**
+     * @param dst The image to write the result to. May be one of the sources.
+     */
+    public void evaluateInto(FloatImage dst) {
+        evaluateInto(dst, null);
+    }
+
+    /**
+     * @param dst  The image to write the result to. May be one of the sources.
+     * @param pool The pool to evaluate on, or null to evaluate on the calling thread.
+     */
+    public void evaluateInto(FloatImage dst, ForkJoinPool pool) {
+        if (dst.getWidth() != width || dst.getHeight() != height) {
+            throw new IllegalArgumentException("The width or height of an array does not match the others.");
+        }
+
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            float[][] scratch = new float[scratchRows()][width];
+            for (int row = startRow; row < endRow; row++)
+                evaluateRow(row, dst.getData(), dst.rowOffset(row), scratch, 0);
+        });
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gives direct access to a row of a plain source, so that readers can skip copying it.
+     *
+     * @param row The row.
+     * @return The array holding the row, starting at {@link #sourceOffset}, or null if the row must be evaluated.
+     */
+    float[] sourceRow(int row) {
+        return null;
+    }
+
+    /**
+     * @return The index of the first pixel of the row in {@link #sourceRow}.
+     */
+    int sourceOffset(int row) {
+        return 0;
+    }
+
+    /**
+     * Writes one row of the result to dst[pos, pos + width).
+     *
+     * @param row     The row to compute.
+     * @param dst     The destination.
+     * @param pos     The index of the first pixel of the row in dst.
+     * @param scratch Row buffers for operands, see {@link #scratchRows()}.
+     * @param level   The first scratch row this node may use.
+     */
+    protected abstract void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level);
+
+    /**
+     * @return The number of scratch rows needed to evaluate a row.
+     */
+    protected abstract int scratchRows();
+
+    private static class ArraySource extends ImageExpression {
+        private final float[][] arr;
+
+        ArraySource(float[][] arr) {
+            super(arr[0].length, arr.length);
+            this.arr = arr;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            System.arraycopy(arr[row], 0, dst, pos, width);
+        }
+
+        @Override
+        float[] sourceRow(int row) {
+            return arr[row];
+        }
+
+        @Override
+        protected int scratchRows() {
+            return 0;
+        }
+    }
+
+    private static class ImageSource extends ImageExpression {
+        private final FloatImage image;
+
+        ImageSource(FloatImage image) {
+            super(image.getWidth(), image.getHeight());
+            this.image = image;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            image.getRow(row, dst, pos);
+        }
+
+        @Override
+        float[] sourceRow(int row) {
+            return image.getData();
+        }
+
+        @Override
+        int sourceOffset(int row) {
+            return image.rowOffset(row);
+        }
+
+        @Override
+        protected int scratchRows() {
+            return 0;
+        }
+    }
+
+    private abstract static class Unary extends ImageExpression {
+        protected final ImageExpression source;
+
+        Unary(ImageExpression source) {
+            super(source.width, source.height);
+            this.source = source;
+        }
+
+        @Override
+        protected int scratchRows() {
+            return source.scratchRows();
+        }
+    }
+
+    private static class Scale extends Unary {
+        private final float num;
+
+        Scale(ImageExpression source, float num) {
+            super(source);
+            this.num = num;
+        }
+
+        @Override
+        public ImageExpression add(float num) {
+            //Multiply and add in one kernel
+            return new MultiplyAdd(source, this.num, num);
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            source.evaluateRow(row, dst, pos, scratch, level);
+            ArrayKernels.get().multiply(dst, pos, pos + width, num);
+        }
+    }
+
+    private static class Offset extends Unary {
+        private final float num;
+
+        Offset(ImageExpression source, float num) {
+            super(source);
+            this.num = num;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            source.evaluateRow(row, dst, pos, scratch, level);
+            ArrayKernels.get().add(dst, pos, pos + width, num);
+        }
+    }
+
+    private static class MultiplyAdd extends Unary {
+        private final float mul, add;
+
+        MultiplyAdd(ImageExpression source, float mul, float add) {
+            super(source);
+            this.mul = mul;
+            this.add = add;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            source.evaluateRow(row, dst, pos, scratch, level);
+            ArrayKernels.get().multiplyAdd(dst, pos, pos + width, mul, add);
+        }
+    }
+
+    private static class Clip extends Unary {
+        private final float min, max;
+
+        Clip(ImageExpression source, float min, float max) {
+            super(source);
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            source.evaluateRow(row, dst, pos, scratch, level);
+            ArrayKernels.get().clip(dst, pos, pos + width, min, max);
+        }
+    }
+
+    private static class Sum extends ImageExpression {
+        private final ImageExpression left, right;
+
+        Sum(ImageExpression left, ImageExpression right) {
+            super(left.width, left.height);
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            //The right operand goes first, so that it still sees the sources if dst is one of them
+            right.evaluateRow(row, scratch[level], 0, scratch, level + 1);
+            left.evaluateRow(row, dst, pos, scratch, level + 1);
+            ArrayKernels.get().add(dst, pos, scratch[level], 0, width);
+        }
+
+        @Override
+        protected int scratchRows() {
+            return 1 + Math.max(left.scratchRows(), right.scratchRows());
+        }
+    }
+}
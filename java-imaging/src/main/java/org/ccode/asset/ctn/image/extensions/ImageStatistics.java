@@ -0,0 +1,202 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Statistics of the pixel values of an image or a region of it, gathered in a single pass over the rows.
+ * <p>
+ * The count, minimum, maximum, mean and standard deviation are exact. The median, percentiles and median absolute
+ * deviation come from a {@link QuantileSketch}, within 1.5% in rank. Every row band fills its own sketch and sums,
+ * which are merged in row order once all bands are done, so the result only depends on the band boundaries, not on
+ * the order the bands finish in. NaN pixels are skipped.
+ */
+public class ImageStatistics {
+    //Ratio of the standard deviation to the median absolute deviation of a normal distribution
+    public static final float MAD_TO_SIGMA = 1.4826f;
+
+    private final QuantileSketch sketch;
+    private final long count;
+    private final float min, max;
+    private final double mean, standardDeviation;
+
+    private ImageStatistics(QuantileSketch sketch, double sum, double sumOfSquares) {
+        this.sketch = sketch;
+        this.count = sketch.getCount();
+        this.min = sketch.getMin();
+        this.max = sketch.getMax();
+
+        if (count == 0) {
+            mean = Double.NaN;
+            standardDeviation = Double.NaN;
+        } else {
+            mean = sum / count;
+            //Sample standard deviation, as in Array1D
+            double variance = count > 1 ? (sumOfSquares - sum * mean) / (count - 1) : 0;
+            standardDeviation = Math.sqrt(Math.max(0, variance));
+        }
+    }
+
+    /**
+     * @return The statistics of the array.
+     */
+    public static ImageStatistics of(float[][] data, ForkJoinPool pool) {
+        return of(ImageExpression.of(data), pool);
+    }
+
+    /**
+     * @return The statistics of the image.
+     */
+    public static ImageStatistics of(FloatImage image, ForkJoinPool pool) {
+        return of(ImageExpression.of(image), pool);
+    }
+
+    /**
+     * @param image The image.
+     * @param x     The first column of the region.
+     * @param y     The first row of the region.
+     * @param w     The width of the region.
+     * @param h     The height of the region.
+     * @param pool  The pool to run on, or null to run on the calling thread.
+     * @return The statistics of the region, read in place.
+     */
+    public static ImageStatistics of(FloatImage image, int x, int y, int w, int h, ForkJoinPool pool) {
+        return of(image.view(x, y, w, h), pool);
+    }
+
+    /**
+     * @param source The values. Plain sources are read without copying their rows.
+     * @param pool   The pool to run on, or null to run on the calling thread.
+     * @return The statistics of the values of the expression.
+     */
+    public static ImageStatistics of(ImageExpression source, ForkJoinPool pool) {
+        int width = source.getWidth();
+        Map<Integer, Partial> partials = new TreeMap<>();
+
+        RowBands.forEach(source.getHeight(), pool, (startRow, endRow) -> {
+            Partial partial = new Partial();
+            float[][] scratch = null;
+            float[] values = null;
+
+            for (int row = startRow; row < endRow; row++) {
+                float[] src = source.sourceRow(row);
+                int pos = source.sourceOffset(row);
+
+                //Evaluate anything that is not a plain source into a row buffer first
+                if (src == null) {
+                    if (values == null) {
+                        values = new float[width];
+                        scratch = new float[source.scratchRows()][width];
+                    }
+                    source.evaluateRow(row, values, 0, scratch, 0);
+                    src = values;
+                    pos = 0;
+                }
+                partial.add(src, pos, pos + width);
+            }
+
+            synchronized (partials) {
+                partials.put(startRow, partial);
+            }
+        });
+
+        //Merge in row order, so that the sketch does not depend on the order the bands finished in
+        Partial total = new Partial();
+        for (Partial partial : partials.values()) {
+            total.sketch.merge(partial.sketch);
+            total.sum += partial.sum;
+            total.sumOfSquares += partial.sumOfSquares;
+        }
+        return new ImageStatistics(total.sketch, total.sum, total.sumOfSquares);
+    }
+
+    /**
+     * The sketch and sums of one row band.
+     */
+    private static class Partial {
+        final QuantileSketch sketch = new QuantileSketch();
+        double sum, sumOfSquares;
+
+        void add(float[] a, int from, int to) {
+            double rowSum = 0, rowSumOfSquares = 0;
+            for (int i = from; i < to; i++) {
+                float value = a[i];
+                if (Float.isNaN(value)) continue;
+                rowSum += value;
+                rowSumOfSquares += (double) value * value;
+            }
+            sum += rowSum;
+            sumOfSquares += rowSumOfSquares;
+            sketch.add(a, from, to);
+        }
+    }
+
+    /**
+     * @return The number of pixels, NaN excluded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean, or NaN if there are no pixels.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * @return The sample standard deviation, or NaN if there are no pixels.
+     */
+    public double getStandardDeviation() {
+        return standardDeviation;
+    }
+
+    /**
+     * @return The estimated median.
+     */
+    public float getMedian() {
+        return sketch.getMedian();
+    }
+
+    /**
+     * @return The estimated median absolute deviation from the median.
+     */
+    public float getMad() {
+        return sketch.getMedianAbsoluteDeviation();
+    }
+
+    /**
+     * @return The standard deviation estimated from the median absolute deviation, which unlike
+     * {@link #getStandardDeviation()} is barely moved by stars, hot pixels and other outliers.
+     */
+    public float getRobustSigma() {
+        return MAD_TO_SIGMA * getMad();
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The estimated value at the percentile.
+     */
+    public float getPercentile(double percentile) {
+        return sketch.getPercentile(percentile);
+    }
+
+    /**
+     * @return The sketch of the pixel values, e.g. to merge with the sketches of other images.
+     */
+    public QuantileSketch getSketch() {
+        return sketch;
+    }
+}
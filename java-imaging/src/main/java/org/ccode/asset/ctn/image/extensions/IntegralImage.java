@@ -0,0 +1,179 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Summed-area tables of an image and of its squares, giving the sum, mean and variance of any rectangle with four
+ * lookups each, whatever its size.
+ * <p>
+ * Entry (x, y) of a table holds the sum of all pixels above and left of pixel (x, y), so the tables have one more row
+ * and column than the image, starting with zeros. They are built in two parallel passes: the rows are summed
+ * independently in row bands, then the columns are accumulated down the rows in bands of columns. Sums are kept in
+ * doubles, so the tables take 16 bytes per pixel.
+ */
+public class IntegralImage {
+    private final int width, height;
+    //(width + 1) x (height + 1) tables, row by row
+    private final double[] sums, squares;
+
+    private IntegralImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.sums = new double[(width + 1) * (height + 1)];
+        this.squares = new double[(width + 1) * (height + 1)];
+    }
+
+    /**
+     * @return The tables of the array.
+     */
+    public static IntegralImage of(float[][] data, ForkJoinPool pool) {
+        return of(FloatImage.fromArray(data), pool);
+    }
+
+    /**
+     * @param image The image.
+     * @param pool  The pool to build on, or null to build on the calling thread.
+     * @return The tables of the image.
+     */
+    public static IntegralImage of(FloatImage image, ForkJoinPool pool) {
+        int width = image.getWidth(), height = image.getHeight();
+        IntegralImage integral = new IntegralImage(width, height);
+        double[] sums = integral.sums, squares = integral.squares;
+        int stride = width + 1;
+
+        //Sum along every row
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            float[] data = image.getData();
+            for (int row = startRow; row < endRow; row++) {
+                int src = image.rowOffset(row), dst = (row + 1) * stride + 1;
+                double sum = 0, sumOfSquares = 0;
+                for (int col = 0; col < width; col++) {
+                    double value = data[src + col];
+                    sum += value;
+                    sumOfSquares += value * value;
+                    sums[dst + col] = sum;
+                    squares[dst + col] = sumOfSquares;
+                }
+            }
+        });
+
+        //Accumulate the row sums down every column, a band of columns at a time
+        RowBands.forEach(width, pool, (startCol, endCol) -> {
+            for (int row = 2; row <= height; row++) {
+                int above = (row - 1) * stride + 1, pos = row * stride + 1;
+                for (int col = startCol; col < endCol; col++) {
+                    sums[pos + col] += sums[above + col];
+                    squares[pos + col] += squares[above + col];
+                }
+            }
+        });
+        return integral;
+    }
+
+    /**
+     * @return The sum of the pixels of the rectangle, clipped to the image.
+     */
+    public double sum(int x, int y, int w, int h) {
+        return lookup(sums, x, y, w, h);
+    }
+
+    /**
+     * @return The sum of the squares of the pixels of the rectangle, clipped to the image.
+     */
+    public double sumOfSquares(int x, int y, int w, int h) {
+        return lookup(squares, x, y, w, h);
+    }
+
+    /**
+     * @return The mean of the rectangle, clipped to the image, or NaN if nothing of it is inside the image.
+     */
+    public double mean(int x, int y, int w, int h) {
+        long n = area(x, y, w, h);
+        return n == 0 ? Double.NaN : sum(x, y, w, h) / n;
+    }
+
+    /**
+     * @return The sample variance of the rectangle, clipped to the image, as in Array1D. It is 0 for a single pixel,
+     * and NaN if nothing of the rectangle is inside the image.
+     */
+    public double variance(int x, int y, int w, int h) {
+        long n = area(x, y, w, h);
+        if (n == 0) return Double.NaN;
+        if (n == 1) return 0;
+
+        double sum = sum(x, y, w, h);
+        //Rounding may push the variance of a flat area just below 0
+        return Math.max(0, (sumOfSquares(x, y, w, h) - sum * sum / n) / (n - 1));
+    }
+
+    /**
+     * @return The sample standard deviation of the rectangle, clipped to the image.
+     */
+    public double standardDeviation(int x, int y, int w, int h) {
+        return Math.sqrt(variance(x, y, w, h));
+    }
+
+    /**
+     * @return The number of pixels of the rectangle inside the image.
+     */
+    public long area(int x, int y, int w, int h) {
+        int x0 = clamp(x, width), x1 = clamp(x + w, width);
+        int y0 = clamp(y, height), y1 = clamp(y + h, height);
+        return (long) Math.max(0, x1 - x0) * Math.max(0, y1 - y0);
+    }
+
+    private double lookup(double[] table, int x, int y, int w, int h) {
+        int x0 = clamp(x, width), x1 = clamp(x + w, width);
+        int y0 = clamp(y, height), y1 = clamp(y + h, height);
+        if (x1 <= x0 || y1 <= y0) return 0;
+
+        int stride = width + 1;
+        return table[y1 * stride + x1] - table[y0 * stride + x1] - table[y1 * stride + x0] + table[y0 * stride + x0];
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    /**
+     * @param radius The box spans (2 * radius + 1) pixels on each axis, clipped at the edges of the image.
+     * @return The mean of the box around every pixel, computed a row at a time when evaluated.
+     */
+    public ImageExpression boxMean(int radius) {
+        return new BoxMean(radius);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The mean of a box around each pixel, read from the sum table.
+     */
+    private class BoxMean extends ImageExpression {
+        private final int radius;
+
+        BoxMean(int radius) {
+            super(IntegralImage.this.width, IntegralImage.this.height);
+            this.radius = radius;
+        }
+
+        @Override
+        protected void evaluateRow(int row, float[] dst, int pos, float[][] scratch, int level) {
+            int size = 2 * radius + 1;
+            for (int col = 0; col < width; col++)
+                dst[pos + col] = (float) mean(col - radius, row - radius, size, size);
+        }
+
+        @Override
+        protected int scratchRows() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the primary image of a FITS file through a memory mapping of its data unit.
+ * <p>
+ * Pixels are decoded from big-endian BITPIX values (with BZERO/BSCALE applied) only when a row is requested, so
+ * nothing but the caller's destination buffer lives on the heap. Files bigger than 2 GB are mapped in windows of
+ * whole rows. For images with more than two axes only the first plane is read.
+ */
+public class MappedFitsReader implements Closeable {
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final FitsHeader header;
+    private final int width, height, bitpix, bytesPerPixel;
+    private final double bzero, bscale;
+    private final int rowsPerWindow;
+    private final MappedByteBuffer[] windows;
+    //Published once scanned, so readers of normalized rows never take the lock again
+    private volatile float[] minMax;
+
+    /**
+     * Opens a FITS file and maps its data unit.
+     *
+     * @param path The FITS file.
+     * @throws IOException If the file cannot be read or does not hold a 2D image.
+     */
+    public MappedFitsReader(Path path) throws IOException {
+        this(path, MAX_WINDOW_SIZE);
+    }
+
+    /**
+     * @param maxWindowSize The largest mapping, in bytes. Windows always hold at least one row.
+     */
+    MappedFitsReader(Path path, long maxWindowSize) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            header = FitsHeader.read(channel);
+            int[] naxes = header.getNaxes();
+            bitpix = header.getBitpix();
+
+            if (naxes.length < 2) {
+                throw new IOException(String.format("File: `%s` does not hold a 2D image.", path));
+            }
+            if (bitpix != 8 && bitpix != 16 && bitpix != 32 && bitpix != 64 && bitpix != -32 && bitpix != -64) {
+                throw new IOException(String.format("File: `%s` has an invalid BITPIX of %d.", path, bitpix));
+            }
+
+            width = naxes[0];
+            height = naxes[1];
+            bytesPerPixel = Math.abs(bitpix) / 8;
+            bzero = header.getDoubleValue("BZERO", 0);
+            bscale = header.getDoubleValue("BSCALE", 1);
+
+            long rowSize = (long) width * bytesPerPixel;
+            if ((long) height * rowSize + header.getDataOffset() > channel.size()) {
+                throw new IOException(String.format("File: `%s` is shorter than its header claims.", path));
+            }
+
+            rowsPerWindow = (int) Math.max(1, Math.min(height, maxWindowSize / rowSize));
+            windows = new MappedByteBuffer[(height + rowsPerWindow - 1) / rowsPerWindow];
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps the window holding a row on first use.
+     *
+     * @param window Index of the window.
+     * @return The mapped window.
+     */
+    private synchronized ByteBuffer window(int window) throws IOException {
+        if (windows[window] == null) {
+            long rowSize = (long) width * bytesPerPixel;
+            int rows = Math.min(rowsPerWindow, height - window * rowsPerWindow);
+            windows[window] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.getDataOffset() + window * (long) rowsPerWindow * rowSize, rows * rowSize);
+        }
+        return windows[window];
+    }
+
+    /**
+     * Decodes one row of physical pixel values.
+     *
+     * @param row    The row to read (0 is the first row in the file).
+     * @param dst    The destination array.
+     * @param dstPos The position in dst to start writing at.
+     * @throws IOException If the row cannot be mapped.
+     */
+    public void readRow(int row, float[] dst, int dstPos) throws IOException {
+        if (row < 0 || row >= height) {
+            throw new IndexOutOfBoundsException(String.format("Row %d is outside of an image of height %d.", row, height));
+        }
+
+        //Absolute gets keep this safe to call from several threads at once
+        ByteBuffer buffer = window(row / rowsPerWindow);
+        int start = (row % rowsPerWindow) * width * bytesPerPixel;
+        float zero = (float) bzero, scale = (float) bscale;
+
+        switch (bitpix) {
+            case 8:
+                for (int col = 0; col < width; col++)
+                    dst[dstPos + col] = (buffer.get(start + col) & 0xFF) * scale + zero;
+                break;
+            case 16:
+                for (int col = 0; col < width; col++)
+                    dst[dstPos + col] = buffer.getShort(start + 2 * col) * scale + zero;
+                break;
+            case 32:
+                for (int col = 0; col < width; col++)
+                    dst[dstPos + col] = (float) (buffer.getInt(start + 4 * col) * bscale + bzero);
+                break;
+            case 64:
+                for (int col = 0; col < width; col++)
+                    dst[dstPos + col] = (float) (buffer.getLong(start + 8 * col) * bscale + bzero);
+                break;
+            case -32:
+                for (int col = 0; col < width; col++)
+                    dst[dstPos + col] = buffer.getFloat(start + 4 * col) * scale + zero;
+                break;
+            default:
+                for (int col = 0; col < width; col++)
+                    dst[dstPos + col] = (float) (buffer.getDouble(start + 8 * col) * bscale + bzero);
+        }
+    }
+
+    /**
+     * Decodes a band of rows into an image whose height is the number of rows to read.
+     *
+     * @param startRow The first row to read.
+     * @param dst      The destination image, as wide as this image.
+     * @throws IOException If the rows cannot be mapped.
+     */
+    public void readRows(int startRow, FloatImage dst) throws IOException {
+        if (dst.getWidth() != width) {
+            throw new IllegalArgumentException("The destination width does not match the image width.");
+        }
+        for (int row = 0; row < dst.getHeight(); row++)
+            readRow(startRow + row, dst.getData(), dst.rowOffset(row));
+    }
+
+    /**
+     * Finds the minimum and maximum physical value by scanning the mapped data. The result is cached.
+     *
+     * @return {min, max}
+     * @throws IOException If the data cannot be mapped.
+     */
+    public float[] getMinMax() throws IOException {
+        return range().clone();
+    }
+
+    /**
+     * @return {min, max}, scanned on the first call. The array is shared and must not be modified.
+     */
+    private float[] range() throws IOException {
+        float[] range = minMax;
+        if (range != null) return range;
+
+        synchronized (this) {
+            if (minMax == null) {
+                float min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+                float[] rowBuffer = new float[width];
+
+                for (int row = 0; row < height; row++) {
+                    readRow(row, rowBuffer, 0);
+                    for (float num : rowBuffer) {
+                        if (num > max) max = num;
+                        if (num < min) min = num;
+                    }
+                }
+                minMax = new float[]{min, max};
+            }
+            return minMax;
+        }
+    }
+
+    /**
+     * Decodes a band of rows mapped to the 0-1 range of the whole image, like {@link FitsDocument#extractFloatData}.
+     * The mapping is a single multiply-add per pixel, so values may differ from it in the last bit.
+     *
+     * @param startRow The first row to read.
+     * @param dst      The destination image, as wide as this image.
+     * @throws IOException If the rows cannot be mapped.
+     */
+    public void readNormalizedRows(int startRow, FloatImage dst) throws IOException {
+        if (dst.getWidth() != width) {
+            throw new IllegalArgumentException("The destination width does not match the image width.");
+        }
+        float[] range = range();
+        float scale = 1f / (range[1] - range[0]);
+        float offset = -range[0] * scale;
+
+        //Decode and map each row while it is in cache
+        ArrayKernels kernels = ArrayKernels.get();
+        for (int row = 0; row < dst.getHeight(); row++) {
+            int pos = dst.rowOffset(row);
+            readRow(startRow + row, dst.getData(), pos);
+            kernels.multiplyAdd(dst.getData(), pos, pos + width, scale, offset);
+        }
+    }
+
+    /**
+     * @return The whole image mapped to a 0-1 range in a new contiguous buffer.
+     * @throws IOException If the data cannot be mapped.
+     */
+    public FloatImage readNormalized() throws IOException {
+        FloatImage image = new FloatImage(width, height);
+        readNormalizedRows(0, image);
+        return image;
+    }
+
+    public FitsHeader getHeader() {
+        return header;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitpix() {
+        return bitpix;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,149 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import javax.imageio.ImageIO;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts images in the 0-1 range to 8 or 16-bit BufferedImages and writes them as PNG files.
+ * <p>
+ * Pixels are written straight into the data buffer of the raster, one row at a time in row bands, instead of through
+ * {@link BufferedImage#setRGB}, which converts every pixel through the color model. Values outside 0-1 are clipped.
+ * The sources are expressions, so a stretch or any other element-wise operation can be applied while encoding.
+ */
+public class PngEncoder {
+    private static final float MAX_BYTE_VAL = 255f;
+    private static final float MAX_USHORT_VAL = 65535f;
+
+    /**
+     * @param gray     The image, in the 0-1 range.
+     * @param bitDepth 8 or 16.
+     * @param pool     The pool to convert on, or null to convert on the calling thread.
+     * @return A grayscale image of the given depth.
+     */
+    public static BufferedImage toImage(ImageExpression gray, int bitDepth, ForkJoinPool pool) {
+        checkBitDepth(bitDepth);
+        int width = gray.getWidth();
+        BufferedImage image = new BufferedImage(width, gray.getHeight(),
+                bitDepth == 8 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_USHORT_GRAY);
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+
+        RowBands.forEach(gray.getHeight(), pool, (startRow, endRow) -> {
+            float[][] scratch = new float[gray.scratchRows()][width];
+            float[] values = new float[width];
+
+            for (int row = startRow; row < endRow; row++) {
+                gray.evaluateRow(row, values, 0, scratch, 0);
+                int pos = row * width;
+
+                if (bitDepth == 8) {
+                    byte[] dst = ((DataBufferByte) buffer).getData();
+                    for (int col = 0; col < width; col++)
+                        dst[pos + col] = (byte) toLevel(values[col], MAX_BYTE_VAL);
+                } else {
+                    short[] dst = ((DataBufferUShort) buffer).getData();
+                    for (int col = 0; col < width; col++)
+                        dst[pos + col] = (short) toLevel(values[col], MAX_USHORT_VAL);
+                }
+            }
+        });
+        return image;
+    }
+
+    /**
+     * @param red      The red channel, in the 0-1 range.
+     * @param green    The green channel, in the 0-1 range.
+     * @param blue     The blue channel, in the 0-1 range.
+     * @param bitDepth 8 or 16 bits per channel.
+     * @param pool     The pool to convert on, or null to convert on the calling thread.
+     * @return An RGB image of the given depth.
+     * @throws IllegalArgumentException If the width or height of the channels do not match.
+     */
+    public static BufferedImage toImage(ImageExpression red, ImageExpression green, ImageExpression blue, int bitDepth,
+                                        ForkJoinPool pool) {
+        checkBitDepth(bitDepth);
+        int width = red.getWidth(), height = red.getHeight();
+        for (ImageExpression channel : new ImageExpression[]{green, blue}) {
+            if (channel.getWidth() != width || channel.getHeight() != height) {
+                throw new IllegalArgumentException("The width or height of an array does not match the others.");
+            }
+        }
+
+        BufferedImage image;
+        if (bitDepth == 8) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        } else {
+            //There is no predefined 16-bit RGB type, so build one with interleaved RGB samples
+            ComponentColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false,
+                    false, Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+            image = new BufferedImage(model, model.createCompatibleWritableRaster(width, height), false, null);
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            int scratchRows = Math.max(red.scratchRows(), Math.max(green.scratchRows(), blue.scratchRows()));
+            float[][] scratch = new float[scratchRows][width];
+            float[] r = new float[width], g = new float[width], b = new float[width];
+
+            for (int row = startRow; row < endRow; row++) {
+                red.evaluateRow(row, r, 0, scratch, 0);
+                green.evaluateRow(row, g, 0, scratch, 0);
+                blue.evaluateRow(row, b, 0, scratch, 0);
+
+                if (bitDepth == 8) {
+                    int[] dst = ((DataBufferInt) buffer).getData();
+                    int pos = row * width;
+                    for (int col = 0; col < width; col++) {
+                        dst[pos + col] = toLevel(r[col], MAX_BYTE_VAL) << 16
+                                | toLevel(g[col], MAX_BYTE_VAL) << 8
+                                | toLevel(b[col], MAX_BYTE_VAL);
+                    }
+                } else {
+                    short[] dst = ((DataBufferUShort) buffer).getData();
+                    int pos = row * width * 3;
+                    for (int col = 0; col < width; col++, pos += 3) {
+                        dst[pos] = (short) toLevel(r[col], MAX_USHORT_VAL);
+                        dst[pos + 1] = (short) toLevel(g[col], MAX_USHORT_VAL);
+                        dst[pos + 2] = (short) toLevel(b[col], MAX_USHORT_VAL);
+                    }
+                }
+            }
+        });
+        return image;
+    }
+
+    /**
+     * @param image       The image to write.
+     * @param destination The PNG file to write. An existing file is replaced.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(BufferedImage image, String destination) throws IOException {
+        if (!ImageIO.write(image, "PNG", new File(destination))) {
+            throw new IOException(String.format("No PNG writer for an image of type %d.", image.getType()));
+        }
+    }
+
+    /**
+     * @return The value clipped to 0-1 and scaled to 0-max, rounded to the nearest level.
+     */
+    private static int toLevel(float value, float max) {
+        return (int) (Math.max(0f, Math.min(1f, value)) * max + 0.5f);
+    }
+
+    private static void checkBitDepth(int bitDepth) {
+        if (bitDepth != 8 && bitDepth != 16) {
+            throw new IllegalArgumentException(String.format("Unsupported bit depth %d, use 8 or 16.", bitDepth));
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.ccode.asset.ctn.image.util.RowBands;
+import org.ccode.asset.ctn.logging.Logger;
+import org.ccode.asset.ctn.logging.LoggerBuilder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders downscaled, automatically stretched previews of frames, and keeps PNG thumbnails of them in a cache
+ * directory.
+ * <p>
+ * The image is box-averaged down to the requested size in one pass over the full frame. The stretch is then computed
+ * from the median and MAD of the small image, which is itself a subsample of the frame: shadows are clipped a few
+ * MADs below the median and the background is brought to {@link #TARGET_BACKGROUND}, either with a midtones transfer
+ * function or an asinh curve. Thumbnails are keyed by the absolute path, size and modification time of the file, so a
+ * changed file gets a new thumbnail and revisiting a directory only costs a file lookup per frame.
+ */
+public class PreviewGenerator {
+    private static final Logger _logger = LoggerBuilder.defaultLogger(PreviewGenerator.class.getName());
+
+    public static final int DEFAULT_SIZE = 256;
+    public static final String DEFAULT_CACHE_DIR = ".thumbnails";
+    //Brightness of the median background after stretching
+    public static final float TARGET_BACKGROUND = 0.25f;
+
+    //Shadows are clipped this many normalized MADs from the median
+    private static final float SHADOWS_CLIP = -2.8f;
+    private static final float MAD_TO_SIGMA = 1.4826f;
+    private static final int MAX_SAMPLES = 1 << 18;
+
+    /**
+     * The curve bringing the background to {@link #TARGET_BACKGROUND}.
+     */
+    public enum Stretch {
+        //Midtones transfer function, as in the usual screen stretch of astronomy software
+        MIDTONES,
+        //Inverse hyperbolic sine, which keeps more contrast in bright stars and cores
+        ASINH
+    }
+
+    private final Path cacheDir;
+    private final int size;
+    private final Stretch stretch;
+
+    /**
+     * Creates a generator of {@link #DEFAULT_SIZE} thumbnails in {@link #DEFAULT_CACHE_DIR} of the working
+     * directory, with a midtones stretch.
+     */
+    public PreviewGenerator() {
+        this(Paths.get(DEFAULT_CACHE_DIR), DEFAULT_SIZE, Stretch.MIDTONES);
+    }
+
+    /**
+     * @param cacheDir The directory to keep thumbnails in. It is created when needed.
+     * @param size     The maximum width and height of a thumbnail.
+     * @param stretch  The curve to stretch thumbnails with.
+     */
+    public PreviewGenerator(Path cacheDir, int size, Stretch stretch) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The thumbnail size must be at least 1.");
+        }
+        this.cacheDir = cacheDir;
+        this.size = size;
+        this.stretch = stretch;
+    }
+
+    /**
+     * Returns the thumbnail of a FITS file, rendering it only if the file is new or changed since it was cached.
+     *
+     * @param filePath The FITS file.
+     * @param pool     The pool to render on, or null to render on the calling thread.
+     * @return The PNG file of the thumbnail.
+     * @throws IOException If the file cannot be read or the thumbnail cannot be written.
+     */
+    public Path getThumbnail(String filePath, ForkJoinPool pool) throws IOException {
+        Path thumbnail = cacheDir.resolve(cacheKey(Paths.get(filePath)) + ".png");
+        if (Files.isRegularFile(thumbnail)) {
+            return thumbnail;
+        }
+
+        BufferedImage image = renderPreview(filePath, size, stretch, pool);
+        Files.createDirectories(cacheDir);
+
+        //Write next to the thumbnail and swap it in, so an interrupted write never leaves a broken thumbnail
+        Path temp = Files.createTempFile(cacheDir, "thumbnail", ".tmp");
+        try {
+            PngEncoder.write(image, temp.toString());
+            Files.move(temp, thumbnail, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Returns the thumbnails of several FITS files. Files that cannot be rendered are logged and skipped.
+     *
+     * @param images The images.
+     * @param pool   The pool to render on, or null to render on the calling thread.
+     * @return The PNG files of the thumbnails, in the order of images.
+     */
+    public List<Path> getThumbnails(Fits[] images, ForkJoinPool pool) {
+        List<Path> thumbnails = new ArrayList<>(images.length);
+        for (Fits image : images) {
+            try {
+                thumbnails.add(getThumbnail(image.getFilePath(), pool));
+            } catch (IOException e) {
+                _logger.logException(e);
+            }
+        }
+        return thumbnails;
+    }
+
+    /**
+     * @return A file name identifying the contents of the file and the thumbnail settings.
+     */
+    private String cacheKey(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+        String identity = String.format("%s|%d|%d|%d|%s", absolute, attributes.size(),
+                attributes.lastModifiedTime().toMillis(), size, stretch);
+
+        try {
+            StringBuilder key = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8)))
+                key.append(String.format("%02x", b));
+            return key.substring(0, 32);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Renders a stretched preview of a FITS file, without caching it.
+     *
+     * @param filePath The FITS file.
+     * @param size     The maximum width and height of the preview.
+     * @param stretch  The curve to stretch the preview with.
+     * @param pool     The pool to render on, or null to render on the calling thread.
+     * @return An 8-bit grayscale image.
+     * @throws IOException If the file cannot be read.
+     */
+    public static BufferedImage renderPreview(String filePath, int size, Stretch stretch, ForkJoinPool pool) throws IOException {
+        FloatImage image = FitsDocument.extractFloatImage(filePath, pool);
+        if (image == null) {
+            throw new IOException(String.format("File: `%s` could not be read.", filePath));
+        }
+        return renderPreview(image, size, stretch, pool);
+    }
+
+    /**
+     * Renders a stretched preview of an image.
+     *
+     * @param image   The image, in the 0-1 range.
+     * @param size    The maximum width and height of the preview.
+     * @param stretch The curve to stretch the preview with.
+     * @param pool    The pool to render on, or null to render on the calling thread.
+     * @return An 8-bit grayscale image.
+     */
+    public static BufferedImage renderPreview(FloatImage image, int size, Stretch stretch, ForkJoinPool pool) {
+        FloatImage preview = downscale(image, size, pool);
+        autoStretch(preview, stretch, pool);
+        return PngEncoder.toImage(ImageExpression.of(preview), 8, pool);
+    }
+
+    /**
+     * Shrinks an image by a whole factor so that it fits the size, averaging the pixels of every factor x factor box.
+     * Boxes on the right and bottom edge may be smaller.
+     *
+     * @param image The image.
+     * @param size  The maximum width and height of the result.
+     * @param pool  The pool to work on, or null to work on the calling thread.
+     * @return A new image, or a copy of the image if it already fits.
+     */
+    public static FloatImage downscale(FloatImage image, int size, ForkJoinPool pool) {
+        int width = image.getWidth(), height = image.getHeight();
+        int factor = Math.max(1, (Math.max(width, height) + size - 1) / size);
+        if (factor == 1) {
+            return image.copy();
+        }
+
+        int smallWidth = (width + factor - 1) / factor;
+        int smallHeight = (height + factor - 1) / factor;
+        FloatImage small = new FloatImage(smallWidth, smallHeight);
+        float[] src = image.getData(), dst = small.getData();
+
+        RowBands.forEach(smallHeight, pool, (startRow, endRow) -> {
+            float[] sums = new float[smallWidth];
+            for (int row = startRow; row < endRow; row++) {
+                Arrays.fill(sums, 0f);
+                int firstRow = row * factor;
+                int lastRow = Math.min(height, firstRow + factor);
+
+                //Add up every source row of the box row, reading each one front to back
+                for (int y = firstRow; y < lastRow; y++) {
+                    int pos = image.rowOffset(y);
+                    for (int col = 0, x = 0; col < smallWidth; col++) {
+                        float sum = 0;
+                        for (int end = Math.min(width, x + factor); x < end; x++)
+                            sum += src[pos + x];
+                        sums[col] += sum;
+                    }
+                }
+
+                int boxHeight = lastRow - firstRow;
+                int pos = small.rowOffset(row);
+                for (int col = 0; col < smallWidth; col++) {
+                    int boxWidth = Math.min(width, (col + 1) * factor) - col * factor;
+                    dst[pos + col] = sums[col] / (boxWidth * boxHeight);
+                }
+            }
+        });
+        return small;
+    }
+
+    /**
+     * Stretches an image in place: shadows are clipped {@link #SHADOWS_CLIP} normalized MADs from the median and
+     * the median is brought to {@link #TARGET_BACKGROUND}. The statistics are taken from up to
+     * {@link #MAX_SAMPLES} evenly spaced pixels. When more than half of them share one value, e.g. in clipped or mostly
+     * blank frames, there is no spread to set the curve from, and the image is stretched linearly from the minimum to
+     * the maximum of the samples instead.
+     *
+     * @param image   The image, in the 0-1 range.
+     * @param stretch The curve to use.
+     * @param pool    The pool to work on, or null to work on the calling thread.
+     */
+    public static void autoStretch(FloatImage image, Stretch stretch, ForkJoinPool pool) {
+        //Gather the samples, skipping NaN which the selection cannot handle
+        int width = image.getWidth(), height = image.getHeight();
+        int step = (int) Math.max(1, ((long) width * height + MAX_SAMPLES - 1) / MAX_SAMPLES);
+        float[] samples = new float[(int) (((long) width * height + step - 1) / step)];
+        int n = 0;
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (long i = 0; i < (long) width * height; i += step) {
+            float value = image.getData()[image.index((int) (i % width), (int) (i / width))];
+            if (Float.isNaN(value)) continue;
+            samples[n++] = value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (n == 0) return;
+
+        float median = Selection.median(samples, n);
+        for (int i = 0; i < n; i++)
+            samples[i] = Math.abs(samples[i] - median);
+        float mad = Selection.median(samples, n) * MAD_TO_SIGMA;
+
+        //Black point below the background, and the background level after rescaling from it
+        float clipped = Math.max(0f, Math.min(1f, median + SHADOWS_CLIP * mad));
+        double background = (median - clipped) / (1f - clipped);
+
+        //With no spread the black point is the median, and either curve would turn everything above it white
+        boolean linear = mad == 0 || !(background > 0);
+        float shadows = linear ? min : clipped;
+        float range = (linear ? max : 1f) - shadows;
+        if (range <= 0) return;
+
+        double parameter = linear ? 0 : stretch == Stretch.MIDTONES ? midtones(TARGET_BACKGROUND, background)
+                : asinhSoftening(TARGET_BACKGROUND, background);
+
+        float[] data = image.getData();
+        RowBands.forEach(height, pool, (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                int pos = image.rowOffset(row);
+                for (int col = pos; col < pos + width; col++) {
+                    double x = Math.max(0.0, Math.min(1.0, (data[col] - shadows) / range));
+                    data[col] = (float) (linear ? x : stretch == Stretch.MIDTONES ? midtones(parameter, x)
+                            : parameter == 0 ? x : asinh(parameter * x) / asinh(parameter));
+                }
+            }
+        });
+    }
+
+    /**
+     * The midtones transfer function: 0, balance and 1 map to 0, 0.5 and 1. The balance bringing a level x to t is
+     * midtones(t, x).
+     */
+    private static double midtones(double balance, double x) {
+        if (x <= 0) return 0;
+        if (x >= 1) return 1;
+        return (balance - 1) * x / ((2 * balance - 1) * x - balance);
+    }
+
+    /**
+     * @return The softening b for which asinh(b * x) / asinh(b) = target, or 0 (a linear curve) if x is already at
+     * least as bright as the target.
+     */
+    private static double asinhSoftening(double target, double x) {
+        if (x <= 0 || x >= target) return 0;
+
+        //The curve brightens x monotonically with b, so bisect on a log scale
+        double low = 1e-6, high = 1e9;
+        for (int i = 0; i < 100; i++) {
+            double b = Math.sqrt(low * high);
+            if (asinh(b * x) / asinh(b) < target) low = b;
+            else high = b;
+        }
+        return Math.sqrt(low * high);
+    }
+
+    private static double asinh(double x) {
+        return Math.log(x + Math.sqrt(x * x + 1));
+    }
+}
@@ -0,0 +1,300 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of a stream of values that answers quantile queries (median, percentiles) in a small, bounded
+ * amount of memory, following the KLL sketch.
+ * <p>
+ * Values go into a buffer of level 0. When a level is full it is sorted and every other value is promoted to the next
+ * level, where each value stands for twice as many inputs, so the retained values always represent all the inputs
+ * with the same total weight. Lower levels hold fewer values than higher ones (by a factor 2/3 per level), which keeps
+ * the rank error of a quantile below 3 / k, 1.5% at {@link #DEFAULT_K}, whatever the number of inputs. Sketches of
+ * parts of an image, e.g. row bands, can be merged into the sketch of the whole. The minimum and maximum are kept
+ * exactly. NaN values are skipped.
+ * <p>
+ * The values promoted from a level alternate between the odd and even ones with a fixed sequence, so the same inputs
+ * added and merged in the same order always give the same sketch.
+ */
+public class QuantileSketch {
+    public static final int DEFAULT_K = 200;
+
+    private static final int MIN_CAPACITY = 8;
+    private static final double CAPACITY_RATIO = 2.0 / 3.0;
+
+    private final int k;
+    private float[][] levels = new float[1][];
+    private int[] sizes = new int[1];
+    private long count;
+    private float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+    private long seed = 0x9E3779B97F4A7C15L;
+    //Values retained over all levels, and how many the levels may hold together
+    private int retained, totalCapacity;
+
+    //Retained values in ascending order with their cumulative weights, built on the first query
+    private float[] sortedValues;
+    private long[] cumulativeWeights;
+
+    /**
+     * Creates a sketch with {@link #DEFAULT_K}.
+     */
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k The capacity of the top level. Larger values give more accurate quantiles for more memory.
+     */
+    public QuantileSketch(int k) {
+        if (k < MIN_CAPACITY) {
+            throw new IllegalArgumentException(String.format("k must be at least %d.", MIN_CAPACITY));
+        }
+        this.k = k;
+        levels[0] = new float[k];
+        totalCapacity = k;
+    }
+
+    /**
+     * Adds a value. NaN is skipped.
+     */
+    public void add(float value) {
+        if (Float.isNaN(value)) return;
+
+        if (value < min) min = value;
+        if (value > max) max = value;
+        count++;
+        sortedValues = null;
+
+        append(0, value);
+        if (retained >= totalCapacity) compress();
+    }
+
+    /**
+     * Adds the values a[from, to). NaN values are skipped.
+     */
+    public void add(float[] a, int from, int to) {
+        for (int i = from; i < to; i++)
+            add(a[i]);
+    }
+
+    /**
+     * Adds all the values another sketch represents.
+     *
+     * @param other The sketch to merge into this one. It is not modified.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.count == 0) return;
+
+        for (int h = 0; h < other.levels.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++)
+                append(h, other.levels[h][i]);
+        }
+
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sortedValues = null;
+        compress();
+    }
+
+    private void append(int level, float value) {
+        while (level >= levels.length) {
+            int top = levels.length;
+            levels = Arrays.copyOf(levels, top + 1);
+            sizes = Arrays.copyOf(sizes, top + 1);
+            levels[top] = new float[k];
+            totalCapacity = 0;
+            for (int h = 0; h <= top; h++)
+                totalCapacity += capacity(h);
+        }
+        if (sizes[level] == levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+        }
+        levels[level][sizes[level]++] = value;
+        retained++;
+    }
+
+    /**
+     * @return The number of values a level may hold, which shrinks by {@link #CAPACITY_RATIO} per level below the top.
+     */
+    private int capacity(int level) {
+        int depth = levels.length - 1 - level;
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)));
+    }
+
+    /**
+     * Compacts the lowest full level until the levels together are below their total capacity. Level 0 may hold more
+     * than its own capacity in the meantime, so values are sorted and promoted in larger batches.
+     */
+    private void compress() {
+        while (retained >= totalCapacity) {
+            int h = 0;
+            while (sizes[h] < capacity(h))
+                h++;
+            compact(h);
+        }
+    }
+
+    /**
+     * Promotes every other value of a sorted level to the next level. With an odd count the largest value stays.
+     */
+    private void compact(int level) {
+        float[] values = levels[level];
+        int size = sizes[level];
+        Arrays.sort(values, 0, size);
+
+        //Alternate between promoting the odd and the even values
+        seed = seed * 6364136223846793005L + 1442695040888963407L;
+        int offset = (int) (seed >>> 63);
+
+        int pairs = size / 2;
+        for (int i = 0; i < pairs; i++)
+            append(level + 1, values[2 * i + offset]);
+
+        if (size % 2 != 0) {
+            values[0] = values[size - 1];
+            sizes[level] = 1;
+        } else {
+            sizes[level] = 0;
+        }
+        retained -= size - sizes[level];
+    }
+
+    /**
+     * @param q The quantile, from 0 to 1.
+     * @return The value below which a fraction q of the values lies, or NaN if the sketch is empty.
+     */
+    public float getQuantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("The quantile must be between 0 and 1.");
+        }
+        if (count == 0) return Float.NaN;
+        if (q == 0) return min;
+        if (q == 1) return max;
+
+        sort();
+        double target = q * count;
+        int index = 0;
+        while (index < cumulativeWeights.length - 1 && cumulativeWeights[index] < target)
+            index++;
+        return sortedValues[index];
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value at the percentile, or NaN if the sketch is empty.
+     */
+    public float getPercentile(double percentile) {
+        return getQuantile(percentile / 100);
+    }
+
+    /**
+     * @return The median, or NaN if the sketch is empty.
+     */
+    public float getMedian() {
+        return getQuantile(0.5);
+    }
+
+    /**
+     * Estimates the median absolute deviation from the median from the retained values and their weights, so no
+     * second pass over the inputs is needed.
+     *
+     * @return The median absolute deviation, or NaN if the sketch is empty.
+     */
+    public float getMedianAbsoluteDeviation() {
+        if (count == 0) return Float.NaN;
+
+        float median = getMedian();
+        int n = sortedValues.length;
+
+        //Deviations of values on either side of the median grow outwards, so merge the two sides
+        int split = 0;
+        while (split < n && sortedValues[split] < median)
+            split++;
+
+        int below = split - 1, above = split;
+        double target = 0.5 * count;
+        long cumulative = 0;
+        float deviation = 0;
+        while (cumulative < target && (below >= 0 || above < n)) {
+            float belowDeviation = below >= 0 ? median - sortedValues[below] : Float.POSITIVE_INFINITY;
+            float aboveDeviation = above < n ? sortedValues[above] - median : Float.POSITIVE_INFINITY;
+
+            if (aboveDeviation <= belowDeviation) {
+                deviation = aboveDeviation;
+                cumulative += weight(above++);
+            } else {
+                deviation = belowDeviation;
+                cumulative += weight(below--);
+            }
+        }
+        return deviation;
+    }
+
+    private long weight(int index) {
+        return index == 0 ? cumulativeWeights[0] : cumulativeWeights[index] - cumulativeWeights[index - 1];
+    }
+
+    /**
+     * Merges the sorted levels into one sorted array with cumulative weights.
+     */
+    private void sort() {
+        if (sortedValues != null) return;
+
+        int total = retained;
+        float[] values = new float[total];
+        long[] weights = new long[total];
+        int n = 0;
+        for (int h = 0; h < levels.length; h++) {
+            float[] level = Arrays.copyOf(levels[h], sizes[h]);
+            Arrays.sort(level);
+
+            //Merge the level into the values sorted so far, from the back
+            int i = n - 1, j = level.length - 1, out = n + level.length - 1;
+            while (j >= 0) {
+                if (i >= 0 && values[i] > level[j]) {
+                    values[out] = values[i];
+                    weights[out--] = weights[i--];
+                } else {
+                    values[out] = level[j--];
+                    weights[out--] = 1L << h;
+                }
+            }
+            n += level.length;
+        }
+
+        for (int i = 1; i < total; i++)
+            weights[i] += weights[i - 1];
+
+        cumulativeWeights = weights;
+        sortedValues = values;
+    }
+
+    /**
+     * @return The number of values added, NaN excluded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The smallest value added, or +Infinity if the sketch is empty.
+     */
+    public float getMin() {
+        return min;
+    }
+
+    /**
+     * @return The largest value added, or -Infinity if the sketch is empty.
+     */
+    public float getMax() {
+        return max;
+    }
+
+    /**
+     * @return The number of values the sketch retains.
+     */
+    public int getRetained() {
+        return retained;
+    }
+}
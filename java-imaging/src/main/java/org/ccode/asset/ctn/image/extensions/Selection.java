@@ -0,0 +1,228 @@
+package org.ccode.asset.ctn.image.extensions;
+
+/**
+ * Allocation-free order statistics (median, percentiles) over the first n values of a float array.
+ * <p>
+ * The kernels reorder the values in place instead of sorting a copy: 3 and 5 values go through sorting networks,
+ * up to {@link #INSERTION_SORT_LIMIT} values through an insertion sort and anything larger through quickselect.
+ * Use {@link #scratch} to get a reusable per-thread buffer to gather the values of one pixel into.
+ * NaN ranks after every number, as in {@link java.util.Arrays#sort(float[])}: NaN values are moved behind the numbers
+ * first, and a rank that falls on them gives NaN.
+ */
+public class Selection {
+    public static final int INSERTION_SORT_LIMIT = 16;
+
+    private static final ThreadLocal<float[]> SCRATCH = ThreadLocal.withInitial(() -> new float[INSERTION_SORT_LIMIT]);
+
+    /**
+     * Returns a buffer owned by the calling thread. The same buffer is handed out on every call from the thread, so
+     * it must not be held on to by two users at once.
+     *
+     * @param n The minimum length of the buffer.
+     * @return A buffer of at least n floats.
+     */
+    public static float[] scratch(int n) {
+        float[] buffer = SCRATCH.get();
+        if (buffer.length < n) {
+            buffer = new float[Math.max(n, buffer.length * 2)];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Finds the median of the first n values. For an even n this is the mean of the two middle values.
+     * The values are reordered.
+     *
+     * @param values The values.
+     * @param n      The number of values to use.
+     * @return The median.
+     */
+    public static float median(float[] values, int n) {
+        if (moveNaNsToEnd(values, n) < n) {
+            //The middle ranks may fall on NaN
+            float upper = select(values, n, n / 2);
+            return n % 2 != 0 ? upper : (upper + select(values, n, (n - 1) / 2)) / 2;
+        }
+
+        switch (n) {
+            case 1:
+                return values[0];
+            case 2:
+                return (values[1] + values[0]) / 2;
+            case 3:
+                return median3(values[0], values[1], values[2]);
+            case 5:
+                return median5(values[0], values[1], values[2], values[3], values[4]);
+            default:
+                break;
+        }
+
+        if (n <= INSERTION_SORT_LIMIT) {
+            insertionSort(values, 0, n);
+            return n % 2 == 0 ? (values[n / 2] + values[(n - 1) / 2]) / 2 : values[n / 2];
+        }
+
+        float upper = select(values, n, n / 2);
+        if (n % 2 != 0) {
+            return upper;
+        }
+
+        //After the selection every value left of n / 2 is smaller or equal, so the lower middle is their maximum
+        float lower = values[0];
+        for (int i = 1; i < n / 2; i++) {
+            if (values[i] > lower) lower = values[i];
+        }
+        return (upper + lower) / 2;
+    }
+
+    /**
+     * Finds the k-th smallest of the first n values (k = 0 is the minimum). The values are reordered so that the
+     * result is at index k, with smaller or equal values before it and greater or equal values after it.
+     *
+     * @param values The values.
+     * @param n      The number of values to use.
+     * @param k      The rank to find.
+     * @return The k-th smallest value.
+     */
+    public static float select(float[] values, int n, int k) {
+        if (k < 0 || k >= n) {
+            throw new IndexOutOfBoundsException(String.format("Rank %d is outside of %d values.", k, n));
+        }
+
+        int numbers = moveNaNsToEnd(values, n);
+        if (k >= numbers) {
+            return Float.NaN;
+        }
+
+        int left = 0, right = numbers - 1;
+        while (right - left >= INSERTION_SORT_LIMIT) {
+            //Median of three as pivot, which also places sentinels at both ends
+            int middle = (left + right) >>> 1;
+            if (values[middle] < values[left]) swap(values, middle, left);
+            if (values[right] < values[left]) swap(values, right, left);
+            if (values[right] < values[middle]) swap(values, right, middle);
+            float pivot = values[middle];
+
+            //Hoare partition
+            int i = left, j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    swap(values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            //Continue in the part holding k
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return values[k];
+            }
+        }
+
+        insertionSort(values, left, right + 1);
+        return values[k];
+    }
+
+    /**
+     * Finds a percentile of the first n values, interpolating linearly between the closest ranks.
+     * The values are reordered.
+     *
+     * @param values     The values.
+     * @param n          The number of values to use.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value at the percentile.
+     */
+    public static float percentile(float[] values, int n, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+        }
+
+        double rank = percentile / 100 * (n - 1);
+        int lowerRank = (int) Math.floor(rank);
+        float lower = select(values, n, lowerRank);
+        if (lowerRank == n - 1 || rank == lowerRank) {
+            return lower;
+        }
+
+        //The next rank is the minimum of everything right of the selected one, which is NaN once past the numbers
+        float upper = values[lowerRank + 1];
+        if (!Float.isNaN(upper)) {
+            for (int i = lowerRank + 2; i < n; i++) {
+                if (values[i] < upper) upper = values[i];
+            }
+        }
+        return (float) (lower + (upper - lower) * (rank - lowerRank));
+    }
+
+    /**
+     * @return The median of three values, without branches.
+     */
+    public static float median3(float a, float b, float c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    /**
+     * @return The median of five values, from a sorting network.
+     */
+    public static float median5(float a, float b, float c, float d, float e) {
+        //Order (a, b) and (d, e), then drop the smallest and largest of the outer four
+        float t;
+        t = Math.min(a, b);
+        b = Math.max(a, b);
+        a = t;
+        t = Math.min(d, e);
+        e = Math.max(d, e);
+        d = t;
+
+        float lowMax = Math.max(a, d);
+        float highMin = Math.min(b, e);
+        return median3(lowMax, highMin, c);
+    }
+
+    /**
+     * Moves the NaN values among the first n behind all the others. Numbers keep no particular order.
+     *
+     * @return The number of values that are not NaN.
+     */
+    private static int moveNaNsToEnd(float[] values, int n) {
+        int numbers = n;
+        for (int i = 0; i < numbers; i++) {
+            if (Float.isNaN(values[i])) {
+                //Find a number at the end to swap in
+                do {
+                    numbers--;
+                } while (numbers > i && Float.isNaN(values[numbers]));
+                swap(values, i, numbers);
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Sorts values[from, to) in ascending order.
+     */
+    private static void insertionSort(float[] values, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            float value = values[i];
+            int j = i - 1;
+            while (j >= from && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap(float[] values, int i, int j) {
+        float t = values[i];
+        values[i] = values[j];
+        values[j] = t;
+    }
+}
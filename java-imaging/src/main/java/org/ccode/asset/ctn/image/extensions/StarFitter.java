@@ -0,0 +1,281 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+import org.ccode.asset.ctn.image.util.RowBands;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fits a circular 2D Gaussian on a flat background to the pixels around star candidates, with the Levenberg-Marquardt
+ * least-squares optimizer of commons-math3:
+ * <p>
+ * f(x, y) = background + amplitude * exp(-((x - x0)^2 + (y - y0)^2) / (2 * sigma^2))
+ * <p>
+ * Candidates are fitted in parallel, split into bands like the rows of an image. Every band fills one workspace with
+ * the window of each of its candidates in turn, and the model writes its values and Jacobian into the arrays of the
+ * workspace, so the pixel buffers are not allocated again for every star.
+ */
+public class StarFitter {
+    public static final int DEFAULT_RADIUS = 5;
+
+    //FWHM of a Gaussian over its sigma, 2 * sqrt(2 * ln 2)
+    private static final double SIGMA_TO_FWHM = 2.3548200450309493;
+    private static final int MAX_EVALUATIONS = 200;
+    private static final int MAX_ITERATIONS = 100;
+    //Smallest sigma of an accepted fit, in pixels. Narrower peaks are hot pixels or noise.
+    private static final double MIN_SIGMA = 0.3;
+
+    //Indices of the parameters
+    private static final int AMPLITUDE = 0, X0 = 1, Y0 = 2, SIGMA = 3, BACKGROUND = 4;
+
+    /**
+     * How a fit turned out.
+     */
+    public enum Quality {
+        //The fit converged to a star-like peak inside the window
+        GOOD,
+        //The optimizer did not converge within its evaluation and iteration limits
+        NOT_CONVERGED,
+        //The fit converged, but to a negative amplitude, a width out of range or a center outside the window
+        REJECTED,
+        //The image is smaller than the window
+        NO_WINDOW
+    }
+
+    /**
+     * Fits every candidate with {@link #DEFAULT_RADIUS}.
+     *
+     * @see #fit(FloatImage, int[], int, ForkJoinPool)
+     */
+    public static StarFit[] fit(FloatImage image, int[] candidates, ForkJoinPool pool) {
+        return fit(image, candidates, DEFAULT_RADIUS, pool);
+    }
+
+    /**
+     * Fits a Gaussian around every candidate.
+     *
+     * @param image      The image.
+     * @param candidates The peaks to fit around, as {x0, y0, x1, y1, ...}.
+     * @param radius     The window fitted spans (2 * radius + 1) pixels on each axis, moved inside the image at the
+     *                   edges.
+     * @param pool       The pool to fit on, or null to fit on the calling thread.
+     * @return The fit of every candidate, in the order of candidates.
+     */
+    public static StarFit[] fit(FloatImage image, int[] candidates, int radius, ForkJoinPool pool) {
+        if (radius < 1) {
+            throw new IllegalArgumentException("The radius must be at least 1.");
+        }
+        StarFit[] fits = new StarFit[candidates.length / 2];
+
+        RowBands.forEach(fits.length, pool, (start, end) -> {
+            Workspace workspace = new Workspace(radius);
+            for (int i = start; i < end; i++)
+                fits[i] = workspace.fit(image, candidates[2 * i], candidates[2 * i + 1]);
+        });
+        return fits;
+    }
+
+    /**
+     * The window and model arrays reused for all the fits of one band.
+     */
+    private static class Workspace implements MultivariateJacobianFunction {
+        private final int radius, size;
+        private final double[] xs, ys;
+        private final double[] target, values;
+        private final double[][] jacobian;
+        private final RealVector targetVector, valueVector;
+        private final RealMatrix jacobianMatrix;
+        private final LeastSquaresOptimizer optimizer = new LevenbergMarquardtOptimizer();
+
+        Workspace(int radius) {
+            this.radius = radius;
+            this.size = 2 * radius + 1;
+            int n = size * size;
+            xs = new double[n];
+            ys = new double[n];
+            target = new double[n];
+            values = new double[n];
+            jacobian = new double[n][5];
+
+            //Wrap the arrays without copying them, so filling them updates the vectors
+            targetVector = new ArrayRealVector(target, false);
+            valueVector = new ArrayRealVector(values, false);
+            jacobianMatrix = new Array2DRowRealMatrix(jacobian, false);
+        }
+
+        StarFit fit(FloatImage image, int peakX, int peakY) {
+            if (image.getWidth() < size || image.getHeight() < size) {
+                return new StarFit(peakX, peakY, 0, 0, 0, 0, 0, Quality.NO_WINDOW);
+            }
+
+            //Keep the window inside the image
+            int startX = Math.max(0, Math.min(peakX - radius, image.getWidth() - size));
+            int startY = Math.max(0, Math.min(peakY - radius, image.getHeight() - size));
+
+            //Load the window, and estimate the background from its border
+            float[] data = image.getData();
+            double border = 0;
+            int borderCount = 0, i = 0;
+            for (int y = startY; y < startY + size; y++) {
+                int index = image.index(startX, y);
+                for (int x = startX; x < startX + size; x++, i++) {
+                    xs[i] = x;
+                    ys[i] = y;
+                    target[i] = data[index++];
+                    if (x == startX || y == startY || x == startX + size - 1 || y == startY + size - 1) {
+                        border += target[i];
+                        borderCount++;
+                    }
+                }
+            }
+            double background = border / borderCount;
+            double peak = data[image.index(peakX, peakY)];
+
+            double[] start = new double[5];
+            start[AMPLITUDE] = peak - background;
+            start[X0] = peakX;
+            start[Y0] = peakY;
+            start[SIGMA] = 1.5;
+            start[BACKGROUND] = background;
+
+            LeastSquaresOptimizer.Optimum optimum;
+            try {
+                optimum = optimizer.optimize(new LeastSquaresBuilder()
+                        .start(start)
+                        .model(this)
+                        .target(targetVector)
+                        .lazyEvaluation(false)
+                        .maxEvaluations(MAX_EVALUATIONS)
+                        .maxIterations(MAX_ITERATIONS)
+                        .build());
+            } catch (MathIllegalStateException e) {
+                return new StarFit(peakX, peakY, 0, 0, 0, 0, 0, Quality.NOT_CONVERGED);
+            }
+
+            RealVector point = optimum.getPoint();
+            double amplitude = point.getEntry(AMPLITUDE);
+            double x0 = point.getEntry(X0), y0 = point.getEntry(Y0);
+            //Only the square of sigma enters the model, so its sign is meaningless
+            double sigma = Math.abs(point.getEntry(SIGMA));
+
+            boolean inWindow = x0 >= startX && x0 <= startX + size - 1 && y0 >= startY && y0 <= startY + size - 1;
+            Quality quality = amplitude > 0 && sigma >= MIN_SIGMA && sigma <= radius && inWindow
+                    ? Quality.GOOD : Quality.REJECTED;
+
+            return new StarFit(x0, y0, amplitude, point.getEntry(BACKGROUND), sigma * SIGMA_TO_FWHM,
+                    optimum.getRMS(), optimum.getIterations(), quality);
+        }
+
+        /**
+         * Evaluates the model and its Jacobian over the window into the arrays of the workspace.
+         */
+        @Override
+        public Pair<RealVector, RealMatrix> value(RealVector point) {
+            double amplitude = point.getEntry(AMPLITUDE);
+            double x0 = point.getEntry(X0), y0 = point.getEntry(Y0);
+            double sigma = point.getEntry(SIGMA);
+            double background = point.getEntry(BACKGROUND);
+            double inverseVariance = 1 / (sigma * sigma);
+
+            for (int i = 0; i < values.length; i++) {
+                double dx = xs[i] - x0, dy = ys[i] - y0;
+                double r2 = dx * dx + dy * dy;
+                double e = Math.exp(-0.5 * r2 * inverseVariance);
+                double g = amplitude * e;
+
+                values[i] = background + g;
+                double[] row = jacobian[i];
+                row[AMPLITUDE] = e;
+                row[X0] = g * dx * inverseVariance;
+                row[Y0] = g * dy * inverseVariance;
+                row[SIGMA] = g * r2 * inverseVariance / sigma;
+                row[BACKGROUND] = 1;
+            }
+            return new Pair<>(valueVector, jacobianMatrix);
+        }
+    }
+
+    /**
+     * The fitted Gaussian of one star.
+     */
+    public static class StarFit {
+        private final double x, y, amplitude, background, fwhm, rms;
+        private final int iterations;
+        private final Quality quality;
+
+        StarFit(double x, double y, double amplitude, double background, double fwhm, double rms, int iterations,
+                Quality quality) {
+            this.x = x;
+            this.y = y;
+            this.amplitude = amplitude;
+            this.background = background;
+            this.fwhm = fwhm;
+            this.rms = rms;
+            this.iterations = iterations;
+            this.quality = quality;
+        }
+
+        /**
+         * @return The sub-pixel x of the center, or the x of the peak if there is no fit.
+         */
+        public double getX() {
+            return x;
+        }
+
+        /**
+         * @return The sub-pixel y of the center, or the y of the peak if there is no fit.
+         */
+        public double getY() {
+            return y;
+        }
+
+        /**
+         * @return The height of the Gaussian above the background.
+         */
+        public double getAmplitude() {
+            return amplitude;
+        }
+
+        public double getBackground() {
+            return background;
+        }
+
+        /**
+         * @return The full width at half maximum, in pixels.
+         */
+        public double getFwhm() {
+            return fwhm;
+        }
+
+        /**
+         * @return The root mean square of the residuals of the fit.
+         */
+        public double getRms() {
+            return rms;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public Quality getQuality() {
+            return quality;
+        }
+
+        /**
+         * @return If the fit is {@link Quality#GOOD}.
+         */
+        public boolean isGood() {
+            return quality == Quality.GOOD;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.ccode.asset.ctn.image.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of an image into bands and runs a task on each band in a ForkJoinPool.
+ * <p>
+ * Tasks must only write to the rows of their own band; then the result is the same whatever the pool, its
+ * parallelism or the band boundaries. Passing a null pool runs the whole image as one band on the calling thread,
+ * which is the serial path of every operation built on this class.
+ */
+public class RowBands {
+    //Bands per worker, so that uneven bands still keep every worker busy
+    private static final int BANDS_PER_WORKER = 4;
+
+    /**
+     * Work on the rows [startRow, endRow).
+     */
+    @FunctionalInterface
+    public interface BandTask {
+        void run(int startRow, int endRow);
+    }
+
+    /**
+     * Runs the task over all rows, splitting them into bands on the pool.
+     *
+     * @param height The number of rows.
+     * @param pool   The pool to run on, or null to run on the calling thread.
+     * @param task   The work for one band.
+     */
+    public static void forEach(int height, ForkJoinPool pool, BandTask task) {
+        if (pool == null || pool.getParallelism() == 1 || height <= 1) {
+            task.run(0, height);
+            return;
+        }
+
+        int bandHeight = Math.max(1, height / (pool.getParallelism() * BANDS_PER_WORKER));
+        pool.invoke(new BandAction(0, height, bandHeight, task));
+    }
+
+    /**
+     * Creates a pool for the given parallelism level, to be shared by a whole pipeline run.
+     *
+     * @param parallelism The number of worker threads, or 0 for the number of available processors.
+     * @return A new pool. The caller should shut it down when done.
+     */
+    public static ForkJoinPool newPool(int parallelism) {
+        return new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    private static class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int startRow, endRow, bandHeight;
+        private final BandTask task;
+
+        BandAction(int startRow, int endRow, int bandHeight, BandTask task) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandHeight = bandHeight;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= bandHeight) {
+                task.run(startRow, endRow);
+                return;
+            }
+
+            int middle = (startRow + endRow) >>> 1;
+            invokeAll(new BandAction(startRow, middle, bandHeight, task), new BandAction(middle, endRow, bandHeight, task));
+        }
+    }
+}
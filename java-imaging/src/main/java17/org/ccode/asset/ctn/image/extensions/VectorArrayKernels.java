@@ -0,0 +1,78 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link ArrayKernels} on the incubating Vector API, using the widest vectors the CPU supports.
+ * Each kernel runs the vector loop over whole vectors and finishes the tail with the scalar loop.
+ */
+class VectorArrayKernels extends ArrayKernels {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public String getName() {
+        return "vector-" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void add(float[] a, int from, int to, float num) {
+        int i = from;
+        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length())
+            FloatVector.fromArray(SPECIES, a, i).add(num).intoArray(a, i);
+        super.add(a, i, to, num);
+    }
+
+    @Override
+    public void multiply(float[] a, int from, int to, float num) {
+        int i = from;
+        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length())
+            FloatVector.fromArray(SPECIES, a, i).mul(num).intoArray(a, i);
+        super.multiply(a, i, to, num);
+    }
+
+    @Override
+    public void divide(float[] a, int from, int to, float num) {
+        int i = from;
+        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length())
+            FloatVector.fromArray(SPECIES, a, i).div(num).intoArray(a, i);
+        super.divide(a, i, to, num);
+    }
+
+    @Override
+    public void multiplyAdd(float[] a, int from, int to, float mul, float add) {
+        int i = from;
+        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length())
+            FloatVector.fromArray(SPECIES, a, i).mul(mul).add(add).intoArray(a, i);
+        super.multiplyAdd(a, i, to, mul, add);
+    }
+
+    @Override
+    public void clip(float[] a, int from, int to, float min, float max) {
+        int i = from;
+        for (int upper = from + SPECIES.loopBound(to - from); i < upper; i += SPECIES.length()) {
+            //Compare and blend like the scalar loop, as min/max would turn -0.0 into 0.0 when clipping at 0
+            FloatVector v = FloatVector.fromArray(SPECIES, a, i);
+            v = v.blend(max, v.compare(VectorOperators.GT, max));
+            v.blend(min, v.compare(VectorOperators.LT, min)).intoArray(a, i);
+        }
+        super.clip(a, i, to, min, max);
+    }
+
+    @Override
+    public void add(float[] dst, int dstPos, float[] src, int srcPos, int length) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length())
+            FloatVector.fromArray(SPECIES, dst, dstPos + i).add(FloatVector.fromArray(SPECIES, src, srcPos + i)).intoArray(dst, dstPos + i);
+        super.add(dst, dstPos + i, src, srcPos + i, length - i);
+    }
+
+    @Override
+    public void subtract(float[] dst, int dstPos, float[] a, int aPos, float[] b, int bPos, int length) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length())
+            FloatVector.fromArray(SPECIES, a, aPos + i).sub(FloatVector.fromArray(SPECIES, b, bPos + i)).intoArray(dst, dstPos + i);
+        super.subtract(dst, dstPos + i, a, aPos + i, b, bPos + i, length - i);
+    }
+}
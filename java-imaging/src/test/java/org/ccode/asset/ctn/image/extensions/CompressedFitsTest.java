@@ -0,0 +1,108 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import nom.tam.fits.Header;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compresses a non-square image with every supported BITPIX and algorithm and reads it back, so that a swapped width
+ * and height or tile size shows up.
+ */
+public class CompressedFitsTest {
+    private static final int WIDTH = 37, HEIGHT = 20;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void roundTrip() throws IOException {
+        FloatImage image = testImage();
+        Object[][] cases = {
+                {16, CompressedFits.RICE}, {32, CompressedFits.RICE}, {16, CompressedFits.GZIP},
+                {-32, CompressedFits.GZIP}, {-32, CompressedFits.GZIP_SHUFFLED}};
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            for (Object[] test : cases) {
+                int bitpix = (Integer) test[0];
+                String compression = (String) test[1];
+                String message = "BITPIX " + bitpix + ", " + compression;
+                Path path = folder.resolve("image" + bitpix + compression + ".fits");
+
+                Header header = new Header();
+                header.addValue("OBJECT", "M31", "target");
+                CompressedFits.write(path, image, header, bitpix, compression, pool);
+
+                //The header describes the image, not the binary table holding the tiles
+                FitsHeader imageHeader = FitsHeader.readImageHeader(path);
+                assertTrue(imageHeader.isCompressed(), message);
+                assertTrue(CompressedFits.isCompressed(path), message);
+                assertEquals(bitpix, imageHeader.getBitpix(), message);
+                assertArrayEquals(new int[]{WIDTH, HEIGHT}, imageHeader.getNaxes(), message);
+                assertEquals("M31", imageHeader.getStringValue("OBJECT"), message);
+
+                //Physical values, with BZERO applied, the same as an uncompressed file written by FitsWriter
+                Path plain = folder.resolve("plain" + bitpix + ".fits");
+                try (FitsWriter writer = new FitsWriter(plain, WIDTH, HEIGHT, bitpix, null)) {
+                    writer.writeRows(image);
+                }
+                assertFalse(CompressedFits.isCompressed(plain), message);
+                FloatImage expected = new FloatImage(WIDTH, HEIGHT);
+                try (MappedFitsReader reader = new MappedFitsReader(plain)) {
+                    reader.readRows(0, expected);
+                }
+
+                for (ForkJoinPool readPool : new ForkJoinPool[]{null, pool}) {
+                    FloatImage read = CompressedFits.read(path, readPool);
+                    assertEquals(WIDTH, read.getWidth(), message);
+                    assertEquals(HEIGHT, read.getHeight(), message);
+                    for (int row = 0; row < HEIGHT; row++) {
+                        for (int col = 0; col < WIDTH; col++)
+                            assertEquals(expected.getData()[expected.index(col, row)],
+                                    read.getData()[read.index(col, row)], message + ", pixel " + col + ", " + row);
+                    }
+                }
+
+                //Mapped to 0-1 over the whole image
+                FloatImage normalized = CompressedFits.readNormalized(path, pool);
+                float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                for (float value : expected.getData()) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                for (int row = 0; row < HEIGHT; row++) {
+                    for (int col = 0; col < WIDTH; col++) {
+                        float value = expected.getData()[expected.index(col, row)];
+                        assertEquals((value - min) / (max - min), normalized.getData()[normalized.index(col, row)],
+                                1e-6, message + ", normalized pixel " + col + ", " + row);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return A strided view of a gradient, different along each axis, with a little noise.
+     */
+    private static FloatImage testImage() {
+        Random random = new Random(9);
+        FloatImage image = new FloatImage(WIDTH + 4, HEIGHT + 1).view(2, 1, WIDTH, HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++)
+                image.getData()[image.index(col, row)] = 0.1f + 0.02f * col + 0.005f * row + 0.001f * random.nextFloat();
+        }
+        return image;
+    }
+}
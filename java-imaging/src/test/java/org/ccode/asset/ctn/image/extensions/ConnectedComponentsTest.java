@@ -0,0 +1,140 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the labels and measures of the blobs against a serial flood fill, on the calling thread and on pools of
+ * several sizes, so that blobs cross the boundaries between row bands.
+ */
+public class ConnectedComponentsTest {
+    private static final float THRESHOLD = 0.5f;
+    private static final int[] THREADS = {1, 3, 8};
+
+    @Test
+    public void matchesFloodFill() {
+        Random random = new Random(11);
+        //Sparse blobs, large merged shapes and noise close to the threshold, where most pixels are their own blob
+        for (double density : new double[]{0.1, 0.45, 0.6}) {
+            for (int trial = 0; trial < 4; trial++) {
+                int width = 20 + random.nextInt(200), height = 20 + random.nextInt(300);
+                FloatImage image = new FloatImage(width + 7, height + 3);
+                float[] data = image.getData();
+                for (int i = 0; i < data.length; i++)
+                    data[i] = random.nextDouble() < density ? 0.5f + random.nextFloat() : random.nextFloat() * 0.5f;
+                data[random.nextInt(data.length)] = Float.NaN;
+
+                //A strided view, so rows are not contiguous
+                FloatImage view = image.view(4, 2, width, height);
+                String message = String.format("density %.2f, %d x %d", density, width, height);
+                check(view, null, message);
+                for (int threads : THREADS) {
+                    ForkJoinPool pool = new ForkJoinPool(threads);
+                    try {
+                        check(view, pool, message + ", " + threads + " threads");
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void check(FloatImage image, ForkJoinPool pool, String message) {
+        int width = image.getWidth(), height = image.getHeight();
+        float[] data = image.getData();
+        int[] expected = floodFill(image);
+        ConnectedComponents components = ConnectedComponents.label(image, THRESHOLD, pool);
+        assertArrayEquals(expected, components.getLabels(), message);
+
+        int count = Arrays.stream(expected).max().orElse(-1) + 1;
+        assertEquals(count, components.getCount(), message);
+
+        //Measure every blob from the reference labels
+        int[] area = new int[count], minX = new int[count], minY = new int[count], maxX = new int[count],
+                maxY = new int[count], peakX = new int[count], peakY = new int[count];
+        double[] flux = new double[count];
+        float[] peak = new float[count];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(peak, Float.NEGATIVE_INFINITY);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int label = expected[y * width + x];
+                if (label < 0) continue;
+                float value = data[image.index(x, y)];
+                area[label]++;
+                minX[label] = Math.min(minX[label], x);
+                minY[label] = Math.min(minY[label], y);
+                maxX[label] = Math.max(maxX[label], x);
+                maxY[label] = Math.max(maxY[label], y);
+                flux[label] += value;
+                if (value > peak[label]) {
+                    peak[label] = value;
+                    peakX[label] = x;
+                    peakY[label] = y;
+                }
+            }
+        }
+
+        for (int label = 0; label < count; label++) {
+            ConnectedComponents.Blob blob = components.getBlobs()[label];
+            String blobMessage = message + ", blob " + label;
+            assertEquals(label, blob.getLabel(), blobMessage);
+            assertEquals(area[label], blob.getArea(), blobMessage);
+            assertEquals(minX[label], blob.getMinX(), blobMessage);
+            assertEquals(minY[label], blob.getMinY(), blobMessage);
+            assertEquals(maxX[label], blob.getMaxX(), blobMessage);
+            assertEquals(maxY[label], blob.getMaxY(), blobMessage);
+            assertEquals(flux[label], blob.getFlux(), 1e-9 * area[label], blobMessage);
+            assertEquals(peak[label], blob.getPeak(), blobMessage);
+            assertEquals(peakX[label], blob.getPeakX(), blobMessage);
+            assertEquals(peakY[label], blob.getPeakY(), blobMessage);
+        }
+    }
+
+    /**
+     * @return The label of every pixel from a breadth-first fill of the pixels above the threshold, touching by a side
+     * or a corner, with blobs numbered by their first pixel in row-major order, or -1 below the threshold.
+     */
+    private static int[] floodFill(FloatImage image) {
+        int width = image.getWidth(), height = image.getHeight();
+        float[] data = image.getData();
+        int[] labels = new int[width * height];
+        Arrays.fill(labels, -2);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        int count = 0;
+
+        for (int start = 0; start < labels.length; start++) {
+            if (labels[start] != -2) continue;
+            if (!(data[image.index(start % width, start / width)] > THRESHOLD)) {
+                labels[start] = -1;
+                continue;
+            }
+
+            labels[start] = count;
+            queue.add(start);
+            while (!queue.isEmpty()) {
+                int i = queue.poll(), x = i % width, y = i / width;
+                for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+                    for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+                        int j = ny * width + nx;
+                        if (labels[j] == -2 && data[image.index(nx, ny)] > THRESHOLD) {
+                            labels[j] = count;
+                            queue.add(j);
+                        }
+                    }
+                }
+            }
+            count++;
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,134 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import nom.tam.fits.FitsException;
+import nom.tam.fits.Header;
+import nom.tam.fits.ImageHDU;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Writes a non-square image at every BITPIX and reads it back with nom-tam-fits and {@link MappedFitsReader}.
+ */
+public class FitsWriterTest {
+    private static final int WIDTH = 37, HEIGHT = 20;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void roundTrip() throws IOException, FitsException {
+        FloatImage image = testImage();
+        for (int bitpix : new int[]{16, 32, -32}) {
+            Path path = folder.resolve("image" + bitpix + ".fits");
+            Header header = new Header();
+            header.addValue("OBJECT", "M31", "target");
+            //Structural cards of the source are replaced by the ones of the output
+            header.addValue("BITPIX", 8, null);
+            try (FitsWriter writer = new FitsWriter(path, WIDTH, HEIGHT, bitpix, header)) {
+                writer.writeRows(image);
+            }
+
+            String message = "BITPIX " + bitpix;
+            assertEquals(0, Files.size(path) % FitsHeader.BLOCK_SIZE, message);
+
+            try (nom.tam.fits.Fits fits = new nom.tam.fits.Fits(path.toFile())) {
+                ImageHDU hdu = (ImageHDU) fits.readHDU();
+                assertEquals(bitpix, hdu.getHeader().getIntValue("BITPIX"), message);
+                assertEquals(WIDTH, hdu.getHeader().getIntValue("NAXIS1"), message);
+                assertEquals(HEIGHT, hdu.getHeader().getIntValue("NAXIS2"), message);
+                assertEquals("M31", hdu.getHeader().getStringValue("OBJECT"), message);
+
+                //The stored values, without BZERO
+                Object[] rows = (Object[]) hdu.getKernel();
+                assertEquals(HEIGHT, rows.length, message);
+                for (int row = 0; row < HEIGHT; row++) {
+                    for (int col = 0; col < WIDTH; col++) {
+                        float value = image.getData()[image.index(col, row)];
+                        String pixel = message + ", pixel " + col + ", " + row;
+                        if (bitpix == 16) {
+                            assertEquals(expectedShort(value), ((short[]) rows[row])[col], pixel);
+                        } else if (bitpix == 32) {
+                            assertEquals(expectedInt(value), ((int[]) rows[row])[col], pixel);
+                        } else {
+                            assertEquals(value, ((float[]) rows[row])[col], pixel);
+                        }
+                    }
+                }
+            }
+
+            //The physical values, with BZERO
+            try (MappedFitsReader reader = new MappedFitsReader(path)) {
+                FloatImage read = new FloatImage(WIDTH, HEIGHT);
+                reader.readRows(0, read);
+                for (int row = 0; row < HEIGHT; row++) {
+                    for (int col = 0; col < WIDTH; col++) {
+                        float value = image.getData()[image.index(col, row)];
+                        float expected = bitpix == 16 ? expectedShort(value) + 32768f
+                                : bitpix == 32 ? (float) (expectedInt(value) + 2147483648.0) : value;
+                        assertEquals(expected, read.getData()[read.index(col, row)],
+                                message + ", pixel " + col + ", " + row);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nanIsStoredAsZero() throws IOException {
+        FloatImage image = new FloatImage(WIDTH, HEIGHT);
+        image.getData()[image.index(3, 2)] = Float.NaN;
+
+        Path path = folder.resolve("nan.fits");
+        try (FitsWriter writer = new FitsWriter(path, WIDTH, HEIGHT, 16, null)) {
+            writer.writeRows(image);
+        }
+        try (MappedFitsReader reader = new MappedFitsReader(path)) {
+            FloatImage read = new FloatImage(WIDTH, HEIGHT);
+            reader.readRows(0, read);
+            assertEquals(32768f, read.getData()[read.index(3, 2)]);
+            assertEquals(0f, read.getData()[read.index(4, 2)]);
+        }
+    }
+
+    @Test
+    public void missingRowsFail() {
+        Path path = folder.resolve("short.fits");
+        assertThrows(IOException.class, () -> {
+            try (FitsWriter writer = new FitsWriter(path, WIDTH, HEIGHT, 16, null)) {
+                writer.writeRow(new float[WIDTH], 0);
+            }
+        });
+    }
+
+    /**
+     * @return A strided view with values over the whole 0-1 range, and some outside of it to clip.
+     */
+    private static FloatImage testImage() {
+        Random random = new Random(5);
+        FloatImage image = new FloatImage(WIDTH + 3, HEIGHT + 2).view(1, 2, WIDTH, HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++)
+                image.getData()[image.index(col, row)] = random.nextFloat();
+        }
+        float[] edges = {0, 1, 0.5f, -0.25f, 1.5f};
+        for (int i = 0; i < edges.length; i++)
+            image.getData()[image.index(i, i)] = edges[i];
+        return image;
+    }
+
+    private static short expectedShort(float value) {
+        return (short) (Math.max(0f, Math.min(1f, value)) * 65535f - 32768);
+    }
+
+    private static int expectedInt(float value) {
+        return (int) (Math.max(0f, Math.min(1f, value)) * 4294967295.0 - 2147483648.0);
+    }
+}
@@ -0,0 +1,166 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import nom.tam.fits.FitsException;
+import nom.tam.fits.ImageData;
+import nom.tam.fits.ImageHDU;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Decodes files of every BITPIX written by nom-tam-fits and compares the rows with the stored values of the kernel,
+ * scaled with the precision of each BITPIX: floats for 8, 16 and -32, doubles for 32, 64 and -64.
+ */
+public class MappedFitsReaderTest {
+    private static final int WIDTH = 37, HEIGHT = 20;
+    private static final double BZERO = -1000.25, BSCALE = 1.5;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void decodesEveryBitpix() throws IOException, FitsException {
+        for (int bitpix : new int[]{8, 16, 32, 64, -32, -64}) {
+            Object kernel = randomKernel(new Random(bitpix + 100), bitpix);
+            Path path = write(kernel, "image" + bitpix + ".fits");
+
+            try (MappedFitsReader reader = new MappedFitsReader(path)) {
+                assertEquals(bitpix, reader.getBitpix());
+                assertEquals(WIDTH, reader.getWidth());
+                assertEquals(HEIGHT, reader.getHeight());
+
+                FloatImage image = new FloatImage(WIDTH + 5, HEIGHT).view(3, 0, WIDTH, HEIGHT);
+                reader.readRows(0, image);
+                check(kernel, bitpix, image, 0, "BITPIX " + bitpix);
+            }
+        }
+    }
+
+    @Test
+    public void readsAcrossWindows() throws IOException, FitsException {
+        Object kernel = randomKernel(new Random(7), 16);
+        Path path = write(kernel, "windows.fits");
+
+        //Windows of 3 rows, so a band of rows spans several of them
+        try (MappedFitsReader reader = new MappedFitsReader(path, 3L * WIDTH * 2 + 5);
+             MappedFitsReader whole = new MappedFitsReader(path)) {
+            FloatImage band = new FloatImage(WIDTH, 11);
+            reader.readRows(2, band);
+            check(kernel, 16, band, 2, "window boundaries");
+
+            FloatImage normalized = new FloatImage(WIDTH, HEIGHT);
+            FloatImage expected = new FloatImage(WIDTH, HEIGHT);
+            reader.readNormalizedRows(0, normalized);
+            whole.readNormalizedRows(0, expected);
+            for (int i = 0; i < WIDTH * HEIGHT; i++)
+                assertEquals(expected.getData()[i], normalized.getData()[i], "normalized pixel " + i);
+        }
+    }
+
+    /**
+     * Compares the rows of image with the rows of the kernel from startRow on.
+     */
+    private static void check(Object kernel, int bitpix, FloatImage image, int startRow, String message) {
+        float zero = (float) BZERO, scale = (float) BSCALE;
+        for (int row = 0; row < image.getHeight(); row++) {
+            Object stored = Array.get(kernel, startRow + row);
+            for (int col = 0; col < WIDTH; col++) {
+                float expected;
+                switch (bitpix) {
+                    case 8:
+                        //FITS bytes are unsigned
+                        expected = (((byte[]) stored)[col] & 0xFF) * scale + zero;
+                        break;
+                    case 16:
+                        expected = ((short[]) stored)[col] * scale + zero;
+                        break;
+                    case 32:
+                        expected = (float) (((int[]) stored)[col] * BSCALE + BZERO);
+                        break;
+                    case 64:
+                        expected = (float) (((long[]) stored)[col] * BSCALE + BZERO);
+                        break;
+                    case -32:
+                        expected = ((float[]) stored)[col] * scale + zero;
+                        break;
+                    default:
+                        expected = (float) (((double[]) stored)[col] * BSCALE + BZERO);
+                }
+                assertEquals(expected, image.getData()[image.index(col, row)],
+                        message + ", pixel " + col + ", " + (startRow + row));
+            }
+        }
+    }
+
+    private Path write(Object kernel, String name) throws IOException, FitsException {
+        Path path = folder.resolve(name);
+        ImageHDU hdu = ImageData.from(kernel).toHDU();
+        hdu.getHeader().addValue("BZERO", BZERO, null);
+        hdu.getHeader().addValue("BSCALE", BSCALE, null);
+        try (nom.tam.fits.Fits fits = new nom.tam.fits.Fits()) {
+            fits.addHDU(hdu);
+            fits.write(path.toFile());
+        }
+        return path;
+    }
+
+    /**
+     * @return Stored values over the whole range of the type, as HEIGHT rows of WIDTH values.
+     */
+    private static Object randomKernel(Random random, int bitpix) {
+        switch (bitpix) {
+            case 8: {
+                byte[][] kernel = new byte[HEIGHT][WIDTH];
+                for (byte[] row : kernel)
+                    random.nextBytes(row);
+                return kernel;
+            }
+            case 16: {
+                short[][] kernel = new short[HEIGHT][WIDTH];
+                for (short[] row : kernel) {
+                    for (int col = 0; col < WIDTH; col++)
+                        row[col] = (short) random.nextInt();
+                }
+                return kernel;
+            }
+            case 32: {
+                int[][] kernel = new int[HEIGHT][WIDTH];
+                for (int[] row : kernel) {
+                    for (int col = 0; col < WIDTH; col++)
+                        row[col] = random.nextInt();
+                }
+                return kernel;
+            }
+            case 64: {
+                long[][] kernel = new long[HEIGHT][WIDTH];
+                for (long[] row : kernel) {
+                    for (int col = 0; col < WIDTH; col++)
+                        row[col] = random.nextLong() >> 20;
+                }
+                return kernel;
+            }
+            case -32: {
+                float[][] kernel = new float[HEIGHT][WIDTH];
+                for (float[] row : kernel) {
+                    for (int col = 0; col < WIDTH; col++)
+                        row[col] = (float) (random.nextGaussian() * 1e4);
+                }
+                return kernel;
+            }
+            default: {
+                double[][] kernel = new double[HEIGHT][WIDTH];
+                for (double[] row : kernel) {
+                    for (int col = 0; col < WIDTH; col++)
+                        row[col] = random.nextGaussian() * 1e9;
+                }
+                return kernel;
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the quantiles of the sketch against the exact quantiles of a sorted copy, within the documented rank error of
+ * 3 / k.
+ */
+public class QuantileSketchTest {
+    private static final int[] SIZES = {1000, 30000, 300000};
+    private static final int[] KS = {50, QuantileSketch.DEFAULT_K};
+
+    @Test
+    public void rankErrorWithinBound() {
+        for (int k : KS) {
+            double bound = 3.0 / k;
+            for (int trial = 0; trial < 12; trial++) {
+                Random random = new Random(trial);
+                for (int n : SIZES) {
+                    float[] values = randomValues(random, n, trial % 3);
+                    //Sketch row bands separately and merge them, as ImageStatistics does
+                    int bands = 1 + trial % 5;
+                    QuantileSketch sketch = new QuantileSketch(k);
+                    for (int band = 0; band < bands; band++) {
+                        QuantileSketch part = new QuantileSketch(k);
+                        part.add(values, (int) ((long) n * band / bands), (int) ((long) n * (band + 1) / bands));
+                        sketch.merge(part);
+                    }
+
+                    float[] sorted = values.clone();
+                    Arrays.sort(sorted);
+                    assertEquals(n, sketch.getCount());
+                    for (int percentile = 1; percentile < 100; percentile++) {
+                        double error = rankError(sorted, sketch.getPercentile(percentile), percentile / 100.0);
+                        assertTrue(error <= bound, String.format("k = %d, n = %d, trial %d, percentile %d: " +
+                                "rank error %.4f", k, n, trial, percentile, error));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void exactBelowCapacity() {
+        Random random = new Random(7);
+        float[] values = randomValues(random, QuantileSketch.DEFAULT_K - 1, 2);
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(values, 0, values.length);
+
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (int percentile = 1; percentile < 100; percentile++) {
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            assertEquals(sorted[rank], sketch.getPercentile(percentile), "percentile " + percentile);
+        }
+        assertEquals(sorted[0], sketch.getQuantile(0));
+        assertEquals(sorted[sorted.length - 1], sketch.getQuantile(1));
+    }
+
+    @Test
+    public void skipsNaN() {
+        QuantileSketch sketch = new QuantileSketch();
+        assertEquals(Float.NaN, sketch.getMedian());
+        sketch.add(new float[]{Float.NaN, 2, Float.NaN, 1, 3}, 0, 5);
+        assertEquals(3, sketch.getCount());
+        assertEquals(1f, sketch.getMin());
+        assertEquals(3f, sketch.getMax());
+        assertEquals(2f, sketch.getMedian());
+    }
+
+    @Test
+    public void imageStatisticsMatchExact() {
+        Random random = new Random(3);
+        int width = 300, height = 200;
+        FloatImage image = new FloatImage(width + 10, height + 10);
+        float[] data = image.getData();
+        for (int i = 0; i < data.length; i++)
+            data[i] = (float) random.nextGaussian();
+        FloatImage view = image.view(5, 5, width, height);
+
+        float[] values = new float[width * height];
+        double sum = 0;
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(data, view.rowOffset(y), values, y * width, width);
+            for (int x = 0; x < width; x++)
+                sum += values[y * width + x];
+        }
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            ImageStatistics serial = ImageStatistics.of(view, null);
+            ImageStatistics parallel = ImageStatistics.of(view, pool);
+            for (ImageStatistics statistics : new ImageStatistics[]{serial, parallel}) {
+                assertEquals(values.length, statistics.getCount());
+                assertEquals(sorted[0], statistics.getMin());
+                assertEquals(sorted[sorted.length - 1], statistics.getMax());
+                assertEquals(sum / values.length, statistics.getMean(), 1e-9);
+                assertTrue(rankError(sorted, statistics.getMedian(), 0.5) <= 3.0 / QuantileSketch.DEFAULT_K);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return Gaussian, log-normal or heavily duplicated integer values.
+     */
+    private static float[] randomValues(Random random, int n, int kind) {
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++) {
+            if (kind == 0) values[i] = (float) random.nextGaussian();
+            else if (kind == 1) values[i] = (float) Math.exp(2 * random.nextGaussian());
+            else values[i] = random.nextInt(50);
+        }
+        return values;
+    }
+
+    /**
+     * @return How far q is from the range of ranks, as fractions of the count, that the value spans in sorted.
+     */
+    private static double rankError(float[] sorted, float value, double q) {
+        int n = sorted.length;
+        double lower = (double) firstIndex(sorted, value, false) / n;
+        double upper = (double) firstIndex(sorted, value, true) / n;
+        return q < lower ? lower - q : q > upper ? q - upper : 0;
+    }
+
+    /**
+     * @return The index of the first value at least value, or with after, greater than it.
+     */
+    private static int firstIndex(float[] sorted, float value, boolean after) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (after ? sorted[mid] <= value : sorted[mid] < value) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,83 @@
+package org.ccode.asset.ctn.image.extensions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the selection kernels against a sorted copy, which orders NaN after every number.
+ */
+public class SelectionTest {
+    private static final int[] LARGE_SIZES = {31, 32, 100, 1001, 4096};
+    private static final double[] PERCENTILES = {0, 1, 10, 25, 33.3, 50, 75, 90, 99, 100};
+
+    @Test
+    public void matchesSortedCopy() {
+        Random random = new Random(42);
+        for (int n = 1; n <= 20; n++) {
+            for (int trial = 0; trial < 200; trial++)
+                check(randomValues(random, n), "n = " + n + ", trial " + trial);
+        }
+        for (int n : LARGE_SIZES) {
+            for (int trial = 0; trial < 20; trial++)
+                check(randomValues(random, n), "n = " + n + ", trial " + trial);
+        }
+    }
+
+    @Test
+    public void nanRanksLast() {
+        assertEquals(3f, Selection.median(new float[]{1, Float.NaN, 3}, 3));
+        assertEquals(Float.NaN, Selection.median(new float[]{Float.NaN, Float.NaN, 3}, 3));
+        assertEquals(Float.NaN, Selection.median(new float[]{Float.NaN}, 1));
+
+        //1 to 40 without 4 and 18, which are NaN, in any order
+        float[] values = new float[40];
+        for (int i = 0; i < values.length; i++)
+            values[i] = i + 1;
+        values[3] = Float.NaN;
+        values[17] = Float.NaN;
+        float[] reversed = new float[values.length];
+        for (int i = 0; i < values.length; i++)
+            reversed[i] = values[values.length - 1 - i];
+        assertEquals(22.5f, Selection.median(values.clone(), values.length));
+        assertEquals(22.5f, Selection.median(reversed, reversed.length));
+    }
+
+    /**
+     * @return Values with many duplicates and, in some arrays, NaN.
+     */
+    private static float[] randomValues(Random random, int n) {
+        int distinct = 1 + random.nextInt(2 * n);
+        double nanRate = random.nextInt(3) == 0 ? 0 : random.nextDouble() * 0.5;
+
+        float[] values = new float[n];
+        for (int i = 0; i < n; i++)
+            values[i] = random.nextDouble() < nanRate ? Float.NaN : random.nextInt(distinct) - distinct / 2 + 0.25f;
+        return values;
+    }
+
+    private static void check(float[] values, String message) {
+        int n = values.length;
+        float[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        float median = n % 2 != 0 ? sorted[n / 2] : (sorted[n / 2] + sorted[(n - 1) / 2]) / 2;
+        assertEquals(median, Selection.median(values.clone(), n), "median, " + message);
+
+        for (int k = 0; k < n; k++)
+            assertEquals(sorted[k], Selection.select(values.clone(), n, k), "rank " + k + ", " + message);
+
+        for (double percentile : PERCENTILES) {
+            double rank = percentile / 100 * (n - 1);
+            int lowerRank = (int) Math.floor(rank);
+            float lower = sorted[lowerRank];
+            float expected = lowerRank == n - 1 || rank == lowerRank ? lower
+                    : (float) (lower + (sorted[lowerRank + 1] - lower) * (rank - lowerRank));
+            assertEquals(expected, Selection.percentile(values.clone(), n, percentile),
+                    "percentile " + percentile + ", " + message);
+        }
+    }
+}